@@ -6,11 +6,21 @@ import org.chai.location.LocationService;
 import org.chai.kevin.data.DataService;
 import org.chai.kevin.exports.CalculationExportService;
 import org.chai.kevin.exports.DataElementExportService;
+import org.chai.kevin.value.DataChangeListener
+import org.chai.kevin.value.DatabaseRefreshUnitQueue
 import org.chai.kevin.value.ExpressionService
+import org.chai.kevin.value.RefreshControl
+import org.chai.kevin.value.RefreshScheduler
+import org.chai.kevin.value.RefreshThrottle
+import org.chai.kevin.value.RefreshUnitWorker
 import org.chai.kevin.value.RefreshValueService
 import org.chai.kevin.value.ValueService
 import org.hibernate.SessionFactory;
+import org.hibernate.event.PostDeleteEventListener
+import org.hibernate.event.PostInsertEventListener
+import org.hibernate.event.PostUpdateEventListener
 import org.springframework.cache.ehcache.EhCacheManagerFactoryBean
+import org.springframework.jmx.export.MBeanExporter
 
 class ChaiKevinDataGrailsPlugin {
     
@@ -42,8 +52,53 @@ Data plugin for the Kevin project
 
 	def doWithSpring = {
 		
+		def jaqlConfig = application.config.jaql
+		def expressionConfig = application.config.expression
+		def refreshConfig = application.config.refresh
+		
 		jaqlService(JaqlService) { bean ->
 			bean.singleton = true
+			if (jaqlConfig.cache.size) cacheSize = jaqlConfig.cache.size
+			if (jaqlConfig.cache.maxWeight) cacheMaxWeight = jaqlConfig.cache.maxWeight
+			if (jaqlConfig.cache.timeToLive) cacheTimeToLive = jaqlConfig.cache.timeToLive
+			if (jaqlConfig.expressionCache.size) expressionCacheSize = jaqlConfig.expressionCache.size
+		}
+		
+		// cache statistics and settings over JMX
+		jaqlResultCache(jaqlService: "getResultCache")
+		jaqlExpressionCache(jaqlService: "getExpressionCache")
+		expressionMetadataCache(expressionService: "getExpressionMetadataCache")
+		jaqlCacheExporter(MBeanExporter) {
+			registrationBehaviorName = "REGISTRATION_REPLACE_EXISTING"
+			beans = [
+				"org.chai.kevin:type=Cache,name=jaqlResultCache": ref("jaqlResultCache"),
+				"org.chai.kevin:type=Cache,name=jaqlExpressionCache": ref("jaqlExpressionCache"),
+				"org.chai.kevin:type=Cache,name=expressionMetadataCache": ref("expressionMetadataCache")
+			]
+		}
+		
+		// refresh progress and metrics over JMX
+		refreshMetrics(refreshValueService: "getMetrics") {
+			cache = ref("jaqlResultCache")
+		}
+		refreshMetricsExporter(MBeanExporter) {
+			registrationBehaviorName = "REGISTRATION_REPLACE_EXISTING"
+			beans = [
+				"org.chai.kevin:type=Refresh,name=refreshMetrics": ref("refreshMetrics"),
+				"org.chai.kevin:type=Refresh,name=refreshThrottle": ref("refreshThrottle"),
+				"org.chai.kevin:type=Refresh,name=refreshControl": ref("refreshControl")
+			]
+		}
+
+		// pauses and cancels the refreshes in progress
+		refreshControl(RefreshControl)
+
+		// shared by the refreshes and the requests reading values, see RefreshThrottle
+		refreshThrottle(RefreshThrottle) {
+			if (refreshConfig.throttle.maxRowsPerSecond) maxRowsPerSecond = refreshConfig.throttle.maxRowsPerSecond
+			if (refreshConfig.throttle.maxConnections) maxConnections = refreshConfig.throttle.maxConnections
+			if (refreshConfig.throttle.latencyThreshold) latencyThreshold = refreshConfig.throttle.latencyThreshold
+			if (refreshConfig.throttle.backoffPause) backoffPause = refreshConfig.throttle.backoffPause
 		}
 
 		refreshValueService(RefreshValueService) {
@@ -54,10 +109,45 @@ Data plugin for the Kevin project
 			dataService = ref("dataService")
 			periodService = ref("periodService")
 			transactionManager = ref("transactionManager")
+			throttle = ref("refreshThrottle")
+			control = ref("refreshControl")
+			dataChangeListener = ref("dataChangeListener")
+			if (refreshConfig.parallelism) parallelism = refreshConfig.parallelism
+			if (refreshConfig.batchSize) batchSize = refreshConfig.batchSize
+			if (refreshConfig.stateless) stateless = refreshConfig.stateless
+			if (refreshConfig.unitTimeout) unitTimeout = refreshConfig.unitTimeout
+		}
+
+		refreshScheduler(RefreshScheduler) { bean ->
+			bean.destroyMethod = "shutdown"
+			refreshValueService = ref("refreshValueService")
+			dataService = ref("dataService")
+			periodService = ref("periodService")
+			sessionFactory = ref("sessionFactory")
+			transactionManager = ref("transactionManager")
+			if (refreshConfig.scheduler.poolSize) poolSize = refreshConfig.scheduler.poolSize
+		}
+
+		// units of the distributed refresh, shared by all the nodes using the same database
+		refreshUnitQueue(DatabaseRefreshUnitQueue) {
+			sessionFactory = ref("sessionFactory")
+			transactionManager = ref("transactionManager")
+			if (refreshConfig.queue.pollInterval) pollInterval = refreshConfig.queue.pollInterval
+			if (refreshConfig.queue.claimTimeout) claimTimeout = refreshConfig.queue.claimTimeout
+		}
+
+		refreshUnitWorker(RefreshUnitWorker) { bean ->
+			bean.initMethod = "start"
+			bean.destroyMethod = "shutdown"
+			refreshValueService = ref("refreshValueService")
+			queue = ref("refreshUnitQueue")
+			if (refreshConfig.worker.threads) threads = refreshConfig.worker.threads
+			if (refreshConfig.worker.renewInterval) renewInterval = refreshConfig.worker.renewInterval
 		}
 
 		valueService(ValueService) {
 			sessionFactory = ref("sessionFactory")
+			refreshThrottle = ref("refreshThrottle")
 		}
 
 		expressionService(ExpressionService) {
@@ -67,8 +157,14 @@ Data plugin for the Kevin project
 			periodService = ref("periodService")
 			jaqlService = ref("jaqlService")
 			sessionFactory = ref("sessionFactory")
+			dataChangeListener = ref("dataChangeListener")
+			if (expressionConfig.parallelism) parallelism = expressionConfig.parallelism
 		}
 
+		// discards what is cached about the data when they change, however they are saved,
+		// added to the listeners of the session factory in doWithApplicationContext
+		dataChangeListener(DataChangeListener)
+
 		dataElementExportService(DataElementExportService){
 			locationService = ref("locationService")
 			valueService = ref("valueService")
@@ -89,4 +185,16 @@ Data plugin for the Kevin project
 		
 	}
 
+	def doWithApplicationContext = { applicationContext ->
+		// the hibernateEventListeners bean belongs to the application, the listener is appended
+		// to those the session factory was built with instead
+		def sessionFactory = applicationContext.sessionFactory
+		if (sessionFactory.respondsTo('getCurrentSessionFactory')) sessionFactory = sessionFactory.currentSessionFactory
+		def eventListeners = sessionFactory.eventListeners
+		def dataChangeListener = applicationContext.dataChangeListener
+		eventListeners.postInsertEventListeners = ((eventListeners.postInsertEventListeners as List) + dataChangeListener) as PostInsertEventListener[]
+		eventListeners.postUpdateEventListeners = ((eventListeners.postUpdateEventListeners as List) + dataChangeListener) as PostUpdateEventListener[]
+		eventListeners.postDeleteEventListeners = ((eventListeners.postDeleteEventListeners as List) + dataChangeListener) as PostDeleteEventListener[]
+	}
+
 }
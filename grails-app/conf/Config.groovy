@@ -35,4 +35,44 @@ rabbitmq {
 		password = 'guest'
 		hostname = '127.0.0.1'
 	}
-}
\ No newline at end of file
+}
+// JAQL caches, all optional, these can also be changed at runtime over JMX
+//jaql {
+//	cache.size = 10000
+//	cache.maxWeight = 0		// total length of cached expressions and variables, 0 for no limit
+//	cache.timeToLive = 0	// in milliseconds, 0 for no expiration
+//	expressionCache.size = 1000
+//}
+// number of threads evaluating an expression over the data locations, optional, 1 by default
+//expression.parallelism = 4
+// number of data refreshed at the same time when refreshing everything, optional, 1 by default
+//refresh.parallelism = 4
+// number of normalized data element values written at once during a refresh, optional, 100 by default,
+// hibernate.jdbc.batch_size should be set accordingly in DataSource.groovy
+//refresh.batchSize = 100
+// whether refreshed values are written through a stateless session, so that they are not kept in memory,
+// optional, false by default, values are then written one at a time instead of in JDBC batches
+//refresh.stateless = true
+// number of threads running the refresh requests queued by RefreshScheduler, optional, 1 by default
+//refresh.scheduler.poolSize = 1
+// number of units of distributed refreshes run by this node, optional, 0 by default (the node runs none)
+//refresh.worker.threads = 2
+// time between two renewals of the claim of a unit while this node runs it, in milliseconds, optional, 1 minute by default
+//refresh.worker.renewInterval = 60000
+// time between two reads of the refresh unit table, in milliseconds, optional, 500 by default
+//refresh.queue.pollInterval = 500
+// time after which a unit whose claim was not renewed by its node is run again, in milliseconds, optional, 10 minutes by default,
+// should be longer than refresh.worker.renewInterval
+//refresh.queue.claimTimeout = 600000
+// time a distributed refresh waits for a unit to be done before failing, in milliseconds, optional, 1 hour by default,
+// refresh.worker.threads must be set on at least one node for the units to be run
+//refresh.unitTimeout = 3600000
+// maximum number of values refreshed per second, optional, 0 by default (no limit)
+//refresh.throttle.maxRowsPerSecond = 1000
+// maximum number of database connections used by refreshes at the same time, optional, 0 by default (no limit),
+// should be below the maximum size of the connection pool in DataSource.groovy
+//refresh.throttle.maxConnections = 2
+// time to get a connection or to read values above which refreshes slow down, in milliseconds, optional, 0 by default (never)
+//refresh.throttle.latencyThreshold = 500
+// pause before each refresh transaction at the first level of slow down, doubled at each level, in milliseconds, optional, 100 by default
+//refresh.throttle.backoffPause = 100
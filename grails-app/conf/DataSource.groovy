@@ -8,6 +8,9 @@ hibernate {
     cache.use_second_level_cache = true
     cache.use_query_cache = false
     cache.region.factory_class = 'net.sf.ehcache.hibernate.EhCacheRegionFactory'
+    jdbc.batch_size = 100
+    order_inserts = true
+    order_updates = true
 }
 // environment specific settings
 environments {
@@ -81,6 +81,21 @@ class Aggregation extends Calculation<AggregationPartialValue> {
 		Value value = getValue(values, location);
 		return new AggregationPartialValue(this, location, period, type, expression, value);
 	}
+	
+	@Override
+	public AggregationPartialValue mergeCalculationPartialValues(
+			String expression, List<AggregationPartialValue> partialValues,
+			CalculationLocation location, Period period, DataLocationType type) {
+		Value value = getValue(partialValues.findAll {it.expressionData == expression});
+		return new AggregationPartialValue(this, location, period, type, expression, value);
+	}
+	
+	@Override
+	public AggregationPartialValue updateCalculationPartialValue(AggregationPartialValue partialValue,
+			AggregationPartialValue oldDataLocationPartialValue, AggregationPartialValue newDataLocationPartialValue) {
+		Value value = getValue(partialValue, oldDataLocationPartialValue, newDataLocationPartialValue);
+		return new AggregationPartialValue(this, partialValue.location, partialValue.period, partialValue.type, partialValue.expressionData, value);
+	}
 
 	@Override
 	public List<String> getPartialExpressions() {
@@ -90,6 +90,14 @@ abstract class Calculation<T extends CalculationPartialValue> extends Data<T> {
 	public abstract T getCalculationPartialValue(String expression, Map<DataLocation, StatusValuePair> values, 
 			CalculationLocation location, Period period, DataLocationType type);
 	
+	// merges the partial values of the children of the location, partialValues are all of the given type
+	public abstract T mergeCalculationPartialValues(String expression, List<T> partialValues,
+			CalculationLocation location, Period period, DataLocationType type);
+	
+	// updates the partial value of a location when the partial value of one of the data locations below it changes,
+	// the partial values of a location being sums of the partial values of its children
+	public abstract T updateCalculationPartialValue(T partialValue, T oldDataLocationPartialValue, T newDataLocationPartialValue);
+	
 	public abstract CalculationValue<T> getCalculationValue(List<T> partialValues, Period period, CalculationLocation location);
 	
 	protected Value getValue(Map<DataLocation, StatusValuePair> statusValuePairs, CalculationLocation location) {
@@ -108,6 +116,24 @@ abstract class Calculation<T extends CalculationPartialValue> extends Data<T> {
 		return result;
 	}
 	
+	protected Value getValue(List<? extends CalculationPartialValue> partialValues) {
+		Double value = 0d;
+		for (CalculationPartialValue partialValue : partialValues) {
+			if (!partialValue.value.isNull()) value += partialValue.value.getNumberValue().doubleValue();
+		}
+		return getType().getValue(value);
+	}
+	
+	protected Value getValue(CalculationPartialValue partialValue, CalculationPartialValue oldPartialValue, CalculationPartialValue newPartialValue) {
+		Double value = getNumberValue(partialValue) - getNumberValue(oldPartialValue) + getNumberValue(newPartialValue);
+		return getType().getValue(value);
+	}
+	
+	private static Double getNumberValue(CalculationPartialValue partialValue) {
+		if (partialValue.value.isNull()) return 0d;
+		return partialValue.value.getNumberValue().doubleValue();
+	}
+	
 	@Override
 	public Set<String> getSources(Period period, DataLocationType type) {
 		Set<String> result = new HashSet<String>();
@@ -81,6 +81,37 @@ public class Mode extends Calculation<ModePartialValue> {
 		return new ModePartialValue(this, location, period, type, value);
 	}
 
+	@Override
+	public ModePartialValue mergeCalculationPartialValues(String expression, List<ModePartialValue> partialValues, CalculationLocation location, Period period, DataLocationType type) {
+		Map<String, Value> modeMap = new HashMap<String, Value>();
+		for (ModePartialValue partialValue : partialValues) {
+			addModeCounts(modeMap, partialValue, 1);
+		}
+		Value value = getValue(modeMap, location);
+		return new ModePartialValue(this, location, period, type, value);
+	}
+	
+	@Override
+	public ModePartialValue updateCalculationPartialValue(ModePartialValue partialValue, ModePartialValue oldDataLocationPartialValue, ModePartialValue newDataLocationPartialValue) {
+		Map<String, Value> modeMap = new HashMap<String, Value>();
+		addModeCounts(modeMap, partialValue, 1);
+		addModeCounts(modeMap, oldDataLocationPartialValue, -1);
+		addModeCounts(modeMap, newDataLocationPartialValue, 1);
+		Value value = getValue(modeMap, partialValue.location);
+		return new ModePartialValue(this, partialValue.location, partialValue.period, partialValue.type, value);
+	}
+	
+	// adds or removes the counts of the partial value, counts that drop to 0 are removed
+	private void addModeCounts(Map<String, Value> modeMap, ModePartialValue partialValue, int sign) {
+		if (partialValue.value.isNull()) return;
+		for (Entry<String, Value> entry : partialValue.value.getMapValue().entrySet()) {
+			Double modeCount = sign * entry.getValue().getNumberValue().doubleValue();
+			if (modeMap.containsKey(entry.getKey())) modeCount += modeMap.get(entry.getKey()).getNumberValue().doubleValue();
+			if (modeCount == 0) modeMap.remove(entry.getKey());
+			else modeMap.put(entry.getKey(), Value.VALUE_NUMBER(modeCount));
+		}
+	}
+
 	//used to create the partial value
 	private Map getModeMap(Map<DataLocation, StatusValuePair> values, CalculationLocation location) {
 		String modeMapString = null;
@@ -75,6 +75,23 @@ class Summ extends Calculation<SumPartialValue> {
 		return new SumPartialValue(this, location, period, type, numberOfDataLocations, value);
 	}
 
+	@Override
+	public SumPartialValue mergeCalculationPartialValues(String expression, List<SumPartialValue> partialValues, CalculationLocation location, Period period, DataLocationType type) {
+		Value value = getValue(partialValues);
+		Integer numberOfDataLocations = 0;
+		for (SumPartialValue partialValue : partialValues) {
+			numberOfDataLocations += partialValue.numberOfDataLocations;
+		}
+		return new SumPartialValue(this, location, period, type, numberOfDataLocations, value);
+	}
+
+	@Override
+	public SumPartialValue updateCalculationPartialValue(SumPartialValue partialValue, SumPartialValue oldDataLocationPartialValue, SumPartialValue newDataLocationPartialValue) {
+		Value value = getValue(partialValue, oldDataLocationPartialValue, newDataLocationPartialValue);
+		Integer numberOfDataLocations = partialValue.numberOfDataLocations - oldDataLocationPartialValue.numberOfDataLocations + newDataLocationPartialValue.numberOfDataLocations;
+		return new SumPartialValue(this, partialValue.location, partialValue.period, partialValue.type, numberOfDataLocations, value);
+	}
+
 	private Integer getNumberOfDataLocations(Map<DataLocation, StatusValuePair> values) {
 		Integer result = 0;
 		for (Entry<DataLocation, StatusValuePair> entry : values.entrySet()) {
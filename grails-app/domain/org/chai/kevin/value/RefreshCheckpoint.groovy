@@ -0,0 +1,67 @@
+package org.chai.kevin.value
+
+/* 
+ * Copyright (c) 2011, Clinton Health Access Initiative.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+import java.util.Date;
+
+/**
+ * Records that the values of a normalized data element or calculation have been refreshed
+ * for a period, so that an interrupted refresh does not refresh that period again. The
+ * checkpoints of a data are deleted once all its periods have been refreshed.
+ */
+class RefreshCheckpoint {
+
+	Long dataId
+	Long periodId
+	Date refreshed
+
+	static mapping = {
+		table 'dhsst_value_refresh_checkpoint'
+		version false
+	}
+
+	static constraints = {
+		dataId (nullable: false)
+		periodId (nullable: false)
+		refreshed (nullable: false)
+	}
+
+	public RefreshCheckpoint() {}
+
+	public RefreshCheckpoint(Long dataId, Long periodId) {
+		this.dataId = dataId;
+		this.periodId = periodId;
+	}
+
+	@Override
+	public String toString() {
+		return "RefreshCheckpoint [dataId=" + dataId + ", periodId=" + periodId + ", refreshed=" + refreshed + "]";
+	}
+
+}
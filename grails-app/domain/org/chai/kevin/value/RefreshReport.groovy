@@ -0,0 +1,80 @@
+package org.chai.kevin.value
+
+/* 
+ * Copyright (c) 2011, Clinton Health Access Initiative.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+import java.util.Date;
+
+/**
+ * Summary of a refresh run, saved when the run ends so that runs can be compared between releases.
+ * Times are in milliseconds, see {@link RefreshMetrics}.
+ */
+class RefreshReport {
+
+	String name
+	String applicationVersion
+	Date startDate
+	Date endDate
+	Boolean failed
+	Integer dataCount
+	Long rowsEvaluated
+	Long rowsWritten
+	Long evaluationTime
+	Long databaseTime
+	Long errorCount
+	Double cacheHitRatio
+	String slowestData
+
+	static mapping = {
+		table 'dhsst_value_refresh_report'
+		slowestData type: 'text'
+		version false
+	}
+
+	static constraints = {
+		name (nullable: false)
+		applicationVersion (nullable: true)
+		startDate (nullable: false)
+		endDate (nullable: false)
+		failed (nullable: false)
+		dataCount (nullable: false)
+		rowsEvaluated (nullable: false)
+		rowsWritten (nullable: false)
+		evaluationTime (nullable: false)
+		databaseTime (nullable: false)
+		errorCount (nullable: false)
+		cacheHitRatio (nullable: false)
+		slowestData (nullable: true)
+	}
+
+	@Override
+	public String toString() {
+		return "RefreshReport [name=" + name + ", startDate=" + startDate + ", endDate=" + endDate + ", failed=" + failed + "]";
+	}
+
+}
@@ -0,0 +1,87 @@
+package org.chai.kevin.value
+
+/* 
+ * Copyright (c) 2011, Clinton Health Access Initiative.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+import java.util.Date;
+
+/**
+ * A {@link RefreshUnit} published by {@link DatabaseRefreshUnitQueue}, it goes from NEW to CLAIMED
+ * when a node claims it, then to DONE or FAILED when the node acknowledges it. It is deleted once the
+ * coordinator has read its result, or when the refresh it belongs to ends.
+ */
+class RefreshUnitTask {
+
+	static final String NEW = "NEW"
+	static final String CLAIMED = "CLAIMED"
+	static final String DONE = "DONE"
+	static final String FAILED = "FAILED"
+
+	String runId
+	Long dataId
+	Long periodId
+	Boolean calculation
+	Date lastValueChanged
+	Date latestDependency
+
+	String status
+	String node
+	Date claimed
+
+	Boolean refreshed
+	Date resultLastValueChanged
+	String failure
+
+	static mapping = {
+		table 'dhsst_value_refresh_unit'
+		failure type: 'text'
+		runId index: 'Refresh_Unit_Index'
+		version false
+	}
+
+	static constraints = {
+		runId (nullable: false, blank: false)
+		dataId (nullable: false)
+		periodId (nullable: false)
+		calculation (nullable: false)
+		lastValueChanged (nullable: true)
+		latestDependency (nullable: true)
+		status (nullable: false, inList: [NEW, CLAIMED, DONE, FAILED])
+		node (nullable: true)
+		claimed (nullable: true)
+		refreshed (nullable: true)
+		resultLastValueChanged (nullable: true)
+		failure (nullable: true)
+	}
+
+	@Override
+	public String toString() {
+		return "RefreshUnitTask [id=" + id + ", runId=" + runId + ", dataId=" + dataId + ", periodId=" + periodId + ", status=" + status + ", node=" + node + "]";
+	}
+
+}
@@ -0,0 +1,499 @@
+package org.chai.kevin;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+import org.chai.kevin.data.Type;
+import org.chai.kevin.data.Type.ValueType;
+import org.chai.kevin.value.Value;
+
+/**
+ * Native evaluator for the subset of JAQL used by most formulas: number, string
+ * and boolean literals, $id variables, + - * /, comparisons, and/or/not,
+ * if/else and roundup(...).
+ *
+ * Operators follow the JAQL semantics: comparisons and arithmetic involving null
+ * return null, integer literals are longs, bound numbers are doubles and
+ * long/long arithmetic stays long. Whenever the outcome is not certain to be the
+ * one JAQL would produce (unsupported construct, operand types JAQL rejects,
+ * division by zero, ...) the evaluation gives up and the caller falls back to JAQL.
+ */
+class ArithmeticExpression {
+
+	private final Node root;
+	private final Set<String> variables;
+
+	private ArithmeticExpression(Node root, Set<String> variables) {
+		this.root = root;
+		this.variables = variables;
+	}
+
+	/**
+	 * Compiles the expression, returns null if it is not part of the supported subset.
+	 */
+	static ArithmeticExpression compile(String expression) {
+		try {
+			Parser parser = new Parser(expression);
+			return new ArithmeticExpression(parser.parse(), Collections.unmodifiableSet(parser.variables));
+		} catch (UnsupportedException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Returns the ids of the variables in this expression, without the leading $.
+	 */
+	Set<String> getVariables() {
+		return variables;
+	}
+
+	/**
+	 * Evaluates the expression the same way {@link JaqlService#evaluate(String, Type, Map, Map)}
+	 * does, returns null if the expression has to be evaluated by JAQL instead.
+	 *
+	 * @throws IllegalArgumentException if the result is not of the given type
+	 */
+	Value evaluate(Type type, Map<String, Value> values, Map<String, Type> types) throws IllegalArgumentException {
+		Map<String, Object> bindings = new HashMap<String, Object>();
+		for (Entry<String, Value> entry : values.entrySet()) {
+			if (entry.getValue() == null) continue;
+			Object binding = getBinding(types.get(entry.getKey()), entry.getValue());
+			if (binding == null) return null;
+			bindings.put(entry.getKey(), binding);
+		}
+
+		Object result;
+		try {
+			result = evaluate(bindings);
+		} catch (UnsupportedException e) {
+			return null;
+		}
+		return getValue(type, result);
+	}
+
+	/**
+	 * Evaluates the expression against the given bindings (Long, Double, Boolean
+	 * or String values) and returns a Long, Double, Boolean, String or null.
+	 *
+	 * @throws UnsupportedException if the expression has to be evaluated by JAQL instead
+	 */
+	Object evaluate(Map<String, Object> bindings) throws UnsupportedException {
+		return root.eval(bindings);
+	}
+
+	private static Object getBinding(Type type, Value value) {
+		// mirrors JaqlService, null values are bound as the "null" string
+		if (value.isNull()) return NULL_STRING;
+		switch (type.getType()) {
+			case NUMBER:
+				Number number = value.getNumberValue();
+				return number == null ? null : Double.valueOf(number.doubleValue());
+			case BOOL:
+				return value.getBooleanValue();
+			default:
+				return null;
+		}
+	}
+
+	private static Value getValue(Type type, Object result) {
+		if (result == null || NULL_STRING.equals(result)) return Value.NULL_INSTANCE();
+		if (type.getType() == ValueType.NUMBER) {
+			if (result instanceof Long) return type.getValueFromJaql(result.toString());
+			if (result instanceof Double && isFinite((Double) result)) return type.getValueFromJaql(result.toString());
+		}
+		if (type.getType() == ValueType.BOOL && result instanceof Boolean) return type.getValueFromJaql(result.toString());
+		return null;
+	}
+
+	private static boolean isFinite(double value) {
+		return !Double.isNaN(value) && !Double.isInfinite(value);
+	}
+
+	private static final String NULL_STRING = "null";
+
+	/**
+	 * Thrown when the result would not be certain to match JAQL's.
+	 */
+	static class UnsupportedException extends RuntimeException {
+		private static final long serialVersionUID = 6893104275526417720L;
+
+		@Override
+		public synchronized Throwable fillInStackTrace() {
+			return this;
+		}
+	}
+
+	private static final UnsupportedException UNSUPPORTED = new UnsupportedException();
+
+	private static abstract class Node {
+		abstract Object eval(Map<String, Object> bindings);
+	}
+
+	private static class Constant extends Node {
+		final Object value;
+		Constant(Object value) {this.value = value;}
+		Object eval(Map<String, Object> bindings) {return value;}
+	}
+
+	private static class Variable extends Node {
+		final String id;
+		Variable(String id) {this.id = id;}
+		Object eval(Map<String, Object> bindings) {
+			// an unbound variable is an error in JAQL
+			if (!bindings.containsKey(id)) throw UNSUPPORTED;
+			return bindings.get(id);
+		}
+	}
+
+	private static class If extends Node {
+		final Node condition, then, otherwise;
+		If(Node condition, Node then, Node otherwise) {this.condition = condition; this.then = then; this.otherwise = otherwise;}
+		Object eval(Map<String, Object> bindings) {
+			Boolean value = bool(condition.eval(bindings));
+			if (value != null && value) return then.eval(bindings);
+			return otherwise == null ? null : otherwise.eval(bindings);
+		}
+	}
+
+	private static class Or extends Node {
+		final Node left, right;
+		Or(Node left, Node right) {this.left = left; this.right = right;}
+		Object eval(Map<String, Object> bindings) {
+			Boolean a = bool(left.eval(bindings));
+			if (a != null && a) return Boolean.TRUE;
+			Boolean b = bool(right.eval(bindings));
+			if (b == null) return null;
+			if (b) return Boolean.TRUE;
+			return a;
+		}
+	}
+
+	private static class And extends Node {
+		final Node left, right;
+		And(Node left, Node right) {this.left = left; this.right = right;}
+		Object eval(Map<String, Object> bindings) {
+			Boolean a = bool(left.eval(bindings));
+			if (a != null && !a) return Boolean.FALSE;
+			Boolean b = bool(right.eval(bindings));
+			if (b == null) return null;
+			if (!b) return Boolean.FALSE;
+			return a;
+		}
+	}
+
+	private static class Not extends Node {
+		final Node operand;
+		Not(Node operand) {this.operand = operand;}
+		Object eval(Map<String, Object> bindings) {
+			Boolean value = bool(operand.eval(bindings));
+			return value == null ? null : Boolean.valueOf(!value);
+		}
+	}
+
+	private static class Compare extends Node {
+		final String operator;
+		final Node left, right;
+		Compare(String operator, Node left, Node right) {this.operator = operator; this.left = left; this.right = right;}
+		Object eval(Map<String, Object> bindings) {
+			Object a = left.eval(bindings);
+			Object b = right.eval(bindings);
+			if (a == null || b == null) return null;
+
+			int comparison;
+			if (a instanceof Number && b instanceof Number) {
+				if (a instanceof Long && b instanceof Long) comparison = ((Long) a).compareTo((Long) b);
+				else {
+					double x = ((Number) a).doubleValue(), y = ((Number) b).doubleValue();
+					comparison = x < y ? -1 : (x > y ? 1 : 0);
+				}
+			}
+			else if (a instanceof String && b instanceof String) comparison = ((String) a).compareTo((String) b);
+			else if (a instanceof Boolean && b instanceof Boolean) comparison = ((Boolean) a).compareTo((Boolean) b);
+			// JAQL returns null when comparing values of different types
+			else return null;
+
+			if (operator.equals("==")) return comparison == 0;
+			if (operator.equals("!=")) return comparison != 0;
+			if (operator.equals("<")) return comparison < 0;
+			if (operator.equals("<=")) return comparison <= 0;
+			if (operator.equals(">")) return comparison > 0;
+			return comparison >= 0;
+		}
+	}
+
+	private static class Arithmetic extends Node {
+		final char operator;
+		final Node left, right;
+		Arithmetic(char operator, Node left, Node right) {this.operator = operator; this.left = left; this.right = right;}
+		Object eval(Map<String, Object> bindings) {
+			Object a = left.eval(bindings);
+			Object b = right.eval(bindings);
+			if (a == null || b == null) return null;
+			if (!(a instanceof Number) || !(b instanceof Number)) throw UNSUPPORTED;
+
+			if (a instanceof Long && b instanceof Long) {
+				long x = (Long) a, y = (Long) b;
+				switch (operator) {
+					case '+': return x + y;
+					case '-': return x - y;
+					case '*': return x * y;
+					default:
+						if (y == 0) throw UNSUPPORTED;
+						return x / y;
+				}
+			}
+			double x = ((Number) a).doubleValue(), y = ((Number) b).doubleValue();
+			switch (operator) {
+				case '+': return x + y;
+				case '-': return x - y;
+				case '*': return x * y;
+				default: return x / y;
+			}
+		}
+	}
+
+	private static class RoundUp extends Node {
+		final Node operand;
+		RoundUp(Node operand) {this.operand = operand;}
+		Object eval(Map<String, Object> bindings) {
+			Object value = operand.eval(bindings);
+			if (!(value instanceof Number)) throw UNSUPPORTED;
+			return Math.ceil(((Number) value).doubleValue());
+		}
+	}
+
+	private static Boolean bool(Object value) {
+		if (value == null) return null;
+		// JAQL fails with a ClassCastException on non-boolean operands
+		if (!(value instanceof Boolean)) throw UNSUPPORTED;
+		return (Boolean) value;
+	}
+
+	/**
+	 * Recursive descent parser, precedence from lowest to highest:
+	 * if/else, or, and, not, comparison, + -, * /, unary -.
+	 */
+	private static class Parser {
+		private final String text;
+		private final Set<String> variables = new LinkedHashSet<String>();
+		private int position = 0;
+		private String token;
+
+		Parser(String text) {
+			this.text = text;
+			next();
+		}
+
+		Node parse() {
+			Node node = expression();
+			if (token != null) throw UNSUPPORTED;
+			return node;
+		}
+
+		private Node expression() {
+			if (accept("if")) {
+				expect("(");
+				Node condition = expression();
+				expect(")");
+				Node then = expression();
+				Node otherwise = null;
+				if (accept("else")) otherwise = expression();
+				return new If(condition, then, otherwise);
+			}
+			return or();
+		}
+
+		private Node or() {
+			Node node = and();
+			while (accept("or")) node = new Or(node, and());
+			return node;
+		}
+
+		private Node and() {
+			Node node = not();
+			while (accept("and")) node = new And(node, not());
+			return node;
+		}
+
+		private Node not() {
+			if (accept("not")) return new Not(not());
+			return comparison();
+		}
+
+		private Node comparison() {
+			Node node = additive();
+			if (isComparison(token)) {
+				String operator = token;
+				next();
+				node = new Compare(operator, node, additive());
+				if (isComparison(token)) throw UNSUPPORTED;
+			}
+			return node;
+		}
+
+		private Node additive() {
+			Node node = multiplicative();
+			while ("+".equals(token) || "-".equals(token)) {
+				char operator = token.charAt(0);
+				next();
+				node = new Arithmetic(operator, node, multiplicative());
+			}
+			return node;
+		}
+
+		private Node multiplicative() {
+			Node node = unary();
+			while ("*".equals(token) || "/".equals(token)) {
+				char operator = token.charAt(0);
+				next();
+				node = new Arithmetic(operator, node, unary());
+			}
+			return node;
+		}
+
+		private Node unary() {
+			if (accept("-")) {
+				Node operand = unary();
+				// JAQL folds the negation of constants, and subtracts from 0 otherwise
+				if (operand instanceof Constant) {
+					Object value = ((Constant) operand).value;
+					if (value instanceof Long) return new Constant(-(Long) value);
+					if (value instanceof Double) return new Constant(-(Double) value);
+				}
+				return new Arithmetic('-', new Constant(0L), operand);
+			}
+			return primary();
+		}
+
+		private Node primary() {
+			if (token == null) throw UNSUPPORTED;
+			if (accept("(")) {
+				Node node = expression();
+				expect(")");
+				return node;
+			}
+			if (accept("roundup")) {
+				expect("(");
+				Node node = new RoundUp(expression());
+				expect(")");
+				return node;
+			}
+			if (accept("true")) return new Constant(Boolean.TRUE);
+			if (accept("false")) return new Constant(Boolean.FALSE);
+			if (accept("null")) return new Constant(null);
+
+			String literal = token;
+			char first = literal.charAt(0);
+			Node node;
+			if (first == '$') {
+				variables.add(literal.substring(1));
+				node = new Variable(literal.substring(1));
+			}
+			else if (first == '"') node = new Constant(literal.substring(1, literal.length() - 1));
+			else if (isDigit(first)) {
+				try {
+					if (literal.indexOf('.') < 0) node = new Constant(Long.valueOf(literal));
+					else node = new Constant(Double.valueOf(literal));
+				} catch (NumberFormatException e) {
+					throw UNSUPPORTED;
+				}
+			}
+			else throw UNSUPPORTED;
+			next();
+			return node;
+		}
+
+		private boolean accept(String expected) {
+			if (expected.equals(token)) {
+				next();
+				return true;
+			}
+			return false;
+		}
+
+		private void expect(String expected) {
+			if (!accept(expected)) throw UNSUPPORTED;
+		}
+
+		private static boolean isComparison(String token) {
+			return "==".equals(token) || "!=".equals(token) || "<".equals(token) || "<=".equals(token) || ">".equals(token) || ">=".equals(token);
+		}
+
+		private void next() {
+			while (position < text.length() && Character.isWhitespace(text.charAt(position))) position++;
+			if (position == text.length()) {
+				token = null;
+				return;
+			}
+
+			int start = position;
+			char c = text.charAt(position);
+			if (c == '$') {
+				position++;
+				digits();
+				if (position == start + 1) throw UNSUPPORTED;
+				word();
+			}
+			else if (isDigit(c)) {
+				digits();
+				if (position < text.length() && text.charAt(position) == '.') {
+					position++;
+					int decimals = position;
+					digits();
+					if (position == decimals) throw UNSUPPORTED;
+				}
+				// exponents, suffixes and identifiers stuck to the number are left to JAQL
+				word();
+			}
+			else if (c == '"') {
+				position++;
+				while (position < text.length() && text.charAt(position) != '"') {
+					char s = text.charAt(position++);
+					if (s == '\\' || s < 0x20 || s > 0x7e) throw UNSUPPORTED;
+				}
+				if (position == text.length()) throw UNSUPPORTED;
+				position++;
+			}
+			else if (Character.isLetter(c)) {
+				while (position < text.length() && (Character.isLetterOrDigit(text.charAt(position)) || text.charAt(position) == '_')) position++;
+			}
+			else if (c == '=' || c == '!' || c == '<' || c == '>') {
+				position++;
+				if (position < text.length() && text.charAt(position) == '=') position++;
+				else if (c == '=' || c == '!') throw UNSUPPORTED;
+			}
+			else if ("()+-*".indexOf(c) >= 0) position++;
+			else if (c == '/') {
+				position++;
+				// comments
+				if (position < text.length() && (text.charAt(position) == '/' || text.charAt(position) == '*')) throw UNSUPPORTED;
+			}
+			else throw UNSUPPORTED;
+
+			token = text.substring(start, position);
+			if (Character.isLetter(c) && !KEYWORDS.contains(token)) throw UNSUPPORTED;
+		}
+
+		private static boolean isDigit(char c) {
+			return c >= '0' && c <= '9';
+		}
+
+		private void digits() {
+			while (position < text.length() && isDigit(text.charAt(position))) position++;
+		}
+
+		private void word() {
+			if (position < text.length() && (Character.isLetterOrDigit(text.charAt(position)) || text.charAt(position) == '_' || text.charAt(position) == '.')) throw UNSUPPORTED;
+		}
+
+		private static final Set<String> KEYWORDS = new LinkedHashSet<String>();
+		static {
+			Collections.addAll(KEYWORDS, "if", "else", "and", "or", "not", "true", "false", "null", "roundup");
+		}
+	}
+
+}
@@ -0,0 +1,145 @@
+package org.chai.kevin;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.ibm.jaql.json.type.JsonValue;
+import com.ibm.jaql.lang.JaqlQuery;
+
+/**
+ * A JAQL expression that is prepared once and evaluated many times with
+ * different variable bindings.
+ *
+ * The underlying {@link JaqlQuery} instances are built lazily, the roundup UDF is
+ * registered only once per query, and every evaluation only rebinds the $id
+ * variables. A {@link JaqlQuery} can only be used by one thread at a time, so
+ * prepared queries are kept in a pool and each evaluation borrows one. A query is
+ * thrown away after a failed evaluation, because {@link JaqlQuery} does not reset
+ * its input in that case.
+ *
+ * Expressions that are part of the subset supported by {@link ArithmeticExpression}
+ * also carry their native form, which bypasses JAQL entirely.
+ */
+class JaqlExpression {
+
+	private static final Log log = LogFactory.getLog(JaqlExpression.class);
+	
+	// more queries can be in use at the same time, only that many are kept when idle
+	private static final int MAX_IDLE_QUERIES = 4;
+
+	private static class PreparedQuery {
+		final JaqlQuery query;
+		final Set<String> boundVariables = new HashSet<String>();
+		
+		PreparedQuery(JaqlQuery query) {
+			this.query = query;
+		}
+		
+		void close() {
+			try {query.close();} catch (IOException e) {}
+		}
+	}
+	
+	private final String expression;
+	private final String queryString;
+	private final boolean roundup;
+	private final ArithmeticExpression arithmeticExpression;
+
+	private final Queue<PreparedQuery> idleQueries = new ConcurrentLinkedQueue<PreparedQuery>();
+	private final AtomicInteger idleCount = new AtomicInteger();
+	private volatile boolean closed = false;
+
+	JaqlExpression(String expression) {
+		this.expression = expression;
+		this.queryString = normalize(expression);
+		this.roundup = expression.contains("roundup");
+		this.arithmeticExpression = ArithmeticExpression.compile(expression);
+	}
+
+	static String normalize(String expression) {
+		return expression.replaceAll("\\s", " ");
+	}
+
+	String getExpression() {
+		return expression;
+	}
+
+	/**
+	 * Returns the native form of this expression, or null if it can only be evaluated by JAQL.
+	 */
+	ArithmeticExpression getArithmeticExpression() {
+		return arithmeticExpression;
+	}
+
+	JsonValue evaluate(Map<String, JsonValue> valueMap) throws IllegalArgumentException {
+		PreparedQuery prepared = idleQueries.poll();
+		if (prepared != null) idleCount.decrementAndGet();
+		
+		// a variable bound by a previous evaluation and absent from this one
+		// cannot be unbound, so we start from a fresh query
+		if (prepared != null && !valueMap.keySet().containsAll(prepared.boundVariables)) {
+			prepared.close();
+			prepared = null;
+		}
+		if (prepared == null) prepared = prepare();
+
+		for (Entry<String, JsonValue> entry : valueMap.entrySet()) {
+			prepared.query.setVar(entry.getKey(), entry.getValue());
+			prepared.boundVariables.add(entry.getKey());
+		}
+		JsonValue result;
+		try {
+			result = prepared.query.evaluate();
+		} catch (Exception e) {
+			prepared.close();
+			log.warn("error evaluating: "+expression, e);
+			throw new IllegalArgumentException("error evaluating: "+expression, e);
+		}
+		release(prepared);
+		return result;
+	}
+
+	void close() {
+		closed = true;
+		PreparedQuery prepared;
+		while ((prepared = idleQueries.poll()) != null) {
+			idleCount.decrementAndGet();
+			prepared.close();
+		}
+	}
+
+	private void release(PreparedQuery prepared) {
+		if (closed || idleCount.incrementAndGet() > MAX_IDLE_QUERIES) {
+			if (!closed) idleCount.decrementAndGet();
+			prepared.close();
+		}
+		else {
+			idleQueries.offer(prepared);
+			// the expression might have been closed in the meantime
+			if (closed) close();
+		}
+	}
+
+	private PreparedQuery prepare() {
+		JaqlQuery query = new JaqlQuery();
+		if (roundup) {
+			try {
+				query.registerJavaUDF("roundup", RoundUp.class);
+			} catch (Exception e) {
+				log.error("could not load roundup method", e);
+			}
+		}
+		query.setQueryString(queryString);
+		return new PreparedQuery(query);
+	}
+
+}
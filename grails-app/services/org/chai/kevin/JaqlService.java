@@ -1,76 +1,66 @@
 package org.chai.kevin;
 
 import java.io.IOException;
-import java.util.Collections;
 import java.util.HashMap;
-import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map.Entry;
 import java.util.Map;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.chai.kevin.data.Type;
+import org.chai.kevin.util.BoundedCache;
+import org.chai.kevin.value.ExpressionService.StatusValuePair;
+import org.chai.kevin.value.Status;
 import org.chai.kevin.value.Value;
 
+import com.ibm.jaql.json.type.JsonString;
 import com.ibm.jaql.json.type.JsonValue;
 import com.ibm.jaql.lang.JaqlQuery;
 
 public class JaqlService {
 
 	private static final Log log = LogFactory.getLog(JaqlService.class);
-	private static final int CACHE_SIZE = 200;
+	private static final int CACHE_SIZE = 10000;
+	private static final int COMPILED_CACHE_SIZE = 1000;
+	private static final int VALUE_WEIGHT = 16;
 	
-	// we implement our own cache because of springcache bug GPSPRINGCACHE-44
-	private static class LruCache<A, B> extends LinkedHashMap<A, B> {
-		private static final long serialVersionUID = 4576340669871751619L;
-	    private final int maxEntries;
-
-	    public LruCache(final int maxEntries) {
-	        super(maxEntries + 1, 1.0f, true);
-	        this.maxEntries = maxEntries;
-	    }
-
-	    /**
-	     * Returns <tt>true</tt> if this <code>LruCache</code> has more entries than the maximum specified when it was
-	     * created.
-	     *
-	     * <p>
-	     * This method <em>does not</em> modify the underlying <code>Map</code>; it relies on the implementation of
-	     * <code>LinkedHashMap</code> to do that, but that behavior is documented in the JavaDoc for
-	     * <code>LinkedHashMap</code>.
-	     * </p>
-	     *
-	     * @param eldest
-	     *            the <code>Entry</code> in question; this implementation doesn't care what it is, since the
-	     *            implementation is only dependent on the size of the cache
-	     * @return <tt>true</tt> if the oldest
-	     * @see java.util.LinkedHashMap#removeEldestEntry(Map.Entry)
-	     */
-	    @Override
-	    protected boolean removeEldestEntry(final Map.Entry<A, B> eldest) {
-	        return super.size() > maxEntries;
-	    }
-	}
-
 	private static class CacheEntry {
-		String expression;
-		Map<String, String> variables;
+		final String expression;
+		// variables are either JAQL literals or values
+		final Map<String, ?> variables;
+		// entries are hashed once, lookups then only compare the fields on collision
+		final int hash;
 
-		public CacheEntry(String expression, Map<String, String> variables) {
+		public CacheEntry(String expression, Map<String, ?> variables) {
 			super();
 			this.expression = expression;
 			this.variables = variables;
-		}
-
-		@Override
-		public int hashCode() {
+			
 			final int prime = 31;
 			int result = 1;
 			result = prime * result
 					+ ((expression == null) ? 0 : expression.hashCode());
 			result = prime * result
 					+ ((variables == null) ? 0 : variables.hashCode());
-			return result;
+			this.hash = result;
+		}
+
+		int getWeight() {
+			int weight = expression == null ? 0 : expression.length();
+			if (variables != null) {
+				for (Entry<String, ?> variable : variables.entrySet()) {
+					weight += variable.getKey().length();
+					if (variable.getValue() instanceof String) weight += ((String) variable.getValue()).length();
+					else weight += VALUE_WEIGHT;
+				}
+			}
+			return weight;
+		}
+		
+		@Override
+		public int hashCode() {
+			return hash;
 		}
 		
 		@Override
@@ -82,6 +72,8 @@ public class JaqlService {
 			if (!(obj instanceof CacheEntry))
 				return false;
 			CacheEntry other = (CacheEntry) obj;
+			if (hash != other.hash)
+				return false;
 			if (expression == null) {
 				if (other.expression != null)
 					return false;
@@ -96,14 +88,26 @@ public class JaqlService {
 		}
 	}
 	
-// 	this is the ehcache config for this cache
-//	<!-- short term cache for json values, to speed up survey save -->
-//    <cache name="jsonValueCache"
-//    		maxElementsInMemory="100"
-//    		timeToLiveSeconds="0"
-//    		timeToIdleSeconds="10"
-//    />
-	private Map<CacheEntry, JsonValue> cache = Collections.synchronizedMap(new LruCache<CacheEntry, JsonValue>(CACHE_SIZE));
+	// we implement our own cache because of springcache bug GPSPRINGCACHE-44
+	private final BoundedCache<CacheEntry, JsonValue> cache = new BoundedCache<CacheEntry, JsonValue>(CACHE_SIZE);
+	
+	// compiled expressions, keyed by normalized expression text
+	private final BoundedCache<String, JaqlExpression> compiledExpressions = new BoundedCache<String, JaqlExpression>(COMPILED_CACHE_SIZE);
+	
+	public JaqlService() {
+		cache.setWeigher(new BoundedCache.Weigher<CacheEntry, JsonValue>() {
+			@Override
+			public int weigh(CacheEntry key, JsonValue value) {
+				return key.getWeight();
+			}
+		});
+		compiledExpressions.setEvictionListener(new BoundedCache.EvictionListener<String, JaqlExpression>() {
+			@Override
+			public void evicted(String key, JaqlExpression value) {
+				value.close();
+			}
+		});
+	}
 	
 	public static JsonValue jsonValue(String expression, Map<String, String> variables) {
 		Map<String, JsonValue> valueMap = new HashMap<String, JsonValue>();
@@ -116,27 +120,20 @@ public class JaqlService {
 	}
 
 	public JsonValue getJsonValue(String expression, Map<String, String> variables) {
-		JsonValue result = null;
+		// we look in the cache, null is a valid result
+		return cache.get(new CacheEntry(expression, variables), new BoundedCache.Loader<CacheEntry, JsonValue>() {
+			@Override
+			public JsonValue load(CacheEntry entry) {
+				Map<String, JsonValue> valueMap = new HashMap<String, JsonValue>();
+				for (Entry<String, ?> variable : entry.variables.entrySet()) {
+					JsonValue variableValue = getJsonValue((String) variable.getValue(), new HashMap<String, String>());
+					valueMap.put(variable.getKey(), variableValue);
+				}
 		
-		// we look in the cache
-		CacheEntry entry = new CacheEntry(expression, variables);
-		if (cache.containsKey(entry)) {
-			result = cache.get(entry);
-		}
-		else {
-			Map<String, JsonValue> valueMap = new HashMap<String, JsonValue>();
-			for (Entry<String, String> variable : variables.entrySet()) {
-				JsonValue variableValue = getJsonValue(variable.getValue(), new HashMap<String, String>());
-				valueMap.put(variable.getKey(), variableValue);
+				if (valueMap.isEmpty()) return executeQuery(entry.expression, valueMap);
+				else return getCompiledExpression(entry.expression).evaluate(valueMap);
 			}
-	
-			result = executeQuery(expression, valueMap);
-		}
-		
-		// we update the cache
-		cache.put(entry, result);
-		
-		return result;
+		});
 	}
 	
 	/**
@@ -147,19 +144,109 @@ public class JaqlService {
 	public Value evaluate(String expression, Type type, Map<String, Value> variables, Map<String, Type> types) throws IllegalArgumentException {
 		if (log.isDebugEnabled()) log.debug("evaluate(expression="+expression+", variables="+variables+")");
 		
-		Map<String, String> jaqlVariables = new HashMap<String, String>();
+		return evaluate(getCompiledExpression(expression), type, variables, types);
+	}
+	
+	/**
+	 * Evaluates the expression once for each of the given variable bindings. The expression is
+	 * compiled only once for the whole list. The result contains one status-value pair per binding,
+	 * in the same order, with status {@link Status#VALID} if the evaluation succeeded and 
+	 * {@link Status#ERROR} and a null value if it did not.
+	 * 
+	 * @param expression the expression to evaluate
+	 * @param type the type of the result
+	 * @param bindings the variables for each evaluation
+	 * @param types the types of the variables, common to all bindings
+	 * @return the status-value pairs, one for each binding
+	 */
+	public StatusValuePair[] evaluateBatch(String expression, Type type, List<Map<String, Value>> bindings, Map<String, Type> types) {
+		if (log.isDebugEnabled()) log.debug("evaluateBatch(expression="+expression+", bindings="+bindings.size()+")");
+		
+		JaqlExpression compiledExpression = getCompiledExpression(expression);
+		StatusValuePair[] result = new StatusValuePair[bindings.size()];
+		
+		int i = 0;
+		for (Map<String, Value> variables : bindings) {
+			StatusValuePair statusValuePair = new StatusValuePair();
+			try {
+				statusValuePair.value = evaluate(compiledExpression, type, variables, types);
+				statusValuePair.status = Status.VALID;
+			} catch (IllegalArgumentException e) {
+				if (log.isWarnEnabled()) log.warn("error evaluating: "+expression+", variables: "+variables, e);
+				statusValuePair.value = Value.NULL_INSTANCE();
+				statusValuePair.status = Status.ERROR;
+			}
+			result[i++] = statusValuePair;
+		}
+		return result;
+	}
+	
+	private Value evaluate(JaqlExpression compiledExpression, Type type, Map<String, Value> variables, Map<String, Type> types) throws IllegalArgumentException {
+		// simple formulas are evaluated natively, anything else goes through JAQL
+		ArithmeticExpression arithmeticExpression = compiledExpression.getArithmeticExpression();
+		if (arithmeticExpression != null) {
+			Value value = arithmeticExpression.evaluate(type, variables, types);
+			if (value != null) return value;
+		}
+		
+		Map<String, JsonValue> jaqlVariables = new HashMap<String, JsonValue>();
 		for (Entry<String, Value> variable : variables.entrySet()) {
 			// value can be null
 			if (variable.getValue() != null) {
-				String jaqlValue = types.get(variable.getKey()).getJaqlValue(variable.getValue());
-				if (jaqlValue.equals("null")) jaqlValue = "\"null\"";
+				JsonValue jaqlValue = JaqlValueConverter.getJsonValue(types.get(variable.getKey()), variable.getValue());
+				// null values are bound as the "null" string so expressions can test for them
+				if (jaqlValue == null) jaqlValue = new JsonString("null");
 				jaqlVariables.put("$"+variable.getKey(), jaqlValue);
 			}
 		}
 		
-		JsonValue jsonValue = getJsonValue(expression, jaqlVariables);
-		if (jsonValue == null) return Value.NULL_INSTANCE();
-		return type.getValueFromJaql(jsonValue.toString());
+		final JaqlExpression expression = compiledExpression;
+		JsonValue jsonValue = cache.get(new CacheEntry(expression.getExpression(), jaqlVariables), new BoundedCache.Loader<CacheEntry, JsonValue>() {
+			@Override
+			public JsonValue load(CacheEntry entry) {
+				return expression.evaluate((Map<String, JsonValue>) entry.variables);
+			}
+		});
+		return JaqlValueConverter.getValue(type, jsonValue);
+	}
+	
+	private JaqlExpression getCompiledExpression(String expression) {
+		return compiledExpressions.get(JaqlExpression.normalize(expression), new BoundedCache.Loader<String, JaqlExpression>() {
+			@Override
+			public JaqlExpression load(String key) {
+				return new JaqlExpression(key);
+			}
+		});
+	}
+	
+	/**
+	 * Returns the cache of evaluation results, for configuration and monitoring.
+	 */
+	public BoundedCache<?, ?> getResultCache() {
+		return cache;
+	}
+	
+	/**
+	 * Returns the cache of compiled expressions, for configuration and monitoring.
+	 */
+	public BoundedCache<?, ?> getExpressionCache() {
+		return compiledExpressions;
+	}
+	
+	public void setCacheSize(int cacheSize) {
+		cache.setMaxSize(cacheSize);
+	}
+	
+	public void setCacheMaxWeight(long cacheMaxWeight) {
+		cache.setMaxWeight(cacheMaxWeight);
+	}
+	
+	public void setCacheTimeToLive(long cacheTimeToLive) {
+		cache.setTimeToLive(cacheTimeToLive);
+	}
+	
+	public void setExpressionCacheSize(int expressionCacheSize) {
+		compiledExpressions.setMaxSize(expressionCacheSize);
 	}
 	
 	private static JsonValue executeQuery(String expression, Map<String, JsonValue> valueMap) throws IllegalArgumentException {
@@ -0,0 +1,126 @@
+package org.chai.kevin;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+
+import org.chai.kevin.data.Type;
+import org.chai.kevin.util.DataUtils;
+import org.chai.kevin.value.Value;
+
+import com.ibm.jaql.json.type.BufferedJsonArray;
+import com.ibm.jaql.json.type.BufferedJsonRecord;
+import com.ibm.jaql.json.type.JsonArray;
+import com.ibm.jaql.json.type.JsonBool;
+import com.ibm.jaql.json.type.JsonDouble;
+import com.ibm.jaql.json.type.JsonNumber;
+import com.ibm.jaql.json.type.JsonRecord;
+import com.ibm.jaql.json.type.JsonString;
+import com.ibm.jaql.json.type.JsonValue;
+
+/**
+ * Converts between {@link Value} and JAQL's {@link JsonValue} without going through text.
+ *
+ * The conversion gives the same result as serializing with {@link Type#getJaqlValue(Value)}
+ * and parsing the JAQL literal, and as {@link Type#getValueFromJaql(String)} on the string
+ * form of the JAQL value, except that values are never escaped or re-parsed.
+ */
+public class JaqlValueConverter {
+
+	/**
+	 * Returns the JAQL value corresponding to the given value, null if the value is null.
+	 */
+	public static JsonValue getJsonValue(Type type, Value value) {
+		if (value == null || value.isNull()) return null;
+		switch (type.getType()) {
+			case NUMBER:
+				return new JsonDouble(value.getNumberValue().doubleValue());
+			case BOOL:
+				return JsonBool.make(value.getBooleanValue());
+			case STRING:
+			case TEXT:
+				return new JsonString(value.getStringValue());
+			case DATE:
+				return new JsonString(DataUtils.formatDate(value.getDateValue()));
+			case ENUM:
+				return new JsonString(value.getEnumValue());
+			case LIST:
+				List<Value> items = value.getListValue();
+				BufferedJsonArray array = new BufferedJsonArray(items.size());
+				for (Value item : items) {
+					array.add(getJsonValue(type.getListType(), item));
+				}
+				return array;
+			case MAP:
+				Map<String, Type> elementMap = type.getElementMap();
+				BufferedJsonRecord record = new BufferedJsonRecord(elementMap.size());
+				for (Entry<String, Value> entry : value.getMapValue().entrySet()) {
+					if (elementMap.containsKey(entry.getKey())) {
+						record.add(new JsonString(entry.getKey()), getJsonValue(elementMap.get(entry.getKey()), entry.getValue()));
+					}
+				}
+				return record;
+			default:
+				throw new IllegalArgumentException("unsupported type: "+type);
+		}
+	}
+
+	/**
+	 * Returns the value of the given type corresponding to the JAQL value.
+	 *
+	 * @throws IllegalArgumentException if the JAQL value does not correspond to the type
+	 */
+	public static Value getValue(Type type, JsonValue jsonValue) throws IllegalArgumentException {
+		if (jsonValue == null) return Value.NULL_INSTANCE();
+		if (jsonValue instanceof JsonString && jsonValue.toString().equals("null")) return Value.NULL_INSTANCE();
+
+		JSONObject object = new JSONObject();
+		switch (type.getType()) {
+			case NUMBER:
+				if (!(jsonValue instanceof JsonNumber)) return type.getValueFromJaql(jsonValue.toString());
+				object.put(Value.VALUE_STRING, ((JsonNumber) jsonValue).doubleValue());
+				break;
+			case BOOL:
+				if (!(jsonValue instanceof JsonBool)) return type.getValueFromJaql(jsonValue.toString());
+				object.put(Value.VALUE_STRING, ((JsonBool) jsonValue).get());
+				break;
+			case STRING:
+			case TEXT:
+			case ENUM:
+				if (!(jsonValue instanceof JsonString)) return type.getValueFromJaql(jsonValue.toString());
+				object.put(Value.VALUE_STRING, jsonValue.toString());
+				break;
+			case LIST:
+				if (!(jsonValue instanceof JsonArray)) throw new IllegalArgumentException("jaql value is not a list: "+jsonValue);
+				JSONArray values = new JSONArray();
+				for (Iterator<JsonValue> iterator = ((JsonArray) jsonValue).iterator(); iterator.hasNext();) {
+					values.add(getValue(type.getListType(), iterator.next()).getJsonObject());
+				}
+				object.put(Value.VALUE_STRING, values);
+				break;
+			case MAP:
+				if (!(jsonValue instanceof JsonRecord)) throw new IllegalArgumentException("jaql value is not a map: "+jsonValue);
+				JsonRecord record = (JsonRecord) jsonValue;
+				JSONArray elements = new JSONArray();
+				for (Entry<String, Type> entry : type.getElementMap().entrySet()) {
+					JsonString key = new JsonString(entry.getKey());
+					if (!record.containsKey(key)) throw new IllegalArgumentException("jaql value does not correspond to type, missing key: "+entry.getKey());
+					JSONObject element = new JSONObject();
+					element.put(Value.MAP_KEY, entry.getKey());
+					element.put(Value.MAP_VALUE, getValue(entry.getValue(), record.get(key)).getJsonObject());
+					elements.add(element);
+				}
+				object.put(Value.VALUE_STRING, elements);
+				break;
+			default:
+				// dates are parsed and formatted, the string form is what we need
+				return type.getValueFromJaql(jsonValue.toString());
+		}
+		return new Value(object);
+	}
+
+}
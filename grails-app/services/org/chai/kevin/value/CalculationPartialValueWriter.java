@@ -0,0 +1,235 @@
+package org.chai.kevin.value;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.chai.kevin.Period;
+import org.chai.kevin.data.Calculation;
+import org.chai.location.CalculationLocation;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.StatelessSession;
+
+/**
+ * Writes the calculated partial values of a calculation for one period, by comparing them with
+ * the stored ones instead of deleting and inserting all of them again.
+ *
+ * The stored partial values of the period are read with one query when the writer is created.
+ * Partial values are matched on their location, data location type and, for aggregations, their
+ * expression data. Matched partial values are only updated if their value changed, the timestamp of
+ * the unchanged ones is set with one statement per batch, the others are inserted. The session is
+ * flushed every batchSize written values, which lets Hibernate send them as JDBC batches. When the writer is closed, the stored partial values that were not matched are
+ * deleted, batchSize at a time.
+ *
+ * When a stateless session is given, the partial values are read and written through it instead, they
+ * are never attached to the current session. Statements are then sent one at a time.
+ *
+ * Must be used in a transaction, and by one thread only.
+ */
+class CalculationPartialValueWriter<T extends CalculationPartialValue> {
+
+	private static final Log log = LogFactory.getLog(CalculationPartialValueWriter.class);
+
+	private final ValueService valueService;
+	private final SessionFactory sessionFactory;
+	private final StatelessSession statelessSession;
+	private final Calculation<T> calculation;
+	private final Period period;
+	private final int batchSize;
+	private final Date timestamp = new Date();
+
+	private final Map<String, T> storedValues = new HashMap<String, T>();
+	private final List<Long> orphanIds = new ArrayList<Long>();
+	private final List<T> writtenValues = new ArrayList<T>();
+	private final List<Long> unchangedIds = new ArrayList<Long>();
+
+	private long insertedCount = 0;
+	private long updatedCount = 0;
+	private long unchangedCount = 0;
+	private long deletedCount = 0;
+	// in nanoseconds
+	private long databaseTime = 0;
+
+	/**
+	 * @param statelessSession the stateless session to read and write the partial values with, opened on the connection of
+	 * 	the current session, or null to use the current session
+	 */
+	CalculationPartialValueWriter(ValueService valueService, SessionFactory sessionFactory, StatelessSession statelessSession, Calculation<T> calculation, Period period, int batchSize) {
+		this.valueService = valueService;
+		this.sessionFactory = sessionFactory;
+		this.statelessSession = statelessSession;
+		this.calculation = calculation;
+		this.period = period;
+		this.batchSize = Math.max(1, batchSize);
+
+		long start = System.nanoTime();
+		addStoredValues(statelessSession == null ? 
+				valueService.listPartialValues(calculation, period) : 
+				valueService.listPartialValues(statelessSession, calculation, period));
+		databaseTime += System.nanoTime() - start;
+	}
+
+	/**
+	 * Only compares the written partial values with the stored ones of the given locations, and only deletes
+	 * those when closed. The partial values of the other locations of the period are left alone. The stored
+	 * partial values are read batchSize locations at a time, through the current session.
+	 *
+	 * @param locations the locations whose partial values are written
+	 */
+	CalculationPartialValueWriter(ValueService valueService, SessionFactory sessionFactory, Calculation<T> calculation, Period period, List<? extends CalculationLocation> locations, int batchSize) {
+		this.valueService = valueService;
+		this.sessionFactory = sessionFactory;
+		this.statelessSession = null;
+		this.calculation = calculation;
+		this.period = period;
+		this.batchSize = Math.max(1, batchSize);
+
+		long start = System.nanoTime();
+		for (int i = 0; i < locations.size(); i += this.batchSize) {
+			addStoredValues(valueService.listPartialValues(calculation, locations.subList(i, Math.min(i + this.batchSize, locations.size())), period));
+		}
+		databaseTime += System.nanoTime() - start;
+	}
+
+	private void addStoredValues(List<T> partialValues) {
+		for (T storedValue : partialValues) {
+			// there is no unique constraint on partial values, duplicates are deleted and the oldest one is kept
+			String key = getKey(storedValue);
+			T previous = storedValues.get(key);
+			if (previous == null || previous.getId() > storedValue.getId()) storedValues.put(key, storedValue);
+			if (previous != null) orphanIds.add(Math.max(previous.getId(), storedValue.getId()));
+		}
+	}
+
+	/**
+	 * Inserts the given partial value, or updates the stored one it corresponds to if it changed.
+	 */
+	void write(T newValue) {
+		T storedValue = storedValues.remove(getKey(newValue));
+		if (storedValue == null) {
+			long start = System.nanoTime();
+			newValue.setTimestamp(timestamp);
+			if (statelessSession != null) statelessSession.insert(newValue);
+			else sessionFactory.getCurrentSession().save(newValue);
+			databaseTime += System.nanoTime() - start;
+			writtenValues.add(newValue);
+			insertedCount++;
+		}
+		else {
+			writtenValues.add(storedValue);
+			if (update(storedValue, newValue)) {
+				storedValue.setTimestamp(timestamp);
+				if (statelessSession != null) {
+					long start = System.nanoTime();
+					statelessSession.update(storedValue);
+					databaseTime += System.nanoTime() - start;
+				}
+				updatedCount++;
+			}
+			else {
+				unchangedIds.add(storedValue.getId());
+				unchangedCount++;
+			}
+		}
+		if (writtenValues.size() >= batchSize) flush();
+	}
+
+	/**
+	 * Writes the pending partial values and deletes the stored ones that were not written.
+	 */
+	void close() {
+		flush();
+
+		long start = System.nanoTime();
+		for (T storedValue : storedValues.values()) {
+			orphanIds.add(storedValue.getId());
+			if (statelessSession == null) sessionFactory.getCurrentSession().evict(storedValue);
+		}
+		storedValues.clear();
+		for (int i = 0; i < orphanIds.size(); i += batchSize) {
+			valueService.deleteValues(calculation.getValueClass(), orphanIds.subList(i, Math.min(i + batchSize, orphanIds.size())));
+		}
+
+		deletedCount += orphanIds.size();
+		orphanIds.clear();
+		databaseTime += System.nanoTime() - start;
+
+		if (log.isDebugEnabled()) log.debug("close(calculation="+calculation+", period="+period+"): inserted="+insertedCount+", updated="+updatedCount+", unchanged="+unchangedCount+", deleted="+deletedCount);
+	}
+
+	/**
+	 * Returns the number of partial values given to the writer.
+	 */
+	long getValueCount() {
+		return insertedCount + updatedCount + unchangedCount;
+	}
+
+	/**
+	 * Returns the number of partial values inserted, updated or deleted.
+	 */
+	long getWrittenCount() {
+		return insertedCount + updatedCount + deletedCount;
+	}
+
+	/**
+	 * Returns the time spent reading and writing partial values, in nanoseconds.
+	 */
+	long getDatabaseTime() {
+		return databaseTime;
+	}
+
+	private void flush() {
+		long start = System.nanoTime();
+		Session session = sessionFactory.getCurrentSession();
+		if (statelessSession == null) session.flush();
+		if (!unchangedIds.isEmpty()) valueService.updateTimestamps(calculation.getValueClass(), unchangedIds, timestamp);
+		if (statelessSession == null) {
+			for (T writtenValue : writtenValues) session.evict(writtenValue);
+		}
+		writtenValues.clear();
+		unchangedIds.clear();
+		databaseTime += System.nanoTime() - start;
+	}
+
+	/**
+	 * Copies the value of the new partial value to the stored one, returns true if anything changed.
+	 */
+	static boolean update(CalculationPartialValue storedValue, CalculationPartialValue newValue) {
+		boolean changed = false;
+		if (!equal(storedValue.getValueString(), newValue.getValueString())) {
+			storedValue.setValueString(newValue.getValueString());
+			changed = true;
+		}
+		if (storedValue instanceof SumPartialValue) {
+			Integer numberOfDataLocations = ((SumPartialValue) newValue).getNumberOfDataLocations();
+			if (!equal(((SumPartialValue) storedValue).getNumberOfDataLocations(), numberOfDataLocations)) {
+				((SumPartialValue) storedValue).setNumberOfDataLocations(numberOfDataLocations);
+				changed = true;
+			}
+		}
+		return changed;
+	}
+
+	/**
+	 * Returns what tells a partial value apart from the other partial values of the same location.
+	 */
+	static String getLocationKey(CalculationPartialValue partialValue) {
+		String key = partialValue.getType().getId().toString();
+		if (partialValue instanceof AggregationPartialValue) key += "-"+((AggregationPartialValue) partialValue).getExpressionData();
+		return key;
+	}
+	
+	private static String getKey(CalculationPartialValue partialValue) {
+		return partialValue.getLocation().getId()+"-"+getLocationKey(partialValue);
+	}
+
+	private static boolean equal(Object object1, Object object2) {
+		return object1 == null ? object2 == null : object1.equals(object2);
+	}
+
+}
@@ -0,0 +1,99 @@
+package org.chai.kevin.value;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.chai.kevin.data.Data;
+import org.hibernate.event.PostDeleteEvent;
+import org.hibernate.event.PostDeleteEventListener;
+import org.hibernate.event.PostInsertEvent;
+import org.hibernate.event.PostInsertEventListener;
+import org.hibernate.event.PostUpdateEvent;
+import org.hibernate.event.PostUpdateEventListener;
+import org.hibernate.persister.entity.EntityPersister;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+/**
+ * Tells the registered handlers when a data is added, changed or deleted, however it is saved, so that
+ * what they cache about it is discarded.
+ *
+ * The properties written by the refreshes do not change what a data is and are ignored, otherwise
+ * every refresh would discard the caches.
+ *
+ * The listener is appended to the listeners of the session factory once the application context is
+ * started, it does not depend on any service, the services register themselves instead, see
+ * {@link #addHandler(Handler)}.
+ */
+public class DataChangeListener implements PostInsertEventListener, PostUpdateEventListener, PostDeleteEventListener {
+
+	public static interface Handler {
+		public void dataChanged(Long dataId);
+	}
+
+	private static final long serialVersionUID = -3150863217412370545L;
+
+	private static final Log log = LogFactory.getLog(DataChangeListener.class);
+
+	// written by RefreshValueService
+	private static final Set<String> REFRESH_PROPERTIES = new HashSet<String>(Arrays.asList("lastValueChanged", "refreshed", "sourceMapString"));
+
+	private final List<Handler> handlers = new CopyOnWriteArrayList<Handler>();
+
+	public void onPostInsert(PostInsertEvent event) {
+		if (event.getEntity() instanceof Data) dataChanged((Long) event.getId());
+	}
+
+	public void onPostUpdate(PostUpdateEvent event) {
+		if (event.getEntity() instanceof Data && isDataChanged(event)) dataChanged((Long) event.getId());
+	}
+
+	public void onPostDelete(PostDeleteEvent event) {
+		if (event.getEntity() instanceof Data) dataChanged((Long) event.getId());
+	}
+
+	private static boolean isDataChanged(PostUpdateEvent event) {
+		// no snapshot when a detached data is updated, it is then considered changed
+		if (event.getOldState() == null) return true;
+
+		EntityPersister persister = event.getPersister();
+		String[] propertyNames = persister.getPropertyNames();
+		for (int i = 0; i < propertyNames.length; i++) {
+			if (i == persister.getVersionProperty() || REFRESH_PROPERTIES.contains(propertyNames[i])) continue;
+			if (!persister.getPropertyTypes()[i].isEqual(event.getOldState()[i], event.getState()[i])) {
+				if (log.isDebugEnabled()) log.debug("data "+event.getId()+" changed, property: "+propertyNames[i]);
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private void dataChanged(final Long dataId) {
+		notifyHandlers(dataId);
+
+		// until the change is committed, the other transactions still see the data as it was,
+		// what they cache in the meantime is discarded again once it is
+		if (TransactionSynchronizationManager.isSynchronizationActive()) {
+			TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+				@Override
+				public void afterCompletion(int status) {
+					notifyHandlers(dataId);
+				}
+			});
+		}
+	}
+
+	private void notifyHandlers(Long dataId) {
+		for (Handler handler : handlers) handler.dataChanged(dataId);
+	}
+
+	public void addHandler(Handler handler) {
+		handlers.add(handler);
+	}
+
+}
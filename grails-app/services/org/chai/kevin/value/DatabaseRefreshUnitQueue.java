@@ -0,0 +1,241 @@
+package org.chai.kevin.value;
+
+import java.lang.management.ManagementFactory;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionTemplate;
+
+/**
+ * A {@link RefreshUnitQueue} backed by the {@link RefreshUnitTask} table, so that the units can be
+ * claimed by any node connected to the same database. A unit is claimed by a conditional update of its
+ * status, only one node can succeed. The table is polled, see {@link #setPollInterval(long)}.
+ *
+ * The claim of a unit expires unless it is renewed, see {@link #renew(RefreshUnit)}, so that a unit claimed
+ * by a node that stopped before acknowledging it can be claimed again once the claim timeout has passed,
+ * see {@link #setClaimTimeout(long)}. Only the claim a unit was last given can renew it or acknowledge it.
+ */
+public class DatabaseRefreshUnitQueue implements RefreshUnitQueue {
+
+	private static final Log log = LogFactory.getLog(DatabaseRefreshUnitQueue.class);
+
+	// number of units tried at once when claiming
+	private static final int CLAIM_CANDIDATES = 10;
+
+	private SessionFactory sessionFactory;
+	private PlatformTransactionManager transactionManager;
+
+	private String node = ManagementFactory.getRuntimeMXBean().getName();
+	// in milliseconds
+	private long pollInterval = 500;
+	// in milliseconds, 10 minutes by default
+	private long claimTimeout = 600000;
+
+	// numbers the claims made by this node
+	private final AtomicLong claims = new AtomicLong();
+
+	private TransactionTemplate transactionTemplate;
+
+	// each operation is committed on its own, so that it is seen by the other nodes
+	private synchronized TransactionTemplate getTransactionTemplate() {
+		if (transactionTemplate == null) {
+			transactionTemplate = new TransactionTemplate(transactionManager);
+			transactionTemplate.setPropagationBehavior(TransactionTemplate.PROPAGATION_REQUIRES_NEW);
+		}
+		return transactionTemplate;
+	}
+
+	public void publish(final RefreshUnit unit) {
+		Long taskId = getTransactionTemplate().execute(new TransactionCallback<Long>() {
+			@Override
+			public Long doInTransaction(TransactionStatus arg0) {
+				RefreshUnitTask task = new RefreshUnitTask();
+				task.setRunId(unit.getRunId());
+				task.setDataId(unit.getDataId());
+				task.setPeriodId(unit.getPeriodId());
+				task.setCalculation(unit.isCalculation());
+				task.setLastValueChanged(unit.getLastValueChanged());
+				task.setLatestDependency(unit.getLatestDependency());
+				task.setStatus(RefreshUnitTask.NEW);
+				sessionFactory.getCurrentSession().save(task);
+				return task.getId();
+			}
+		});
+		unit.setTaskId(taskId);
+	}
+
+	public RefreshUnit claim(long timeout) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeout;
+		while (true) {
+			RefreshUnit unit = getTransactionTemplate().execute(new TransactionCallback<RefreshUnit>() {
+				@Override
+				public RefreshUnit doInTransaction(TransactionStatus arg0) {
+					return claimTask();
+				}
+			});
+			if (unit != null) return unit;
+
+			long remaining = deadline - System.currentTimeMillis();
+			if (remaining <= 0) return null;
+			Thread.sleep(Math.min(pollInterval, remaining));
+		}
+	}
+
+	// the units claimed by a node for longer than the claim timeout are considered abandoned
+	private RefreshUnit claimTask() {
+		Session session = sessionFactory.getCurrentSession();
+		Date now = new Date();
+		Date expired = new Date(now.getTime() - claimTimeout);
+		String claimant = node+"#"+claims.incrementAndGet();
+
+		List<Long> taskIds = session.createQuery("select task.id from RefreshUnitTask task " +
+				"where task.status = :new or (task.status = :claimed and task.claimed < :expired) order by task.id")
+			.setParameter("new", RefreshUnitTask.NEW)
+			.setParameter("claimed", RefreshUnitTask.CLAIMED)
+			.setParameter("expired", expired)
+			.setMaxResults(CLAIM_CANDIDATES).list();
+
+		for (Long taskId : taskIds) {
+			int updated = session.createQuery("update RefreshUnitTask task set task.status = :claimed, task.node = :node, task.claimed = :now " +
+					"where task.id = :id and (task.status = :new or (task.status = :claimed and task.claimed < :expired))")
+				.setParameter("new", RefreshUnitTask.NEW)
+				.setParameter("claimed", RefreshUnitTask.CLAIMED)
+				.setParameter("node", claimant)
+				.setParameter("now", now)
+				.setParameter("expired", expired)
+				.setParameter("id", taskId).executeUpdate();
+			if (updated == 1) {
+				RefreshUnitTask task = (RefreshUnitTask) session.get(RefreshUnitTask.class, taskId);
+				if (log.isDebugEnabled()) log.debug("claimed: "+task);
+				RefreshUnit unit = toUnit(task);
+				unit.setClaimant(claimant);
+				return unit;
+			}
+		}
+		return null;
+	}
+
+	public boolean renew(final RefreshUnit unit) {
+		int updated = getTransactionTemplate().execute(new TransactionCallback<Integer>() {
+			@Override
+			public Integer doInTransaction(TransactionStatus arg0) {
+				return sessionFactory.getCurrentSession().createQuery("update RefreshUnitTask task set task.claimed = :now " +
+						"where task.id = :id and task.node = :node and task.status = :claimed")
+					.setParameter("now", new Date())
+					.setParameter("id", unit.getTaskId())
+					.setParameter("node", unit.getClaimant())
+					.setParameter("claimed", RefreshUnitTask.CLAIMED).executeUpdate();
+			}
+		});
+		if (updated == 0) log.warn("unit no longer claimed by this node: "+unit+", claimant: "+unit.getClaimant());
+		return updated == 1;
+	}
+
+	public void complete(final RefreshUnitResult result) {
+		int updated = getTransactionTemplate().execute(new TransactionCallback<Integer>() {
+			@Override
+			public Integer doInTransaction(TransactionStatus arg0) {
+				return sessionFactory.getCurrentSession().createQuery("update RefreshUnitTask task " +
+						"set task.status = :status, task.refreshed = :refreshed, task.resultLastValueChanged = :lastValueChanged, task.failure = :failure " +
+						"where task.id = :id and task.node = :node and task.status = :claimed")
+					.setParameter("status", result.isFailed() ? RefreshUnitTask.FAILED : RefreshUnitTask.DONE)
+					.setParameter("refreshed", result.isRefreshed())
+					.setTimestamp("lastValueChanged", result.getLastValueChanged())
+					.setString("failure", result.getFailure())
+					.setParameter("id", result.getUnit().getTaskId())
+					.setParameter("node", result.getUnit().getClaimant())
+					.setParameter("claimed", RefreshUnitTask.CLAIMED).executeUpdate();
+			}
+		});
+		if (updated == 0) log.warn("ignoring result of a unit no longer claimed by this node: "+result+", claimant: "+result.getUnit().getClaimant());
+	}
+
+	public RefreshUnitResult takeResult(final String runId, long timeout) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeout;
+		while (true) {
+			RefreshUnitResult result = getTransactionTemplate().execute(new TransactionCallback<RefreshUnitResult>() {
+				@Override
+				public RefreshUnitResult doInTransaction(TransactionStatus arg0) {
+					return takeTaskResult(runId);
+				}
+			});
+			if (result != null) return result;
+
+			long remaining = deadline - System.currentTimeMillis();
+			if (remaining <= 0) return null;
+			Thread.sleep(Math.min(pollInterval, remaining));
+		}
+	}
+
+	private RefreshUnitResult takeTaskResult(String runId) {
+		Session session = sessionFactory.getCurrentSession();
+		List<RefreshUnitTask> tasks = session.createQuery("from RefreshUnitTask task where task.runId = :runId and (task.status = :done or task.status = :failed) order by task.id")
+			.setParameter("runId", runId)
+			.setParameter("done", RefreshUnitTask.DONE)
+			.setParameter("failed", RefreshUnitTask.FAILED)
+			.setMaxResults(1).list();
+		if (tasks.isEmpty()) return null;
+
+		RefreshUnitTask task = tasks.get(0);
+		session.delete(task);
+		return new RefreshUnitResult(toUnit(task), Boolean.TRUE.equals(task.getRefreshed()), task.getResultLastValueChanged(), task.getFailure());
+	}
+
+	public void clear(final String runId) {
+		int deleted = getTransactionTemplate().execute(new TransactionCallback<Integer>() {
+			@Override
+			public Integer doInTransaction(TransactionStatus arg0) {
+				return sessionFactory.getCurrentSession().createQuery("delete from RefreshUnitTask task where task.runId = :runId")
+					.setParameter("runId", runId).executeUpdate();
+			}
+		});
+		if (log.isDebugEnabled()) log.debug("cleared units of run: "+runId+", deleted: "+deleted);
+	}
+
+	private static RefreshUnit toUnit(RefreshUnitTask task) {
+		RefreshUnit unit = new RefreshUnit(task.getRunId(), task.getDataId(), task.getPeriodId(), task.getCalculation(), task.getLastValueChanged(), task.getLatestDependency());
+		unit.setTaskId(task.getId());
+		return unit;
+	}
+
+	/**
+	 * Sets the name this node is known by in the claimed units, the JVM name by default. Each claim is
+	 * identified by this name followed by a number.
+	 */
+	public void setNode(String node) {
+		this.node = node;
+	}
+
+	/**
+	 * Sets the time between two reads of the table when waiting for a unit or a result, in milliseconds, 500 by default.
+	 */
+	public void setPollInterval(long pollInterval) {
+		this.pollInterval = pollInterval;
+	}
+
+	/**
+	 * Sets the time after which a unit whose claim was neither renewed nor acknowledged can be claimed again, in
+	 * milliseconds, 10 minutes by default. It should be longer than the time between two renewals, see
+	 * {@link RefreshUnitWorker#setRenewInterval(long)}.
+	 */
+	public void setClaimTimeout(long claimTimeout) {
+		this.claimTimeout = claimTimeout;
+	}
+
+	public void setSessionFactory(SessionFactory sessionFactory) {
+		this.sessionFactory = sessionFactory;
+	}
+
+	public void setTransactionManager(PlatformTransactionManager transactionManager) {
+		this.transactionManager = transactionManager;
+	}
+
+}
@@ -0,0 +1,101 @@
+package org.chai.kevin.value;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.chai.kevin.data.Data;
+import org.chai.kevin.data.Type;
+
+/**
+ * What is known about an expression once it has been parsed: the "$<dataId>" variables
+ * it contains and, for each of them, the id, class, value class and type of the data it
+ * refers to, so that the expression can be evaluated without loading the data.
+ *
+ * Instances are kept by {@link ExpressionService} and shared between threads, they are
+ * never modified after having been built.
+ */
+public class ExpressionMetadata {
+
+	private final String expression;
+	private final Set<String> variables;
+
+	private final Map<String, Long> dataIds = new HashMap<String, Long>();
+	private final Map<String, Class<? extends Data>> dataClasses = new HashMap<String, Class<? extends Data>>();
+	private final Map<String, Class<? extends DataValue>> valueClasses = new HashMap<String, Class<? extends DataValue>>();
+	private final Map<String, Type> types = new HashMap<String, Type>();
+
+	ExpressionMetadata(String expression, Set<String> variables) {
+		this.expression = expression;
+		this.variables = Collections.unmodifiableSet(variables);
+	}
+
+	void addData(String variable, Long id, Class<? extends Data> dataClass, Class<? extends DataValue> valueClass, Type type) {
+		dataIds.put(variable, id);
+		dataClasses.put(variable, dataClass);
+		valueClasses.put(variable, valueClass);
+		types.put(id.toString(), type);
+	}
+
+	public String getExpression() {
+		return expression;
+	}
+
+	/**
+	 * Returns the set of "$<dataId>" variables found in the expression.
+	 */
+	public Set<String> getVariables() {
+		return variables;
+	}
+
+	/**
+	 * Returns true if all the variables of the expression refer to an existing data.
+	 */
+	public boolean isResolved() {
+		return dataIds.size() == variables.size();
+	}
+
+	/**
+	 * Returns the id of the data the given variable refers to, or null if there is no such data.
+	 */
+	public Long getDataId(String variable) {
+		return dataIds.get(variable);
+	}
+
+	/**
+	 * Returns the ids of the data the variables of the expression refer to.
+	 */
+	public Collection<Long> getDataIds() {
+		return Collections.unmodifiableCollection(dataIds.values());
+	}
+
+	/**
+	 * Returns the concrete class of the data the given variable refers to, or null if there is no such data.
+	 */
+	public Class<? extends Data> getDataClass(String variable) {
+		return dataClasses.get(variable);
+	}
+
+	/**
+	 * Returns the class of the values of the data the given variable refers to, or null if there is no such data.
+	 */
+	public Class<? extends DataValue> getValueClass(String variable) {
+		return valueClasses.get(variable);
+	}
+
+	/**
+	 * Returns the types of the data in the expression, keyed by data id, as expected by
+	 * {@link org.chai.kevin.JaqlService#evaluate(String, Type, Map, Map)}.
+	 */
+	public Map<String, Type> getTypes() {
+		return Collections.unmodifiableMap(types);
+	}
+
+	@Override
+	public String toString() {
+		return "ExpressionMetadata [expression=" + expression + ", dataIds=" + dataIds + "]";
+	}
+
+}
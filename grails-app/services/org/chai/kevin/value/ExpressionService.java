@@ -29,13 +29,20 @@ package org.chai.kevin.value;
  */
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -54,18 +61,23 @@ import org.chai.kevin.data.Type;
 import org.chai.location.CalculationLocation;
 import org.chai.location.DataLocation;
 import org.chai.location.DataLocationType;
+import org.chai.kevin.util.BoundedCache;
 import org.hibernate.SessionFactory;
+import org.hibernate.proxy.HibernateProxy;
 import org.springframework.transaction.annotation.Transactional;
 
 /**
  * This service deals with calculating the values of normalized data elements and calculations.
  * It does not store the calculated values into the database, this has to be done separately.
  */
-public class ExpressionService {
+public class ExpressionService implements DataChangeListener.Handler {
 
 	private static final Log log = LogFactory.getLog(ExpressionService.class);
 	private static final Log expressionLog = LogFactory.getLog("ExpressionLog");
 	
+	private static final Pattern VARIABLE_PATTERN = Pattern.compile("\\$\\d+");
+	private static final int METADATA_CACHE_SIZE = 10000;
+	
 	private DataService dataService;
 	private LocationService locationService;
 	private ValueService valueService;
@@ -73,6 +85,27 @@ public class ExpressionService {
 	private PeriodService periodService;
 	private SessionFactory sessionFactory;
 	
+	// expressions are parsed once, see getExpressionMetadata
+	private final BoundedCache<String, ExpressionMetadata> expressionMetadata = new BoundedCache<String, ExpressionMetadata>(METADATA_CACHE_SIZE);
+	// the cached metadata by id of the data they refer to, so that only those are discarded when a data changes
+	private final ConcurrentMap<Long, Set<ExpressionMetadata>> expressionMetadataByDataId = new ConcurrentHashMap<Long, Set<ExpressionMetadata>>();
+	// incremented each time a data changes
+	private final AtomicLong dataGeneration = new AtomicLong();
+	
+	public ExpressionService() {
+		expressionMetadata.setEvictionListener(new BoundedCache.EvictionListener<String, ExpressionMetadata>() {
+			public void evicted(String expression, ExpressionMetadata metadata) {
+				for (Long dataId : metadata.getDataIds()) {
+					Set<ExpressionMetadata> indexed = expressionMetadataByDataId.get(dataId);
+					if (indexed != null) indexed.remove(metadata);
+				}
+			}
+		});
+	}
+	
+	// null when expressions are evaluated sequentially, see setParallelism
+	private volatile ForkJoinPool evaluationPool = null;
+	
 	public static class StatusValuePair {
 		public Status status = null;
 		public Value value = null;
@@ -83,6 +116,50 @@ public class ExpressionService {
 		}
 	}
 	
+	/**
+	 * Evaluates an expression for a range of bindings. The task only works on a snapshot: the values of its
+	 * own data locations and the types as JSON strings, it never touches the hibernate session and shares
+	 * no mutable object with the other tasks.
+	 */
+	private class EvaluationTask extends RecursiveTask<StatusValuePair[]> {
+		private static final long serialVersionUID = -4415702312394761163L;
+		
+		private final String expression;
+		private final String type;
+		private final Map<String, String> types;
+		private final List<Map<String, Value>> bindings;
+		private final int taskSize;
+		
+		EvaluationTask(String expression, String type, Map<String, String> types, List<Map<String, Value>> bindings, int taskSize) {
+			this.expression = expression;
+			this.type = type;
+			this.types = types;
+			this.bindings = bindings;
+			this.taskSize = taskSize;
+		}
+		
+		@Override
+		protected StatusValuePair[] compute() {
+			if (bindings.size() <= taskSize) {
+				Map<String, Type> typeMap = new HashMap<String, Type>();
+				for (Entry<String, String> entry : types.entrySet()) typeMap.put(entry.getKey(), new Type(entry.getValue()));
+				return jaqlService.evaluateBatch(expression, new Type(type), bindings, typeMap);
+			}
+			
+			int middle = bindings.size() / 2;
+			EvaluationTask left = new EvaluationTask(expression, type, types, bindings.subList(0, middle), taskSize);
+			EvaluationTask right = new EvaluationTask(expression, type, types, bindings.subList(middle, bindings.size()), taskSize);
+			left.fork();
+			StatusValuePair[] rightResult = right.compute();
+			StatusValuePair[] leftResult = left.join();
+			
+			StatusValuePair[] result = new StatusValuePair[bindings.size()];
+			System.arraycopy(leftResult, 0, result, 0, leftResult.length);
+			System.arraycopy(rightResult, 0, result, leftResult.length, rightResult.length);
+			return result;
+		}
+	}
+	
 	/**
 	 * Evaluates the list of partial values for a particular calculation, location and period. 
 	 * It will return at least as many partial values as there are data location types in the system. 
@@ -114,17 +191,18 @@ public class ExpressionService {
 		Set<T> result = new HashSet<T>();
 		Map<DataLocationType, List<DataLocation>> dataLocationsByType = getDataLocationsByType(location);
 		
+		// the values of the dependencies are fetched once for all the types
+		ValueCache cache = new ValueCache(null);
 		for (DataLocationType type : locationService.listTypes()) {
 			List<DataLocation> dataLocations = dataLocationsByType.get(type);
 			
 			if (dataLocations != null && !dataLocations.isEmpty()) {
 				Map<DataLocation, StatusValuePair> values = new HashMap<DataLocation, StatusValuePair>();
 				
-				Map cache = new HashMap();				
 				Type calculationType = calculation.getType();
-				for (DataLocation dataLocation : dataLocations) {					
-					StatusValuePair statusValuePair = getExpressionStatusValuePair(expression, calculationType, period, dataLocation, DataElement.class, cache);
-					values.put(dataLocation, statusValuePair);
+				List<StatusValuePair> statusValuePairs = getExpressionStatusValuePairs(expression, calculationType, period, dataLocations, DataElement.class, cache);
+				for (int i = 0; i < dataLocations.size(); i++) {
+					values.put(dataLocations.get(i), statusValuePairs.get(i));
 				}
 				result.add(calculation.getCalculationPartialValue(expression, values, location, period, type));
 			}
@@ -132,6 +210,71 @@ public class ExpressionService {
 		return result;
 	}
 	
+	/**
+	 * Evaluates the partial values of a particular calculation for each of the given data locations and
+	 * the given period. Each partial expression is evaluated once as a batch over all the data locations.
+	 * 
+	 * Using this method will not trigger caclulating the dependencies of the specified calculation
+	 * if there are any. They have to have been calculated beforehand for this method to return
+	 * correct result. None of the parameters can be null.
+	 *
+	 * @param calculation the calculation whose expression will be evaluated
+	 * @param dataLocations the data locations for which the expression will be evaluated
+	 * @param period the period for which the expression will be evaluated
+	 *
+	 * @return the list of partial values, for each data location one per partial expression
+	 */
+	@Transactional(readOnly=true)
+	public <T extends CalculationPartialValue> List<T> calculatePartialValues(Calculation<T> calculation, List<DataLocation> dataLocations, Period period) {
+		if (log.isDebugEnabled()) log.debug("calculatePartialValues(calculation="+calculation+",period="+period+",dataLocations="+dataLocations.size()+")");
+		
+		List<T> result = new ArrayList<T>();
+		ValueCache cache = new ValueCache(dataLocations);
+		for (String expression : calculation.getPartialExpressions()) {
+			List<StatusValuePair> statusValuePairs = getExpressionStatusValuePairs(expression, calculation.getType(), period, dataLocations, DataElement.class, cache);
+			for (int i = 0; i < dataLocations.size(); i++) {
+				DataLocation dataLocation = dataLocations.get(i);
+				Map<DataLocation, StatusValuePair> values = Collections.singletonMap(dataLocation, statusValuePairs.get(i));
+				result.add(calculation.getCalculationPartialValue(expression, values, dataLocation, period, dataLocation.getType()));
+			}
+		}
+		return result;
+	}
+	
+	/**
+	 * Builds the partial values of a particular calculation, location and period by merging the partial
+	 * values of the children of that location, instead of evaluating the expression again for all the
+	 * data locations below it. The result is the same as {@link #calculatePartialValues(Calculation, CalculationLocation, Period)}.
+	 * 
+	 * @param calculation the calculation
+	 * @param location the location for which to build the partial values
+	 * @param period the period of the partial values
+	 * @param partialValues the partial values of all the children of the location, be it locations or data locations
+	 * 
+	 * @return the list of partial values, one for each data location type found in the children's partial values
+	 */
+	public <T extends CalculationPartialValue> List<T> mergePartialValues(Calculation<T> calculation, CalculationLocation location, Period period, List<T> partialValues) {
+		if (log.isDebugEnabled()) log.debug("mergePartialValues(calculation="+calculation+",period="+period+",location="+location+")");
+		
+		Map<Long, List<T>> partialValuesByType = new HashMap<Long, List<T>>();
+		for (T partialValue : partialValues) {
+			Long typeId = partialValue.getType().getId();
+			if (!partialValuesByType.containsKey(typeId)) partialValuesByType.put(typeId, new ArrayList<T>());
+			partialValuesByType.get(typeId).add(partialValue);
+		}
+		
+		List<T> result = new ArrayList<T>();
+		for (String expression : calculation.getPartialExpressions()) {
+			for (DataLocationType type : locationService.listTypes()) {
+				List<T> partialValuesOfType = partialValuesByType.get(type.getId());
+				if (partialValuesOfType != null) {
+					result.add(calculation.mergeCalculationPartialValues(expression, partialValuesOfType, location, period, type));
+				}
+			}
+		}
+		return result;
+	}
+	
 	private Map<DataLocationType, List<DataLocation>> getDataLocationsByType(CalculationLocation location) {
 		Map<DataLocationType, List<DataLocation>> result = new HashMap<DataLocationType, List<DataLocation>>();
 		List<DataLocation> dataLocations = location.collectDataLocations(null);
@@ -172,79 +315,168 @@ public class ExpressionService {
 		return expressionValue;
 	}
 
-	private <T extends DataElement<S>, S extends DataValue> DataValue findInCache(Map<T, Map<CalculationLocation, S>> cache, T data, DataLocation dataLocation, Period period) {
+	/**
+	 * Evaluates the specified normalized data element for all the given data locations and period.
+	 * The expression for each data location type is evaluated as one batch over all the data locations
+	 * of that type. The values of the dependencies are fetched beforehand, with one query per
+	 * dependency for all the data locations.
+	 *
+	 * Using this method will not trigger caclulating the dependencies of the specified normalized data element
+	 * if there are any. They have to have been calculated beforehand for this method to return
+	 * correct result. None of the parameters can be null.
+	 *
+	 * @param normalizedDataElement the normalized data element whose values to evaluate
+	 * @param dataLocations the data locations for which to evaluate the normalized data element
+	 * @param period the period for which to evalute the normalized data element
+	 *
+	 * @return the values, in the same order as the data locations
+	 */
+	@Transactional(readOnly=true)
+	public List<NormalizedDataElementValue> calculateValues(NormalizedDataElement normalizedDataElement, List<DataLocation> dataLocations, Period period) {
+		if (log.isDebugEnabled()) log.debug("calculateValues(normalizedDataElement="+normalizedDataElement+",period="+period+",dataLocations="+dataLocations.size()+")");
+		
+		Map<String, List<Integer>> indexesByType = new HashMap<String, List<Integer>>();
+		for (int i = 0; i < dataLocations.size(); i++) {
+			String typeCode = dataLocations.get(i).getType().getCode();
+			if (!indexesByType.containsKey(typeCode)) indexesByType.put(typeCode, new ArrayList<Integer>());
+			indexesByType.get(typeCode).add(i);
+		}
+		
+		// values of the dependencies for this period and data locations
+		ValueCache cache = new ValueCache(dataLocations);
+		
+		NormalizedDataElementValue[] result = new NormalizedDataElementValue[dataLocations.size()];
+		for (Entry<String, List<Integer>> entry : indexesByType.entrySet()) {
+			String expression = normalizedDataElement.getExpression(period, entry.getKey());
+			
+			List<DataLocation> dataLocationsOfType = new ArrayList<DataLocation>();
+			for (Integer index : entry.getValue()) dataLocationsOfType.add(dataLocations.get(index));
+			
+			List<StatusValuePair> statusValuePairs = getExpressionStatusValuePairs(expression, normalizedDataElement.getType(), period, dataLocationsOfType, DataElement.class, cache);
+			for (int i = 0; i < dataLocationsOfType.size(); i++) {
+				StatusValuePair statusValuePair = statusValuePairs.get(i);
+				result[entry.getValue().get(i)] = new NormalizedDataElementValue(statusValuePair.value, statusValuePair.status, dataLocationsOfType.get(i), normalizedDataElement, period);
+			}
+		}
+		return Arrays.asList(result);
+	}
+
+	// holds the values of the dependencies for one period, by data id and data location id
+	private static class ValueCache {
+		// the data locations whose values are loaded, or null for all the data locations
+		final List<DataLocation> dataLocations;
+		final Map<Long, Map<Long, Value>> valuesByDataId = new HashMap<Long, Map<Long, Value>>();
+		
+		ValueCache(List<DataLocation> dataLocations) {
+			this.dataLocations = dataLocations;
+		}
+	}
+
+	// the cache is filled with the values of a data for the data locations of the cache the first
+	// time that data is looked up, the data is not loaded
+	private Value findInCache(ValueCache cache, Long dataId, Class<? extends DataValue> valueClass, DataLocation dataLocation, Period period) {
 		if (cache == null) {
-			return valueService.getDataElementValue(data, dataLocation, period);
+			DataValue dataValue = valueService.getDataElementValue(dataId, valueClass, dataLocation, period);
+			return dataValue==null?null:dataValue.getValue();
 		}
 		else {
-			if (!cache.containsKey(data)) {
-				if (log.isDebugEnabled()) log.debug("filling cache for data: "+data);
+			if (!cache.valuesByDataId.containsKey(dataId)) {
+				if (log.isDebugEnabled()) log.debug("filling cache for data: "+dataId);
 
-				List<S> values = valueService.listDataValues(data, null, period, new HashMap());
-				Map<CalculationLocation, S> locationMap = new HashMap<CalculationLocation, S>();
-				for (S value : values) {
-					locationMap.put(value.getLocation(), value);
+				List<? extends DataValue> values = cache.dataLocations == null ? 
+						valueService.listDataValues(dataId, valueClass, period) : 
+						valueService.listDataValues(dataId, valueClass, period, cache.dataLocations);
+				Map<Long, Value> locationMap = new HashMap<Long, Value>(values.size());
+				for (DataValue value : values) {
+					locationMap.put(value.getLocation().getId(), value.getValue());
 					sessionFactory.getCurrentSession().evict(value);
 				}
-				cache.put(data, locationMap);
+				cache.valuesByDataId.put(dataId, locationMap);
 				
-				if (log.isDebugEnabled()) log.debug("done filling cache for data: "+data);
+				if (log.isDebugEnabled()) log.debug("done filling cache for data: "+dataId);
 			}
 			else {
-				if (log.isDebugEnabled()) log.debug("found values in cache for data: "+data);	
+				if (log.isDebugEnabled()) log.debug("found values in cache for data: "+dataId);	
 			}
-			return cache.get(data).get(dataLocation);
+			return cache.valuesByDataId.get(dataId).get(dataLocation.getId());
 		}
 	}
 
 	// location has to be a dataLocation
-	private <T extends DataElement<S>, S extends DataValue> StatusValuePair getExpressionStatusValuePair(String expression, Type type, Period period, DataLocation dataLocation, Class<T> clazz, Map cache) {
-		if (expressionLog.isInfoEnabled()) expressionLog.info("getting expression status-value for: expression={"+expression+"}, type={"+type+"}, period={"+period+"}, dataLocation={"+dataLocation+"}");
+	private <T extends DataElement<S>, S extends DataValue> StatusValuePair getExpressionStatusValuePair(String expression, Type type, Period period, DataLocation dataLocation, Class<T> clazz, ValueCache cache) {
+		return getExpressionStatusValuePairs(expression, type, period, Collections.singletonList(dataLocation), clazz, cache).get(0);
+	}
+	
+	// evaluates the expression for all the data locations at once, the result is in the same order as the data locations
+	private <T extends DataElement<S>, S extends DataValue> List<StatusValuePair> getExpressionStatusValuePairs(String expression, Type type, Period period, List<DataLocation> dataLocations, Class<T> clazz, ValueCache cache) {
+		if (expressionLog.isInfoEnabled()) expressionLog.info("getting expression status-values for: expression={"+expression+"}, type={"+type+"}, period={"+period+"}, dataLocations={"+dataLocations+"}");
 		
-		if (log.isDebugEnabled())log.debug("getExpressionStatusValuePair(expression="+expression+", type="+type+", period="+period+", dataLocation="+dataLocation+", clazz="+clazz);
+		if (log.isDebugEnabled())log.debug("getExpressionStatusValuePairs(expression="+expression+", type="+type+", period="+period+", dataLocations="+dataLocations.size()+", clazz="+clazz);
 		
-		StatusValuePair statusValuePair = new StatusValuePair();
+		List<StatusValuePair> result = new ArrayList<StatusValuePair>();
 		if (expression == null || expression.trim().isEmpty()) {
-			statusValuePair.status = Status.MISSING_EXPRESSION;
-			statusValuePair.value = Value.NULL_INSTANCE();
+			for (int i = 0; i < dataLocations.size(); i++) {
+				StatusValuePair statusValuePair = new StatusValuePair();
+				statusValuePair.status = Status.MISSING_EXPRESSION;
+				statusValuePair.value = Value.NULL_INSTANCE();
+				result.add(statusValuePair);
+			}
 		}
 		else {
-			Map<String, T> datas = getDataInExpression(expression, clazz);
-			if (hasNullValues(datas.values())) {
+			ExpressionMetadata metadata = getExpressionMetadata(expression);
+			Map<String, Long> dataIds = getDataIdsInExpression(metadata, clazz);
+			if (hasNullValues(dataIds.values())) {
 				if (expressionLog.isInfoEnabled()) expressionLog.info("data elements are missing");
-				statusValuePair.value = Value.NULL_INSTANCE();
-				statusValuePair.status = Status.MISSING_DATA_ELEMENT;
+				for (int i = 0; i < dataLocations.size(); i++) {
+					StatusValuePair statusValuePair = new StatusValuePair();
+					statusValuePair.value = Value.NULL_INSTANCE();
+					statusValuePair.status = Status.MISSING_DATA_ELEMENT;
+					result.add(statusValuePair);
+				}
 			}
 			else {
-				Map<String, Value> valueMap = new HashMap<String, Value>();
-				Map<String, Type> typeMap = new HashMap<String, Type>();
+				Map<String, Type> typeMap = metadata.getTypes();
 				
-				for (Entry<String, T> entry : datas.entrySet()) {
-					DataValue dataValue = findInCache(cache, entry.getValue(), dataLocation, period);
-					Value value = dataValue==null?null:dataValue.getValue();
-					if (value == null) value = Value.NULL_INSTANCE();
-					valueMap.put(entry.getValue().getId().toString(), value);
-					typeMap.put(entry.getValue().getId().toString(), entry.getValue().getType());					
+				List<Map<String, Value>> bindings = new ArrayList<Map<String, Value>>();
+				for (DataLocation dataLocation : dataLocations) {
+					Map<String, Value> valueMap = new HashMap<String, Value>();
+					for (Entry<String, Long> entry : dataIds.entrySet()) {
+						Value value = findInCache(cache, entry.getValue(), metadata.getValueClass(entry.getKey()), dataLocation, period);
+						if (value == null) value = Value.NULL_INSTANCE();
+						valueMap.put(entry.getValue().toString(), value);
+					}
+					if (expressionLog.isTraceEnabled()) expressionLog.trace("values and types: dataLocation={"+dataLocation+"}, valueMap={"+valueMap+"}, typeMap={"+typeMap+"}");
+					bindings.add(valueMap);
 				}
-				if (expressionLog.isTraceEnabled()) expressionLog.trace("values and types: valueMap={"+valueMap+"}, typeMap={"+typeMap+"}");
 				
-				try {
-					if (expressionLog.isInfoEnabled()) expressionLog.info("no null values found, evaluating expression");
-					statusValuePair.value = jaqlService.evaluate(expression, type, valueMap, typeMap);
-					statusValuePair.status = Status.VALID;
-				} catch (IllegalArgumentException e) {
-					if (expressionLog.isErrorEnabled()) expressionLog.error("expression={"+expression+"}", e);
-					if (expressionLog.isTraceEnabled()) expressionLog.trace("type={"+type+"}, period={"+period+"}, dataLocation={"+dataLocation+"}, valueMap={"+valueMap+"}, typeMap={"+typeMap+"}");
-					if (log.isWarnEnabled()) log.warn("there was an error evaluating expression: "+expression, e);
-					statusValuePair.value = Value.NULL_INSTANCE();
-					statusValuePair.status = Status.ERROR;
+				if (expressionLog.isInfoEnabled()) expressionLog.info("no null values found, evaluating expression");
+				StatusValuePair[] statusValuePairs = evaluateBatch(expression, type, bindings, typeMap);
+				for (int i = 0; i < statusValuePairs.length; i++) {
+					if (statusValuePairs[i].status == Status.ERROR) {
+						if (expressionLog.isErrorEnabled()) expressionLog.error("expression={"+expression+"}");
+						if (expressionLog.isTraceEnabled()) expressionLog.trace("type={"+type+"}, period={"+period+"}, dataLocation={"+dataLocations.get(i)+"}, valueMap={"+bindings.get(i)+"}, typeMap={"+typeMap+"}");
+					}
+					result.add(statusValuePairs[i]);
 				}
 			}
 		}
-		if (expressionLog.isInfoEnabled()) expressionLog.info("returning result={"+statusValuePair+"}");
-		return statusValuePair;
+		if (expressionLog.isInfoEnabled()) expressionLog.info("returning result={"+result+"}");
+		return result;
 	}
 
+	// the values have been read from the session beforehand, only the evaluation is done in parallel
+	private StatusValuePair[] evaluateBatch(String expression, Type type, List<Map<String, Value>> bindings, Map<String, Type> typeMap) {
+		ForkJoinPool pool = evaluationPool;
+		if (pool == null || bindings.size() < 2) return jaqlService.evaluateBatch(expression, type, bindings, typeMap);
+		
+		Map<String, String> types = new HashMap<String, String>();
+		for (Entry<String, Type> entry : typeMap.entrySet()) types.put(entry.getKey(), entry.getValue().getJsonValue());
+		
+		// a few tasks per thread so that threads finishing early can steal work
+		int taskSize = Math.max(1, bindings.size() / (pool.getParallelism() * 4));
+		return pool.invoke(new EvaluationTask(expression, type.getJsonValue(), types, Collections.unmodifiableList(bindings), taskSize));
+	}
+	
 	/** 
 	 * Returns false if the given expression is invalid, true otherwise.
 	 * 
@@ -286,67 +518,132 @@ public class ExpressionService {
     public <T extends Data<?>> Map<String, T> getDataInExpression(String expression, Class<T> clazz) {
     	if (log.isTraceEnabled()) log.trace("getDataInExpression(expression="+expression+", clazz="+clazz+")");
     	
-        Map<String, T> dataInExpression = new HashMap<String, T>();
-    	Set<String> placeholders = getVariables(expression);
-
-    	for (String placeholder : placeholders) {
-            T data = null;
-            try {
-            	data = dataService.getData(Long.parseLong(placeholder.replace("$", "")), clazz);
-            }
-            catch (NumberFormatException e) {
-            	if (log.isErrorEnabled()) log.error("wrong format for dataelement: "+placeholder);
-            }
-
-            if (data != null && !clazz.isAssignableFrom(data.getClass())) {
-            	if (log.isWarnEnabled()) log.warn("the data class "+data.getClass()+" is not assignable from the specified class: "+clazz);
-            	data = null;
-            }
-        	dataInExpression.put(placeholder, data);
-        }
+    	Map<String, T> dataInExpression = new HashMap<String, T>();
+    	ExpressionMetadata metadata = getExpressionMetadata(expression);
+    	for (Entry<String, Long> entry : getDataIdsInExpression(metadata, clazz).entrySet()) {
+    		T data = null;
+    		if (entry.getValue() != null) data = clazz.cast(unwrap(dataService.getData(entry.getValue(), (Class) metadata.getDataClass(entry.getKey()))));
+    		dataInExpression.put(entry.getKey(), data);
+    	}
     	
     	if (log.isTraceEnabled()) log.trace("getDataInExpression()="+dataInExpression);
         return dataInExpression;
     }
+    
+	/**
+	 * Same as {@link #getDataInExpression(String, Class)}, but returns the ids of the data instead of the data,
+	 * the data are not loaded.
+	 * 
+	 * @param expression the expression from which to retrieve the data ids
+	 * @param clazz the clazz for which to retrieve the data ids
+	 * @return a map of the data ids
+	 */
+	public <T extends Data<?>> Map<String, Long> getDataIdsInExpression(String expression, Class<T> clazz) {
+		return getDataIdsInExpression(getExpressionMetadata(expression), clazz);
+	}
 	
+	private static <T extends Data<?>> Map<String, Long> getDataIdsInExpression(ExpressionMetadata metadata, Class<T> clazz) {
+		Map<String, Long> dataIds = new HashMap<String, Long>();
+		for (String variable : metadata.getVariables()) {
+			Long dataId = null;
+			Class<? extends Data> dataClass = metadata.getDataClass(variable);
+			if (dataClass != null) {
+				if (clazz.isAssignableFrom(dataClass)) dataId = metadata.getDataId(variable);
+				else if (log.isDebugEnabled()) log.debug("the data class "+dataClass+" is not assignable from the specified class: "+clazz);
+			}
+			dataIds.put(variable, dataId);
+		}
+		return dataIds;
+	}
+    
 	/**
-	 * Returns true if there are circular dependencies in the given normalized data element and false
-	 * if not. A circular dependency happens when an expression in a normalized data element references
-	 * itself either directly or one of the normalized data elements it uses references it.
-	 *
-	 * @param dataElement the normalized data element for which to check for circular dependency
-	 * @return true if there are circular dependencies in the given normalized data element and false
-	 * if not
+	 * Returns the metadata of the given expression: its variables and the id, class, value class
+	 * and type of the data they refer to.
+	 * 
+	 * Expressions are only parsed and resolved once, the metadata is then served from the cache
+	 * without loading the data, until one of the data it refers to is changed or deleted, see
+	 * {@link #dataChanged(Long)}.
+	 * Expressions referring to data that does not exist are resolved again every time.
+	 * 
+	 * @param expression the expression
+	 * @return the metadata of the expression
 	 */
 	@Transactional(readOnly=true)
-	public boolean hasCircularDependency(NormalizedDataElement dataElement) {
-		List<NormalizedDataElement> path = new ArrayList<NormalizedDataElement>();
-		path.add(dataElement);
-		for (DataLocationType dataLocationType : locationService.listTypes()) {
-			for (Period period : periodService.listPeriods()) {
-				if (hasCircularDependency(dataElement, period, dataLocationType, new ArrayList<NormalizedDataElement>(path))) return true; 
+	public ExpressionMetadata getExpressionMetadata(String expression) {
+		ExpressionMetadata metadata = expression == null ? null : expressionMetadata.get(expression);
+		if (metadata == null) {
+			// metadata resolved while a data is being changed is not kept, it might be outdated
+			long generation = dataGeneration.get();
+			metadata = resolveExpression(expression);
+			if (expression != null && metadata.isResolved()) {
+				synchronized (expressionMetadataByDataId) {
+					if (dataGeneration.get() == generation) {
+						for (Long dataId : metadata.getDataIds()) getExpressionMetadataByDataId(dataId).add(metadata);
+						expressionMetadata.put(expression, metadata);
+					}
+				}
 			}
 		}
-		return false;
+		return metadata;
 	}
 	
-	private boolean hasCircularDependency(NormalizedDataElement dataElement, Period period, DataLocationType locationType, List<NormalizedDataElement> pathToExpression) {
-		String expression = dataElement.getExpression(period, locationType.getCode());
-		if (expression == null) return false;
-		Map<String, NormalizedDataElement> dataElementsInExpression = getDataInExpression(expression, NormalizedDataElement.class);
-		for (NormalizedDataElement dependency : dataElementsInExpression.values()) {
-			if (dependency != null) {
-				if (pathToExpression.contains(dependency)) return true;
-				else {
-					List<NormalizedDataElement> pathToExpressionWithDependency = new ArrayList<NormalizedDataElement>(pathToExpression);
-					pathToExpressionWithDependency.add(dependency);
-					if (hasCircularDependency(dependency, period, locationType, pathToExpressionWithDependency)) return true;
-				}
+	private Set<ExpressionMetadata> getExpressionMetadataByDataId(Long dataId) {
+		Set<ExpressionMetadata> metadata = expressionMetadataByDataId.get(dataId);
+		if (metadata == null) {
+			expressionMetadataByDataId.putIfAbsent(dataId, Collections.newSetFromMap(new ConcurrentHashMap<ExpressionMetadata, Boolean>()));
+			metadata = expressionMetadataByDataId.get(dataId);
+		}
+		return metadata;
+	}
+	
+	/**
+	 * Discards the metadata of the expressions referring to the given data, called by {@link DataChangeListener}
+	 * when the data was added, changed or deleted. The metadata does not depend on the values of the data, only
+	 * on its class and type. Only the metadata of expressions referring to existing data is cached, so nothing
+	 * is discarded when a data is added.
+	 * 
+	 * @param dataId the id of the data that changed
+	 */
+	public void dataChanged(Long dataId) {
+		if (log.isDebugEnabled()) log.debug("dataChanged(dataId="+dataId+")");
+		synchronized (expressionMetadataByDataId) {
+			dataGeneration.incrementAndGet();
+			// the metadata is removed from the index of its other data by the eviction listener
+			Set<ExpressionMetadata> metadata = expressionMetadataByDataId.remove(dataId);
+			if (metadata != null) {
+				for (ExpressionMetadata cached : new ArrayList<ExpressionMetadata>(metadata)) expressionMetadata.remove(cached.getExpression());
 			}
 		}
-		return false;
 	}
-
+	
+	private ExpressionMetadata resolveExpression(String expression) {
+		ExpressionMetadata metadata = new ExpressionMetadata(expression, getVariables(expression));
+		for (String placeholder : metadata.getVariables()) {
+			Data<?> data = null;
+			try {
+				data = unwrap(dataService.getData(Long.parseLong(placeholder.substring(1)), Data.class));
+			}
+			catch (NumberFormatException e) {
+				if (log.isErrorEnabled()) log.error("wrong format for dataelement: "+placeholder);
+			}
+			
+			if (data != null) metadata.addData(placeholder, data.getId(), data.getClass(), data.getValueClass(), data.getType());
+		}
+		return metadata;
+	}
+	
+	private static Data<?> unwrap(Data<?> data) {
+		if (data instanceof HibernateProxy) return (Data<?>) ((HibernateProxy) data).getHibernateLazyInitializer().getImplementation();
+		return data;
+	}
+	
+	/**
+	 * Returns the cache holding the expression metadata, exposed for monitoring.
+	 */
+	public BoundedCache<String, ExpressionMetadata> getExpressionMetadataCache() {
+		return expressionMetadata;
+	}
+	
 	/**
 	 * Returns all the data variables found in the given expression. A data variable is 
 	 * when a data is referred to using the $<dataId> notation. Returns a set of 
@@ -359,7 +656,7 @@ public class ExpressionService {
     	Set<String> placeholders = new HashSet<String>();
         if ( expression != null ) {
         	placeholders = new HashSet<String>();
-            final Matcher matcher = Pattern.compile("\\$\\d+").matcher( expression );
+            final Matcher matcher = VARIABLE_PATTERN.matcher( expression );
             
             while (matcher.find())  {
             	String match = matcher.group();
@@ -383,7 +680,7 @@ public class ExpressionService {
         String result = expression;
         for (Entry<String, String> entry : mapping.entrySet()) {
         	// TODO validate key
-        	if (!Pattern.matches("\\$\\d+", entry.getKey())) throw new IllegalArgumentException("key does not match expression pattern: "+entry);
+        	if (!VARIABLE_PATTERN.matcher(entry.getKey()).matches()) throw new IllegalArgumentException("key does not match expression pattern: "+entry);
         	result = result.replaceAll("\\"+entry.getKey()+"(\\z|\\D|$)", entry.getValue().replace("$", "\\$")+"$1");
 		}
         return result;
@@ -419,5 +716,25 @@ public class ExpressionService {
 	public void setSessionFactory(SessionFactory sessionFactory) {
 		this.sessionFactory = sessionFactory;
 	}
+
+	public void setDataChangeListener(DataChangeListener dataChangeListener) {
+		dataChangeListener.addHandler(this);
+	}
+	
+	public int getParallelism() {
+		ForkJoinPool pool = evaluationPool;
+		return pool == null ? 1 : pool.getParallelism();
+	}
+	
+	/**
+	 * Sets the number of threads used to evaluate an expression over many data locations,
+	 * 1 or less evaluates sequentially in the calling thread. The results are the same in
+	 * both cases.
+	 */
+	public void setParallelism(int parallelism) {
+		ForkJoinPool previous = evaluationPool;
+		evaluationPool = parallelism > 1 ? new ForkJoinPool(parallelism) : null;
+		if (previous != null) previous.shutdown();
+	}
 	
 }
@@ -0,0 +1,60 @@
+package org.chai.kevin.value;
+
+import java.util.Iterator;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A {@link RefreshUnitQueue} in memory, the units can only be run by {@link RefreshUnitWorker}s of
+ * the same node. Used when running a single node and in tests.
+ */
+public class LocalRefreshUnitQueue implements RefreshUnitQueue {
+
+	private final BlockingQueue<RefreshUnit> units = new LinkedBlockingQueue<RefreshUnit>();
+	// by run id
+	private final ConcurrentMap<String, BlockingQueue<RefreshUnitResult>> results = new ConcurrentHashMap<String, BlockingQueue<RefreshUnitResult>>();
+
+	public void publish(RefreshUnit unit) {
+		getResults(unit.getRunId());
+		units.add(unit);
+	}
+
+	public RefreshUnit claim(long timeout) throws InterruptedException {
+		return units.poll(timeout, TimeUnit.MILLISECONDS);
+	}
+
+	// units are never claimed again
+	public boolean renew(RefreshUnit unit) {
+		return true;
+	}
+
+	public void complete(RefreshUnitResult result) {
+		// the results of a refresh that ended are dropped
+		BlockingQueue<RefreshUnitResult> runResults = results.get(result.getUnit().getRunId());
+		if (runResults != null) runResults.add(result);
+	}
+
+	public RefreshUnitResult takeResult(String runId, long timeout) throws InterruptedException {
+		return getResults(runId).poll(timeout, TimeUnit.MILLISECONDS);
+	}
+
+	public void clear(String runId) {
+		for (Iterator<RefreshUnit> iterator = units.iterator(); iterator.hasNext();) {
+			if (iterator.next().getRunId().equals(runId)) iterator.remove();
+		}
+		results.remove(runId);
+	}
+
+	private BlockingQueue<RefreshUnitResult> getResults(String runId) {
+		BlockingQueue<RefreshUnitResult> runResults = results.get(runId);
+		if (runResults == null) {
+			results.putIfAbsent(runId, new LinkedBlockingQueue<RefreshUnitResult>());
+			runResults = results.get(runId);
+		}
+		return runResults;
+	}
+
+}
@@ -0,0 +1,140 @@
+package org.chai.kevin.value;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.chai.kevin.Period;
+import org.chai.kevin.data.NormalizedDataElement;
+import org.chai.location.DataLocation;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.StatelessSession;
+
+/**
+ * Writes the calculated values of a normalized data element for one period in batches.
+ *
+ * For each batch, the stored values of the batch's data locations are read with one query.
+ * Values whose value and status did not change are not updated, only their timestamp is
+ * set with one statement for the whole batch. The other values are updated or inserted and
+ * the session is flushed, which lets Hibernate send them as JDBC batches when
+ * hibernate.jdbc.batch_size is set. Written values are then evicted from the session.
+ *
+ * When a stateless session is given, the stored values are read and written through it instead,
+ * they are never attached to the current session and nothing is kept once a batch is written.
+ * Statements are then sent one at a time.
+ *
+ * Must be used in a transaction, and by one thread only.
+ */
+class NormalizedDataElementValueWriter {
+
+	private static final Log log = LogFactory.getLog(NormalizedDataElementValueWriter.class);
+
+	private final ValueService valueService;
+	private final SessionFactory sessionFactory;
+	private final StatelessSession statelessSession;
+	private final NormalizedDataElement normalizedDataElement;
+	private final Period period;
+	private final int batchSize;
+
+	// keyed by data location id
+	private final Map<Long, NormalizedDataElementValue> pendingValues = new LinkedHashMap<Long, NormalizedDataElementValue>();
+	private final Map<Long, DataLocation> pendingLocations = new LinkedHashMap<Long, DataLocation>();
+
+	private long changedCount = 0;
+	private long unchangedCount = 0;
+
+	/**
+	 * @param statelessSession the stateless session to read and write the values with, opened on the connection of the current
+	 * 	session, or null to use the current session
+	 */
+	NormalizedDataElementValueWriter(ValueService valueService, SessionFactory sessionFactory, StatelessSession statelessSession, NormalizedDataElement normalizedDataElement, Period period, int batchSize) {
+		this.valueService = valueService;
+		this.sessionFactory = sessionFactory;
+		this.statelessSession = statelessSession;
+		this.normalizedDataElement = normalizedDataElement;
+		this.period = period;
+		this.batchSize = Math.max(1, batchSize);
+	}
+
+	/**
+	 * Adds the given value to the current batch, the batch is written when full.
+	 */
+	void write(DataLocation dataLocation, NormalizedDataElementValue newValue) {
+		pendingValues.put(dataLocation.getId(), newValue);
+		pendingLocations.put(dataLocation.getId(), dataLocation);
+		if (pendingValues.size() >= batchSize) flush();
+	}
+
+	/**
+	 * Writes the current batch.
+	 */
+	void flush() {
+		if (pendingValues.isEmpty()) return;
+		if (log.isDebugEnabled()) log.debug("flush(normalizedDataElement="+normalizedDataElement+", period="+period+", size="+pendingValues.size()+")");
+
+		Session session = sessionFactory.getCurrentSession();
+		Date timestamp = new Date();
+		List<Long> unchangedIds = new ArrayList<Long>();
+		List<NormalizedDataElementValue> writtenValues = new ArrayList<NormalizedDataElementValue>();
+
+		List<NormalizedDataElementValue> oldValues = statelessSession == null ? 
+				valueService.listDataElementValues(normalizedDataElement, pendingLocations.values(), period) :
+				valueService.listDataElementValues(statelessSession, normalizedDataElement, pendingLocations.values(), period);
+		for (NormalizedDataElementValue oldValue : oldValues) {
+			NormalizedDataElementValue newValue = pendingValues.remove(oldValue.getLocation().getId());
+			if (newValue == null) continue;
+
+			if (hasSameValue(oldValue, newValue)) unchangedIds.add(oldValue.getId());
+			else {
+				oldValue.setValue(newValue.getValue());
+				oldValue.setStatus(newValue.getStatus());
+				oldValue.setTimestamp(timestamp);
+				if (statelessSession != null) statelessSession.update(oldValue);
+				changedCount++;
+			}
+			writtenValues.add(oldValue);
+		}
+		for (NormalizedDataElementValue newValue : pendingValues.values()) {
+			newValue.setTimestamp(timestamp);
+			if (statelessSession != null) statelessSession.insert(newValue);
+			else session.save(newValue);
+			writtenValues.add(newValue);
+			changedCount++;
+		}
+		pendingValues.clear();
+		pendingLocations.clear();
+
+		if (!unchangedIds.isEmpty()) valueService.updateTimestamps(NormalizedDataElementValue.class, unchangedIds, timestamp);
+		unchangedCount += unchangedIds.size();
+
+		if (statelessSession == null) {
+			session.flush();
+			for (NormalizedDataElementValue writtenValue : writtenValues) session.evict(writtenValue);
+		}
+	}
+
+	/**
+	 * Returns the number of values inserted or updated so far.
+	 */
+	long getChangedCount() {
+		return changedCount;
+	}
+
+	/**
+	 * Returns the number of values whose value and status did not change so far.
+	 */
+	long getUnchangedCount() {
+		return unchangedCount;
+	}
+
+	static boolean hasSameValue(NormalizedDataElementValue oldValue, NormalizedDataElementValue newValue) {
+		return oldValue.getValueString() != null && oldValue.getValueString().equals(newValue.getValueString())
+			&& oldValue.getStatus() == newValue.getStatus();
+	}
+
+}
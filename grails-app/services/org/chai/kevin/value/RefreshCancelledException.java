@@ -0,0 +1,15 @@
+package org.chai.kevin.value;
+
+/**
+ * Thrown by the refresh methods of {@link RefreshValueService} when the refresh was cancelled, either
+ * through {@link RefreshControl#cancel()} or by aborting its progress.
+ */
+public class RefreshCancelledException extends IllegalStateException {
+
+	private static final long serialVersionUID = 1L;
+
+	public RefreshCancelledException(String message) {
+		super(message);
+	}
+
+}
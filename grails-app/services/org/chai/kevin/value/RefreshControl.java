@@ -0,0 +1,76 @@
+package org.chai.kevin.value;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.chai.task.Progress;
+
+/**
+ * Pauses and cancels the refreshes of {@link RefreshValueService}. The refreshes check it between
+ * units, one data and period, see {@link #await(Progress)}, so a unit that started is always
+ * finished and committed:
+ * - a paused refresh waits before its next unit, without holding a database connection, and
+ *   goes on from there once resumed,
+ * - a cancelled refresh waits for the units it is running and throws a {@link RefreshCancelledException}.
+ *   A data is only marked as refreshed once all its periods are, so the data that were not completely
+ *   refreshed keep their previous refreshed date and are refreshed again by the next refresh, which
+ *   skips the periods already done, see {@link RefreshCheckpoint}.
+ *
+ * A single refresh can also be cancelled by aborting its progress.
+ */
+public class RefreshControl implements RefreshControlMBean {
+
+	private static final Log log = LogFactory.getLog(RefreshControl.class);
+
+	// in milliseconds
+	private static final long ABORT_CHECK_INTERVAL = 1000;
+
+	// guarded by this
+	private boolean paused = false;
+	private final Set<Progress> runs = new HashSet<Progress>();
+
+	synchronized void register(Progress run) {
+		runs.add(run);
+	}
+
+	synchronized void unregister(Progress run) {
+		runs.remove(run);
+	}
+
+	/**
+	 * Waits while paused, then throws a {@link RefreshCancelledException} if the given run was cancelled.
+	 */
+	synchronized void await(Progress run) throws InterruptedException {
+		// a progress can be aborted without notifying, it is checked again regularly
+		while (paused && !run.isAborted()) wait(ABORT_CHECK_INTERVAL);
+		if (run.isAborted()) throw new RefreshCancelledException("refresh cancelled: "+run);
+	}
+
+	public synchronized void pause() {
+		if (log.isInfoEnabled()) log.info("pausing refreshes, running: "+runs.size());
+		paused = true;
+	}
+
+	public synchronized void resume() {
+		if (log.isInfoEnabled()) log.info("resuming refreshes, running: "+runs.size());
+		paused = false;
+		notifyAll();
+	}
+
+	public synchronized boolean isPaused() {
+		return paused;
+	}
+
+	public synchronized void cancel() {
+		if (log.isInfoEnabled()) log.info("cancelling refreshes, running: "+runs.size());
+		for (Progress run : runs) run.abort();
+		notifyAll();
+	}
+
+	public synchronized int getRunningCount() {
+		return runs.size();
+	}
+
+}
@@ -0,0 +1,27 @@
+package org.chai.kevin.value;
+
+/**
+ * Management interface of {@link RefreshControl}.
+ */
+public interface RefreshControlMBean {
+
+	/**
+	 * Pauses the refreshes in progress and the ones started while paused, they wait before their next unit.
+	 */
+	public void pause();
+
+	public void resume();
+
+	public boolean isPaused();
+
+	/**
+	 * Cancels the refreshes in progress, they stop before their next unit. Refreshes started afterwards are not cancelled.
+	 */
+	public void cancel();
+
+	/**
+	 * Returns the number of refreshes in progress.
+	 */
+	public int getRunningCount();
+
+}
@@ -0,0 +1,417 @@
+package org.chai.kevin.value;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.chai.kevin.data.Data;
+import org.chai.kevin.util.BoundedCache;
+import org.chai.task.Progress;
+
+/**
+ * Keeps track of what the refresh does: for each normalized data element and calculation, the
+ * number of rows evaluated and written, the time spent evaluating them and in the database, and
+ * the number of errors, along with the progress of the run, from which a rate and an estimated
+ * time remaining are derived.
+ *
+ * A run starts when one of the refresh methods of {@link RefreshValueService} is called and ends
+ * when it returns. Only the last run is kept, it is exposed over JMX through {@link RefreshMetricsMBean}
+ * and a {@link RefreshReport} is saved when it ends. Values refreshed while a run is in progress
+ * are counted in that run.
+ *
+ * The cache hit ratio is the one of the JAQL result cache over the whole run, the cache being
+ * shared it cannot be told apart between data refreshed at the same time.
+ */
+public class RefreshMetrics implements RefreshMetricsMBean {
+
+	private static final int SLOWEST_DATA_SIZE = 10;
+
+	public static class DataMetrics {
+		private final Long dataId;
+		private final String code;
+		private final AtomicLong rowsEvaluated = new AtomicLong();
+		private final AtomicLong rowsWritten = new AtomicLong();
+		private final AtomicLong evaluationTime = new AtomicLong();
+		private final AtomicLong databaseTime = new AtomicLong();
+		private final AtomicLong errorCount = new AtomicLong();
+
+		DataMetrics(Long dataId, String code) {
+			this.dataId = dataId;
+			this.code = code;
+		}
+
+		public Long getDataId() {
+			return dataId;
+		}
+
+		public String getCode() {
+			return code;
+		}
+
+		public long getRowsEvaluated() {
+			return rowsEvaluated.get();
+		}
+
+		public long getRowsWritten() {
+			return rowsWritten.get();
+		}
+
+		/**
+		 * Returns the time spent evaluating the values, in milliseconds, including the time spent reading
+		 * the values of the dependencies.
+		 */
+		public long getEvaluationTime() {
+			return evaluationTime.get() / 1000000;
+		}
+
+		/**
+		 * Returns the time spent writing the values, in milliseconds.
+		 */
+		public long getDatabaseTime() {
+			return databaseTime.get() / 1000000;
+		}
+
+		public long getErrorCount() {
+			return errorCount.get();
+		}
+
+		@Override
+		public String toString() {
+			return code + " [id=" + dataId + ", rowsEvaluated=" + getRowsEvaluated() + ", rowsWritten=" + getRowsWritten()
+					+ ", evaluationTime=" + getEvaluationTime() + "ms, databaseTime=" + getDatabaseTime() + "ms, errorCount=" + getErrorCount() + "]";
+		}
+	}
+
+	/**
+	 * A refresh run. It is also the progress the refresh updates, the units are then the same as those
+	 * of the progress given when starting the run, to which all the calls are forwarded.
+	 */
+	public class Run implements Progress {
+		private final String name;
+		private final Progress progress;
+		private final Date startDate = new Date();
+		private final long start = System.nanoTime();
+		private final long cacheHitCount;
+		private final long cacheMissCount;
+
+		private final AtomicLong completedUnits = new AtomicLong();
+		private final AtomicLong totalUnits = new AtomicLong();
+		private final ConcurrentMap<Long, DataMetrics> dataMetrics = new ConcurrentHashMap<Long, DataMetrics>();
+
+		private volatile Date endDate = null;
+		private volatile long end;
+		private volatile boolean failed = false;
+		private volatile boolean aborted = false;
+
+		Run(String name, Progress progress) {
+			this.name = name;
+			this.progress = progress;
+			this.cacheHitCount = cache == null ? 0 : cache.getHitCount();
+			this.cacheMissCount = cache == null ? 0 : cache.getMissCount();
+		}
+
+		public void incrementProgress() {
+			completedUnits.incrementAndGet();
+			if (progress != null) progress.incrementProgress();
+		}
+
+		public void incrementProgress(Long increment) {
+			completedUnits.addAndGet(increment);
+			if (progress != null) progress.incrementProgress(increment);
+		}
+
+		public Double retrievePercentage() {
+			if (progress != null) return progress.retrievePercentage();
+			long total = totalUnits.get();
+			return total == 0 ? null : completedUnits.get() * 100d / total;
+		}
+
+		public void setMaximum(Long max) {
+			totalUnits.set(max);
+			if (progress != null) progress.setMaximum(max);
+		}
+
+		public void abort() {
+			aborted = true;
+			if (progress != null) progress.abort();
+		}
+
+		/**
+		 * Returns true if the run was cancelled, the refresh then stops before its next unit, see {@link RefreshControl}.
+		 */
+		public boolean isAborted() {
+			return aborted || (progress != null && progress.isAborted());
+		}
+
+		void record(Data<?> data, long rowsEvaluated, long rowsWritten, long evaluationTime, long databaseTime, long errorCount) {
+			DataMetrics metrics = dataMetrics.get(data.getId());
+			if (metrics == null) {
+				dataMetrics.putIfAbsent(data.getId(), new DataMetrics(data.getId(), data.getCode()));
+				metrics = dataMetrics.get(data.getId());
+			}
+			metrics.rowsEvaluated.addAndGet(rowsEvaluated);
+			metrics.rowsWritten.addAndGet(rowsWritten);
+			metrics.evaluationTime.addAndGet(evaluationTime);
+			metrics.databaseTime.addAndGet(databaseTime);
+			metrics.errorCount.addAndGet(errorCount);
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public Date getStartDate() {
+			return startDate;
+		}
+
+		public Date getEndDate() {
+			return endDate;
+		}
+
+		public boolean isRunning() {
+			return endDate == null;
+		}
+
+		public boolean isFailed() {
+			return failed;
+		}
+
+		public long getCompletedUnits() {
+			return completedUnits.get();
+		}
+
+		public long getTotalUnits() {
+			return totalUnits.get();
+		}
+
+		/**
+		 * Returns the time elapsed since the start of the run, or the duration of the run once it ended, in milliseconds.
+		 */
+		public long getElapsedTime() {
+			return ((isRunning() ? System.nanoTime() : end) - start) / 1000000;
+		}
+
+		public long getEstimatedTimeRemaining() {
+			if (!isRunning()) return 0;
+			long completed = completedUnits.get();
+			long total = totalUnits.get();
+			if (completed == 0 || total < completed) return -1;
+			return getElapsedTime() * (total - completed) / completed;
+		}
+
+		public double getCacheHitRatio() {
+			if (cache == null) return 0d;
+			long hits = cache.getHitCount() - cacheHitCount;
+			long requests = hits + cache.getMissCount() - cacheMissCount;
+			return requests <= 0 ? 0d : (double) hits / requests;
+		}
+
+		public List<DataMetrics> getDataMetrics() {
+			return new ArrayList<DataMetrics>(dataMetrics.values());
+		}
+
+		/**
+		 * Returns the metrics of the data that took the longest to refresh, slowest first.
+		 */
+		public List<DataMetrics> getSlowestDataMetrics() {
+			List<DataMetrics> result = getDataMetrics();
+			Collections.sort(result, new Comparator<DataMetrics>() {
+				@Override
+				public int compare(DataMetrics metrics1, DataMetrics metrics2) {
+					Long time1 = metrics1.evaluationTime.get() + metrics1.databaseTime.get();
+					Long time2 = metrics2.evaluationTime.get() + metrics2.databaseTime.get();
+					return time2.compareTo(time1);
+				}
+			});
+			return result.subList(0, Math.min(SLOWEST_DATA_SIZE, result.size()));
+		}
+
+		public RefreshReport createReport(String applicationVersion) {
+			RefreshReport report = new RefreshReport();
+			report.setName(name);
+			report.setApplicationVersion(applicationVersion);
+			report.setStartDate(startDate);
+			report.setEndDate(endDate);
+			report.setFailed(failed);
+			report.setDataCount(dataMetrics.size());
+
+			long rowsEvaluated = 0, rowsWritten = 0, evaluationTime = 0, databaseTime = 0, errorCount = 0;
+			for (DataMetrics metrics : dataMetrics.values()) {
+				rowsEvaluated += metrics.getRowsEvaluated();
+				rowsWritten += metrics.getRowsWritten();
+				evaluationTime += metrics.getEvaluationTime();
+				databaseTime += metrics.getDatabaseTime();
+				errorCount += metrics.getErrorCount();
+			}
+			report.setRowsEvaluated(rowsEvaluated);
+			report.setRowsWritten(rowsWritten);
+			report.setEvaluationTime(evaluationTime);
+			report.setDatabaseTime(databaseTime);
+			report.setErrorCount(errorCount);
+			report.setCacheHitRatio(getCacheHitRatio());
+
+			StringBuilder slowestData = new StringBuilder();
+			for (DataMetrics metrics : getSlowestDataMetrics()) slowestData.append(metrics).append('\n');
+			report.setSlowestData(slowestData.toString());
+			return report;
+		}
+
+		@Override
+		public String toString() {
+			return "Run [name=" + name + ", startDate=" + startDate + ", endDate=" + endDate + ", completedUnits=" + completedUnits + ", totalUnits=" + totalUnits + "]";
+		}
+	}
+
+	private volatile Run lastRun = null;
+	private BoundedCache<?, ?> cache = null;
+	// time the last refresh of one period of each data took, in nanoseconds
+	private final ConcurrentMap<Long, Long> periodTimes = new ConcurrentHashMap<Long, Long>();
+
+	/**
+	 * Starts a run, which becomes the last run.
+	 *
+	 * @param name what the run refreshes
+	 * @param progress the progress given to the refresh, or null
+	 * @return the run, to be used as the progress of the refresh
+	 */
+	Run startRun(String name, Progress progress) {
+		Run run = new Run(name, progress);
+		lastRun = run;
+		return run;
+	}
+
+	void finishRun(Run run, boolean failed) {
+		run.failed = failed;
+		run.end = System.nanoTime();
+		run.endDate = new Date();
+	}
+
+	/**
+	 * Records what was done for a data, it is counted in the last run if that run is still in progress.
+	 *
+	 * @param evaluationTime the time spent evaluating, in nanoseconds
+	 * @param databaseTime the time spent writing, in nanoseconds
+	 */
+	void record(Data<?> data, long rowsEvaluated, long rowsWritten, long evaluationTime, long databaseTime, long errorCount) {
+		// a data is recorded once for each period it is refreshed for
+		periodTimes.put(data.getId(), evaluationTime + databaseTime);
+		
+		Run run = lastRun;
+		if (run != null && run.isRunning()) run.record(data, rowsEvaluated, rowsWritten, evaluationTime, databaseTime, errorCount);
+	}
+
+	/**
+	 * Returns the time the last refresh of one period of the given data took, in milliseconds, or -1 if
+	 * the data was not refreshed since the application started.
+	 */
+	public long getPeriodTime(Long dataId) {
+		Long time = periodTimes.get(dataId);
+		return time == null ? -1 : time / 1000000;
+	}
+
+	/**
+	 * Returns the average of {@link #getPeriodTime(Long)} over all the data refreshed since the application
+	 * started, in milliseconds, or -1 if none was.
+	 */
+	public long getAveragePeriodTime() {
+		long total = 0, count = 0;
+		for (Long time : periodTimes.values()) {
+			total += time;
+			count++;
+		}
+		return count == 0 ? -1 : total / count / 1000000;
+	}
+
+	public Run getLastRun() {
+		return lastRun;
+	}
+
+	/**
+	 * Sets the cache whose hit ratio is reported, usually the JAQL result cache.
+	 */
+	public void setCache(BoundedCache<?, ?> cache) {
+		this.cache = cache;
+	}
+
+	public boolean isRunning() {
+		Run run = lastRun;
+		return run != null && run.isRunning();
+	}
+
+	public String getRunName() {
+		Run run = lastRun;
+		return run == null ? null : run.getName();
+	}
+
+	public Date getStartDate() {
+		Run run = lastRun;
+		return run == null ? null : run.getStartDate();
+	}
+
+	public long getCompletedUnits() {
+		Run run = lastRun;
+		return run == null ? 0 : run.getCompletedUnits();
+	}
+
+	public long getTotalUnits() {
+		Run run = lastRun;
+		return run == null ? 0 : run.getTotalUnits();
+	}
+
+	public long getRowsEvaluated() {
+		Run run = lastRun;
+		long result = 0;
+		if (run != null) {
+			for (DataMetrics metrics : run.getDataMetrics()) result += metrics.getRowsEvaluated();
+		}
+		return result;
+	}
+
+	public long getRowsWritten() {
+		Run run = lastRun;
+		long result = 0;
+		if (run != null) {
+			for (DataMetrics metrics : run.getDataMetrics()) result += metrics.getRowsWritten();
+		}
+		return result;
+	}
+
+	public double getRowsPerSecond() {
+		Run run = lastRun;
+		if (run == null || run.getElapsedTime() == 0) return 0d;
+		return getRowsEvaluated() * 1000d / run.getElapsedTime();
+	}
+
+	public long getEstimatedTimeRemaining() {
+		Run run = lastRun;
+		return run == null ? -1 : run.getEstimatedTimeRemaining();
+	}
+
+	public long getErrorCount() {
+		Run run = lastRun;
+		long result = 0;
+		if (run != null) {
+			for (DataMetrics metrics : run.getDataMetrics()) result += metrics.getErrorCount();
+		}
+		return result;
+	}
+
+	public double getCacheHitRatio() {
+		Run run = lastRun;
+		return run == null ? 0d : run.getCacheHitRatio();
+	}
+
+	public String[] getSlowestData() {
+		Run run = lastRun;
+		if (run == null) return new String[0];
+		List<String> result = new ArrayList<String>();
+		for (DataMetrics metrics : run.getSlowestDataMetrics()) result.add(metrics.toString());
+		return result.toArray(new String[result.size()]);
+	}
+
+}
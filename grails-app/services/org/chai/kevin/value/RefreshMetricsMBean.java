@@ -0,0 +1,40 @@
+package org.chai.kevin.value;
+
+import java.util.Date;
+
+/**
+ * Management interface of {@link RefreshMetrics}, all the values are those of the last refresh run.
+ */
+public interface RefreshMetricsMBean {
+
+	public boolean isRunning();
+
+	public String getRunName();
+
+	public Date getStartDate();
+
+	public long getCompletedUnits();
+
+	public long getTotalUnits();
+
+	public long getRowsEvaluated();
+
+	public long getRowsWritten();
+
+	public double getRowsPerSecond();
+
+	/**
+	 * Returns the estimated time in milliseconds until the run ends, or -1 if unknown.
+	 */
+	public long getEstimatedTimeRemaining();
+
+	public long getErrorCount();
+
+	public double getCacheHitRatio();
+
+	/**
+	 * Returns the data that took the longest to refresh, slowest first.
+	 */
+	public String[] getSlowestData();
+
+}
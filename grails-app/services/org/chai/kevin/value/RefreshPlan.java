@@ -0,0 +1,148 @@
+package org.chai.kevin.value;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * What a refresh would do if it was run now, as returned by the planning methods of
+ * {@link RefreshValueService}: the normalized data elements and calculations it would
+ * refresh, in the order it would refresh them, the number of location and period units
+ * of each of them, and an estimate of the time it would take.
+ *
+ * The estimate of a data is based on the time its last refresh took per period, see
+ * {@link RefreshMetrics#getPeriodTime(Long)}, or the one saved by an earlier run if the data
+ * was not refreshed since the application started, see {@link RefreshPeriodTime}. Data that
+ * were never measured are estimated with the average of all the data, if any.
+ */
+public class RefreshPlan {
+
+	public static class Entry {
+		private final Long dataId;
+		private final String code;
+		private final boolean calculation;
+		private final String reason;
+		private final long unitCount;
+		private final long estimatedTime;
+		private final boolean measured;
+
+		Entry(Long dataId, String code, boolean calculation, String reason, long unitCount, long estimatedTime, boolean measured) {
+			this.dataId = dataId;
+			this.code = code;
+			this.calculation = calculation;
+			this.reason = reason;
+			this.unitCount = unitCount;
+			this.estimatedTime = estimatedTime;
+			this.measured = measured;
+		}
+
+		public Long getDataId() {
+			return dataId;
+		}
+
+		public String getCode() {
+			return code;
+		}
+
+		public boolean isCalculation() {
+			return calculation;
+		}
+
+		/**
+		 * Returns why the data would be refreshed.
+		 */
+		public String getReason() {
+			return reason;
+		}
+
+		/**
+		 * Returns the number of location and period units that would be refreshed, the same units as the refresh progress.
+		 */
+		public long getUnitCount() {
+			return unitCount;
+		}
+
+		/**
+		 * Returns the estimated time in milliseconds, or -1 if nothing was ever measured.
+		 */
+		public long getEstimatedTime() {
+			return estimatedTime;
+		}
+
+		/**
+		 * Returns true if the estimate is based on a previous refresh of this data.
+		 */
+		public boolean isMeasured() {
+			return measured;
+		}
+
+		@Override
+		public String toString() {
+			return code + " [id=" + dataId + ", reason=" + reason + ", units=" + unitCount + ", estimatedTime=" + estimatedTime + "ms" + (measured ? "" : " (not measured)") + "]";
+		}
+	}
+
+	private final List<Entry> entries = new ArrayList<Entry>();
+	private int skippedCount = 0;
+
+	void addEntry(Entry entry) {
+		entries.add(entry);
+	}
+
+	void addSkipped() {
+		skippedCount++;
+	}
+
+	/**
+	 * Returns the data that would be refreshed, in the order they would be refreshed.
+	 */
+	public List<Entry> getEntries() {
+		return Collections.unmodifiableList(entries);
+	}
+
+	/**
+	 * Returns the number of data that are up to date and would not be refreshed.
+	 */
+	public int getSkippedCount() {
+		return skippedCount;
+	}
+
+	public long getUnitCount() {
+		long result = 0;
+		for (Entry entry : entries) result += entry.getUnitCount();
+		return result;
+	}
+
+	/**
+	 * Returns the estimated time in milliseconds, or -1 if some data would be refreshed but nothing was ever measured.
+	 */
+	public long getEstimatedTime() {
+		long result = 0;
+		for (Entry entry : entries) {
+			if (entry.getEstimatedTime() < 0) return -1;
+			result += entry.getEstimatedTime();
+		}
+		return result;
+	}
+
+	public boolean isEmpty() {
+		return entries.isEmpty();
+	}
+
+	/**
+	 * Returns the plan as text, one line per data, to be shown to operators.
+	 */
+	public String getReport() {
+		StringBuilder report = new StringBuilder();
+		report.append("data to refresh: ").append(entries.size()).append(", up to date: ").append(skippedCount)
+			.append(", units: ").append(getUnitCount()).append(", estimated time: ").append(getEstimatedTime()).append("ms\n");
+		for (Entry entry : entries) report.append(entry).append('\n');
+		return report.toString();
+	}
+
+	@Override
+	public String toString() {
+		return "RefreshPlan [entries=" + entries.size() + ", skipped=" + skippedCount + ", units=" + getUnitCount() + ", estimatedTime=" + getEstimatedTime() + "]";
+	}
+
+}
@@ -0,0 +1,481 @@
+package org.chai.kevin.value;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.chai.kevin.Period;
+import org.chai.kevin.PeriodService;
+import org.chai.kevin.data.Calculation;
+import org.chai.kevin.data.Data;
+import org.chai.kevin.data.DataService;
+import org.chai.kevin.data.NormalizedDataElement;
+import org.chai.kevin.data.RawDataElement;
+import org.chai.location.DataLocation;
+import org.hibernate.SessionFactory;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallbackWithoutResult;
+import org.springframework.transaction.support.TransactionTemplate;
+
+/**
+ * Queues refresh requests and runs them in the background with {@link RefreshValueService}, on a
+ * bounded number of threads, see {@link #setPoolSize(int)}.
+ *
+ * Requests are run by priority, then in the order they were scheduled. A request that is already
+ * covered by a request waiting in the queue, like the refresh of a data for some periods when the
+ * same data or everything is waiting to be refreshed for those periods, is not queued again: the
+ * waiting request takes the higher of both priorities and the caller gets its future. A waiting
+ * refresh of everything does not cover more urgent data refreshes, nor any data location refresh.
+ * Requests that overlap, like the refresh of the same data for other periods, are merged into one
+ * request. Requests that are already running are never merged.
+ *
+ * When more than one thread is used, requests that are not merged can run at the same time, even if
+ * they refresh the same data.
+ */
+public class RefreshScheduler {
+
+	private static final Log log = LogFactory.getLog(RefreshScheduler.class);
+
+	public static enum Priority {
+		// declared from the most to the least urgent
+		INTERACTIVE, IMPORT, NIGHTLY;
+
+		Priority max(Priority other) {
+			return compareTo(other) <= 0 ? this : other;
+		}
+	}
+
+	private static class RefreshFuture implements Future<Void> {
+		private final CountDownLatch done = new CountDownLatch(1);
+		private volatile Throwable failure = null;
+
+		void complete(Throwable failure) {
+			this.failure = failure;
+			done.countDown();
+		}
+
+		// a request cannot be cancelled, it might have been merged with others
+		public boolean cancel(boolean mayInterruptIfRunning) {
+			return false;
+		}
+
+		public boolean isCancelled() {
+			return false;
+		}
+
+		public boolean isDone() {
+			return done.getCount() == 0;
+		}
+
+		public Void get() throws InterruptedException, ExecutionException {
+			done.await();
+			if (failure != null) throw new ExecutionException(failure);
+			return null;
+		}
+
+		public Void get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+			if (!done.await(timeout, unit)) throw new TimeoutException();
+			if (failure != null) throw new ExecutionException(failure);
+			return null;
+		}
+	}
+
+	private abstract class Request implements Runnable, Comparable<Request> {
+		// the futures of this request and of the requests merged into it
+		final List<RefreshFuture> futures = new ArrayList<RefreshFuture>();
+		Priority priority;
+		final long sequence = sequences.incrementAndGet();
+
+		Request(Priority priority) {
+			this.priority = priority;
+			this.futures.add(new RefreshFuture());
+		}
+
+		// returns true if running this request also does all the work of the other one
+		abstract boolean covers(Request other);
+
+		// returns a request doing the work of both, or null if there is none besides running both
+		abstract Request merge(Request other);
+
+		// called in a transaction
+		abstract void refresh();
+
+		public int compareTo(Request other) {
+			if (priority != other.priority) return priority.compareTo(other.priority);
+			return sequence < other.sequence ? -1 : (sequence == other.sequence ? 0 : 1);
+		}
+
+		public void run() {
+			synchronized (RefreshScheduler.this) {
+				pendingRequests.remove(this);
+			}
+			if (log.isDebugEnabled()) log.debug("running: "+this);
+
+			Throwable failure = null;
+			try {
+				getTransactionTemplate().execute(new TransactionCallbackWithoutResult() {
+					@Override
+					protected void doInTransactionWithoutResult(TransactionStatus arg0) {
+						refresh();
+					}
+				});
+			} catch (RefreshCancelledException e) {
+				if (log.isInfoEnabled()) log.info("refresh cancelled: "+this);
+				failure = e;
+			} catch (RuntimeException e) {
+				log.error("refresh failed: "+this, e);
+				failure = e;
+			} catch (Error e) {
+				log.error("refresh failed: "+this, e);
+				failure = e;
+				throw e;
+			} finally {
+				// the callers waiting on the futures must never be left blocked
+				for (RefreshFuture future : futures) future.complete(failure);
+			}
+		}
+	}
+
+	// null period ids mean all periods
+	private static boolean containsAll(Set<Long> periodIds, Set<Long> otherPeriodIds) {
+		return periodIds == null || (otherPeriodIds != null && periodIds.containsAll(otherPeriodIds));
+	}
+
+	private static Set<Long> union(Set<Long> periodIds, Set<Long> otherPeriodIds) {
+		if (periodIds == null || otherPeriodIds == null) return null;
+		Set<Long> result = new HashSet<Long>(periodIds);
+		result.addAll(otherPeriodIds);
+		return result;
+	}
+
+	private class AllRequest extends Request {
+		final Set<Long> periodIds;
+
+		AllRequest(Set<Long> periodIds, Priority priority) {
+			super(priority);
+			this.periodIds = periodIds;
+		}
+
+		// a refresh of everything takes far longer than the refresh of one data or data location, it does not take
+		// over more urgent data refreshes, and never over data location refreshes, which would then wait for it
+		boolean covers(Request other) {
+			if (other instanceof AllRequest) return containsAll(periodIds, ((AllRequest) other).periodIds);
+			if (other instanceof DataRequest) return other.priority.compareTo(priority) >= 0 && containsAll(periodIds, ((DataRequest) other).periodIds);
+			return false;
+		}
+
+		Request merge(Request other) {
+			if (covers(other)) return this;
+			if (other instanceof AllRequest) return new AllRequest(union(periodIds, ((AllRequest) other).periodIds), priority.max(other.priority));
+			return null;
+		}
+
+		void refresh() {
+			refreshValueService.refreshAll(getPeriods(periodIds), null);
+		}
+
+		@Override
+		public String toString() {
+			return "AllRequest [periodIds=" + periodIds + ", priority=" + priority + "]";
+		}
+	}
+
+	private class DataRequest extends Request {
+		final Long dataId;
+		final Set<Long> periodIds;
+
+		DataRequest(Long dataId, Set<Long> periodIds, Priority priority) {
+			super(priority);
+			this.dataId = dataId;
+			this.periodIds = periodIds;
+		}
+
+		boolean covers(Request other) {
+			return other instanceof DataRequest && dataId.equals(((DataRequest) other).dataId) && containsAll(periodIds, ((DataRequest) other).periodIds);
+		}
+
+		Request merge(Request other) {
+			if (covers(other)) return this;
+			if (other.covers(this)) return other;
+			if (other instanceof DataRequest && dataId.equals(((DataRequest) other).dataId)) {
+				return new DataRequest(dataId, union(periodIds, ((DataRequest) other).periodIds), priority.max(other.priority));
+			}
+			return null;
+		}
+
+		void refresh() {
+			Data<?> data = dataService.getData(dataId, Data.class);
+			if (data == null) return;
+			if (data instanceof NormalizedDataElement) refreshValueService.refreshNormalizedDataElement((NormalizedDataElement) data, getPeriods(periodIds), null);
+			else if (data instanceof Calculation) refreshValueService.refreshCalculation((Calculation<?>) data, getPeriods(periodIds), null);
+		}
+
+		@Override
+		public String toString() {
+			return "DataRequest [dataId=" + dataId + ", periodIds=" + periodIds + ", priority=" + priority + "]";
+		}
+	}
+
+	private class DataLocationRequest extends Request {
+		final Long dataLocationId;
+		final Long periodId;
+		final Set<Long> rawDataElementIds;
+
+		DataLocationRequest(Long dataLocationId, Long periodId, Set<Long> rawDataElementIds, Priority priority) {
+			super(priority);
+			this.dataLocationId = dataLocationId;
+			this.periodId = periodId;
+			this.rawDataElementIds = rawDataElementIds;
+		}
+
+		boolean isSameScope(Request other) {
+			return other instanceof DataLocationRequest && dataLocationId.equals(((DataLocationRequest) other).dataLocationId)
+					&& periodId.equals(((DataLocationRequest) other).periodId);
+		}
+
+		boolean covers(Request other) {
+			return isSameScope(other) && rawDataElementIds.containsAll(((DataLocationRequest) other).rawDataElementIds);
+		}
+
+		Request merge(Request other) {
+			if (covers(other)) return this;
+			if (other.covers(this)) return other;
+			if (isSameScope(other)) {
+				Set<Long> mergedIds = new HashSet<Long>(rawDataElementIds);
+				mergedIds.addAll(((DataLocationRequest) other).rawDataElementIds);
+				return new DataLocationRequest(dataLocationId, periodId, mergedIds, priority.max(other.priority));
+			}
+			return null;
+		}
+
+		void refresh() {
+			List<RawDataElement> rawDataElements = new ArrayList<RawDataElement>();
+			for (Long rawDataElementId : rawDataElementIds) {
+				RawDataElement rawDataElement = dataService.getData(rawDataElementId, RawDataElement.class);
+				if (rawDataElement != null) rawDataElements.add(rawDataElement);
+			}
+			DataLocation dataLocation = (DataLocation) sessionFactory.getCurrentSession().get(DataLocation.class, dataLocationId);
+			Period period = (Period) sessionFactory.getCurrentSession().get(Period.class, periodId);
+			if (dataLocation != null && period != null) refreshValueService.refreshForDataLocation(dataLocation, period, rawDataElements);
+		}
+
+		@Override
+		public String toString() {
+			return "DataLocationRequest [dataLocationId=" + dataLocationId + ", periodId=" + periodId + ", rawDataElementIds=" + rawDataElementIds + ", priority=" + priority + "]";
+		}
+	}
+
+	private class DirtyValuesRequest extends Request {
+		DirtyValuesRequest(Priority priority) {
+			super(priority);
+		}
+
+		boolean covers(Request other) {
+			return other instanceof DirtyValuesRequest;
+		}
+
+		Request merge(Request other) {
+			return covers(other) ? this : null;
+		}
+
+		void refresh() {
+			refreshValueService.refreshDirtyValues(null);
+		}
+
+		@Override
+		public String toString() {
+			return "DirtyValuesRequest [priority=" + priority + "]";
+		}
+	}
+
+	private RefreshValueService refreshValueService;
+	private DataService dataService;
+	private PeriodService periodService;
+	private SessionFactory sessionFactory;
+	private PlatformTransactionManager transactionManager;
+
+	private int poolSize = 1;
+
+	private final AtomicLong sequences = new AtomicLong();
+	// the requests queued and not started yet
+	private final List<Request> pendingRequests = new ArrayList<Request>();
+	private ThreadPoolExecutor executor;
+	private TransactionTemplate transactionTemplate;
+
+	/**
+	 * Schedules the refresh of all the data, see {@link RefreshValueService#refreshAll(List, org.chai.task.Progress)}.
+	 *
+	 * @param periods the periods to refresh, or null for all periods
+	 * @param priority the priority of the refresh
+	 * @return a future that is done once the refresh, or the request it was merged with, has run
+	 */
+	public Future<Void> scheduleRefreshAll(List<Period> periods, Priority priority) {
+		return schedule(new AllRequest(getPeriodIds(periods), priority));
+	}
+
+	/**
+	 * Schedules the refresh of a normalized data element or calculation, and of its dependencies.
+	 *
+	 * @param data the normalized data element or calculation to refresh
+	 * @param periods the periods to refresh, or null for all periods
+	 * @param priority the priority of the refresh
+	 * @return a future that is done once the refresh, or the request it was merged with, has run
+	 */
+	public Future<Void> scheduleRefresh(Data<?> data, List<Period> periods, Priority priority) {
+		if (!(data instanceof NormalizedDataElement) && !(data instanceof Calculation)) {
+			throw new IllegalArgumentException("only normalized data elements and calculations can be refreshed: "+data);
+		}
+		return schedule(new DataRequest(data.getId(), getPeriodIds(periods), priority));
+	}
+
+	/**
+	 * Schedules the refresh of the values depending on the given raw data elements for one data location and
+	 * period, see {@link RefreshValueService#refreshForDataLocation(DataLocation, Period, Collection)}. The raw
+	 * values must have been committed when the refresh runs.
+	 *
+	 * @return a future that is done once the refresh, or the request it was merged with, has run
+	 */
+	public Future<Void> scheduleRefreshForDataLocation(DataLocation dataLocation, Period period, Collection<RawDataElement> changedElements, Priority priority) {
+		Set<Long> rawDataElementIds = new HashSet<Long>();
+		for (RawDataElement changedElement : changedElements) rawDataElementIds.add(changedElement.getId());
+		return schedule(new DataLocationRequest(dataLocation.getId(), period.getId(), rawDataElementIds, priority));
+	}
+
+	/**
+	 * Schedules the refresh of the dirty values, see {@link RefreshValueService#refreshDirtyValues(org.chai.task.Progress)}.
+	 *
+	 * @return a future that is done once the refresh, or the request it was merged with, has run
+	 */
+	public Future<Void> scheduleRefreshDirtyValues(Priority priority) {
+		return schedule(new DirtyValuesRequest(priority));
+	}
+
+	private synchronized Future<Void> schedule(Request request) {
+		Future<Void> future = request.futures.get(0);
+		ThreadPoolExecutor executor = getExecutor();
+
+		for (Request pendingRequest : new ArrayList<Request>(pendingRequests)) {
+			if (pendingRequest.covers(request)) {
+				if (log.isDebugEnabled()) log.debug("already scheduled: "+request+", by: "+pendingRequest);
+				// the request is queued again to take its new priority into account
+				Priority priority = pendingRequest.priority.max(request.priority);
+				if (priority != pendingRequest.priority && executor.getQueue().remove(pendingRequest)) {
+					pendingRequest.priority = priority;
+					executor.execute(pendingRequest);
+				}
+				pendingRequest.futures.addAll(request.futures);
+				return future;
+			}
+
+			Request mergedRequest = request.merge(pendingRequest);
+			if (mergedRequest != null && executor.getQueue().remove(pendingRequest)) {
+				if (log.isDebugEnabled()) log.debug("merging: "+request+", with: "+pendingRequest);
+				pendingRequests.remove(pendingRequest);
+				if (mergedRequest != request) mergedRequest.futures.addAll(request.futures);
+				mergedRequest.futures.addAll(pendingRequest.futures);
+				mergedRequest.priority = request.priority.max(pendingRequest.priority);
+				request = mergedRequest;
+			}
+		}
+
+		if (log.isDebugEnabled()) log.debug("scheduling: "+request);
+		pendingRequests.add(request);
+		executor.execute(request);
+		return future;
+	}
+
+	/**
+	 * Returns the number of requests waiting to be run.
+	 */
+	public synchronized int getPendingCount() {
+		return pendingRequests.size();
+	}
+
+	/**
+	 * Stops the threads once the requests already queued have run.
+	 */
+	public synchronized void shutdown() {
+		if (executor != null) executor.shutdown();
+	}
+
+	private synchronized ThreadPoolExecutor getExecutor() {
+		if (executor == null) {
+			final AtomicInteger threadCount = new AtomicInteger();
+			executor = new ThreadPoolExecutor(poolSize, poolSize, 0L, TimeUnit.MILLISECONDS, new PriorityBlockingQueue<Runnable>(), new ThreadFactory() {
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "refresh-scheduler-"+threadCount.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return executor;
+	}
+
+	private synchronized TransactionTemplate getTransactionTemplate() {
+		if (transactionTemplate == null) transactionTemplate = new TransactionTemplate(transactionManager);
+		return transactionTemplate;
+	}
+
+	private static Set<Long> getPeriodIds(List<Period> periods) {
+		if (periods == null) return null;
+		Set<Long> result = new HashSet<Long>();
+		for (Period period : periods) result.add(period.getId());
+		return result;
+	}
+
+	private List<Period> getPeriods(Set<Long> periodIds) {
+		List<Period> periods = new ArrayList<Period>();
+		for (Period period : periodService.listPeriods()) {
+			if (periodIds == null || periodIds.contains(period.getId())) periods.add(period);
+		}
+		return periods;
+	}
+
+	public int getPoolSize() {
+		return poolSize;
+	}
+
+	/**
+	 * Sets the number of threads running requests, 1 by default. Must be set before the first request is scheduled.
+	 */
+	public void setPoolSize(int poolSize) {
+		this.poolSize = poolSize;
+	}
+
+	public void setRefreshValueService(RefreshValueService refreshValueService) {
+		this.refreshValueService = refreshValueService;
+	}
+
+	public void setDataService(DataService dataService) {
+		this.dataService = dataService;
+	}
+
+	public void setPeriodService(PeriodService periodService) {
+		this.periodService = periodService;
+	}
+
+	public void setSessionFactory(SessionFactory sessionFactory) {
+		this.sessionFactory = sessionFactory;
+	}
+
+	public void setTransactionManager(PlatformTransactionManager transactionManager) {
+		this.transactionManager = transactionManager;
+	}
+
+}
@@ -0,0 +1,164 @@
+package org.chai.kevin.value;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Slows refreshes down so that they leave database connections and CPU to the other requests.
+ * Three limits apply, all off by default:
+ * - a maximum number of rows refreshed per second,
+ * - a maximum number of database connections used by refreshes at the same time,
+ * - an adaptive backoff: when a latency above the threshold is recorded, either the time a refresh
+ *   waited for a connection or the time a request took to read values, see {@link #recordLatency(long)},
+ *   the backoff level goes up. Each level halves the rows per second and doubles a pause taken before
+ *   each refresh transaction. The level goes down again once no high latency was recorded for a while.
+ *
+ * The settings are exposed over JMX through {@link RefreshThrottleMBean} and apply immediately.
+ */
+public class RefreshThrottle implements RefreshThrottleMBean {
+
+	private static final Log log = LogFactory.getLog(RefreshThrottle.class);
+
+	private static final int MAX_BACKOFF_LEVEL = 6;
+	// in milliseconds
+	private static final long BACKOFF_INTERVAL = 1000;
+	private static final long RECOVERY_INTERVAL = 5000;
+
+	private volatile long maxRowsPerSecond = 0;
+	private volatile int maxConnections = 0;
+	private volatile long latencyThreshold = 0;
+	private volatile long backoffPause = 100;
+
+	// guarded by this
+	private int connectionsInUse = 0;
+	private long nextRowsTime = 0;
+	private int backoffLevel = 0;
+	private long lastBackoffChange = 0;
+
+	private final AtomicLong throttledTime = new AtomicLong();
+
+	/**
+	 * Waits until the given number of rows can be refreshed without going over the rows per second.
+	 * Must not be called while holding a database connection.
+	 */
+	public void acquireRows(long rows) throws InterruptedException {
+		long wait;
+		synchronized (this) {
+			if (maxRowsPerSecond <= 0 || rows <= 0) return;
+			long rate = Math.max(1, maxRowsPerSecond >> updateBackoffLevel());
+
+			long now = System.nanoTime();
+			long start = Math.max(now, nextRowsTime);
+			nextRowsTime = start + rows * 1000000000L / rate;
+			wait = (start - now) / 1000000;
+		}
+		pause(wait);
+	}
+
+	/**
+	 * Waits until a refresh can use one more database connection, then takes the backoff pause.
+	 * Must be followed by {@link #releaseConnection()}.
+	 */
+	public void acquireConnection() throws InterruptedException {
+		long pause;
+		synchronized (this) {
+			long start = System.currentTimeMillis();
+			while (maxConnections > 0 && connectionsInUse >= maxConnections) wait(BACKOFF_INTERVAL);
+			throttledTime.addAndGet(System.currentTimeMillis() - start);
+			connectionsInUse++;
+			int level = updateBackoffLevel();
+			pause = level == 0 ? 0 : backoffPause << (level - 1);
+		}
+		try {
+			pause(pause);
+		} catch (InterruptedException e) {
+			releaseConnection();
+			throw e;
+		}
+	}
+
+	public synchronized void releaseConnection() {
+		connectionsInUse--;
+		notifyAll();
+	}
+
+	/**
+	 * Records how long a request or a refresh waited for the database, in milliseconds.
+	 */
+	public synchronized void recordLatency(long latency) {
+		if (latencyThreshold <= 0 || latency <= latencyThreshold) return;
+
+		long now = System.currentTimeMillis();
+		// at most one level per interval, requests slowed down by the same refresh report at once
+		if (backoffLevel < MAX_BACKOFF_LEVEL && now - lastBackoffChange >= BACKOFF_INTERVAL) {
+			backoffLevel++;
+			if (log.isInfoEnabled()) log.info("latency "+latency+"ms above "+latencyThreshold+"ms, refresh backoff level: "+backoffLevel);
+		}
+		lastBackoffChange = now;
+	}
+
+	// goes down one level for each recovery interval without high latency, must hold the lock
+	private int updateBackoffLevel() {
+		long now = System.currentTimeMillis();
+		while (backoffLevel > 0 && now - lastBackoffChange >= RECOVERY_INTERVAL) {
+			backoffLevel--;
+			lastBackoffChange += RECOVERY_INTERVAL;
+			if (log.isInfoEnabled()) log.info("refresh backoff level: "+backoffLevel);
+		}
+		return backoffLevel;
+	}
+
+	private void pause(long millis) throws InterruptedException {
+		if (millis <= 0) return;
+		throttledTime.addAndGet(millis);
+		Thread.sleep(millis);
+	}
+
+	public long getMaxRowsPerSecond() {
+		return maxRowsPerSecond;
+	}
+
+	public void setMaxRowsPerSecond(long maxRowsPerSecond) {
+		this.maxRowsPerSecond = Math.max(0, maxRowsPerSecond);
+	}
+
+	public int getMaxConnections() {
+		return maxConnections;
+	}
+
+	public synchronized void setMaxConnections(int maxConnections) {
+		this.maxConnections = Math.max(0, maxConnections);
+		notifyAll();
+	}
+
+	public long getLatencyThreshold() {
+		return latencyThreshold;
+	}
+
+	public void setLatencyThreshold(long latencyThreshold) {
+		this.latencyThreshold = Math.max(0, latencyThreshold);
+	}
+
+	public long getBackoffPause() {
+		return backoffPause;
+	}
+
+	public void setBackoffPause(long backoffPause) {
+		this.backoffPause = Math.max(0, backoffPause);
+	}
+
+	public synchronized int getBackoffLevel() {
+		return updateBackoffLevel();
+	}
+
+	public synchronized int getConnectionsInUse() {
+		return connectionsInUse;
+	}
+
+	public long getThrottledTime() {
+		return throttledTime.get();
+	}
+
+}
@@ -0,0 +1,46 @@
+package org.chai.kevin.value;
+
+/**
+ * Management interface of {@link RefreshThrottle}, the settings can be changed while a refresh is running.
+ */
+public interface RefreshThrottleMBean {
+
+	/**
+	 * Returns the maximum number of rows refreshed per second, 0 for no limit.
+	 */
+	public long getMaxRowsPerSecond();
+
+	public void setMaxRowsPerSecond(long maxRowsPerSecond);
+
+	/**
+	 * Returns the maximum number of database connections used by refreshes at the same time, 0 for no limit.
+	 */
+	public int getMaxConnections();
+
+	public void setMaxConnections(int maxConnections);
+
+	/**
+	 * Returns the latency in milliseconds above which refreshes back off, 0 to never back off.
+	 */
+	public long getLatencyThreshold();
+
+	public void setLatencyThreshold(long latencyThreshold);
+
+	/**
+	 * Returns the pause in milliseconds before each refresh transaction at the first backoff level,
+	 * it doubles at each level.
+	 */
+	public long getBackoffPause();
+
+	public void setBackoffPause(long backoffPause);
+
+	public int getBackoffLevel();
+
+	public int getConnectionsInUse();
+
+	/**
+	 * Returns the total time refreshes waited because of the throttle, in milliseconds.
+	 */
+	public long getThrottledTime();
+
+}
@@ -0,0 +1,88 @@
+package org.chai.kevin.value;
+
+import java.io.Serializable;
+import java.util.Date;
+
+/**
+ * A unit of work of a distributed refresh: the values of one normalized data element or calculation
+ * for one period, see {@link RefreshValueService#refreshAll(java.util.List, RefreshUnitQueue, org.chai.task.Progress)}.
+ *
+ * Units only carry ids and dates so that they can be sent to other nodes, the dates are the ones the
+ * coordinator knew when it published the unit.
+ */
+public class RefreshUnit implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	private final String runId;
+	private final Long dataId;
+	private final Long periodId;
+	private final boolean calculation;
+	private final Date lastValueChanged;
+	private final Date latestDependency;
+
+	// set by the queue the unit is published on
+	private Long taskId;
+	// set by the queue when the unit is claimed, identifies the claim
+	private String claimant;
+
+	/**
+	 * @param runId the id of the refresh the unit belongs to, its result is only returned to that refresh
+	 * @param lastValueChanged the last value changed date of the data when the refresh started
+	 * @param latestDependency the latest last value changed date of the dependencies of the data, once their units for the same period are done
+	 */
+	public RefreshUnit(String runId, Long dataId, Long periodId, boolean calculation, Date lastValueChanged, Date latestDependency) {
+		this.runId = runId;
+		this.dataId = dataId;
+		this.periodId = periodId;
+		this.calculation = calculation;
+		this.lastValueChanged = lastValueChanged;
+		this.latestDependency = latestDependency;
+	}
+
+	public String getRunId() {
+		return runId;
+	}
+
+	public Long getDataId() {
+		return dataId;
+	}
+
+	public Long getPeriodId() {
+		return periodId;
+	}
+
+	public boolean isCalculation() {
+		return calculation;
+	}
+
+	public Date getLastValueChanged() {
+		return lastValueChanged;
+	}
+
+	public Date getLatestDependency() {
+		return latestDependency;
+	}
+
+	public Long getTaskId() {
+		return taskId;
+	}
+
+	void setTaskId(Long taskId) {
+		this.taskId = taskId;
+	}
+
+	public String getClaimant() {
+		return claimant;
+	}
+
+	void setClaimant(String claimant) {
+		this.claimant = claimant;
+	}
+
+	@Override
+	public String toString() {
+		return "RefreshUnit [runId=" + runId + ", dataId=" + dataId + ", periodId=" + periodId + ", calculation=" + calculation + ", latestDependency=" + latestDependency + "]";
+	}
+
+}
@@ -0,0 +1,57 @@
+package org.chai.kevin.value;
+
+/**
+ * Carries the units of a distributed refresh from the coordinator to the nodes running them, and
+ * their results back to the coordinator.
+ *
+ * A unit is claimed by exactly one node at a time. Every claimed unit must be acknowledged with
+ * {@link #complete(RefreshUnitResult)}, whether it succeeded or failed, and its claim renewed with
+ * {@link #renew(RefreshUnit)} while it runs, otherwise it can be claimed again by another node.
+ */
+public interface RefreshUnitQueue {
+
+	/**
+	 * Makes the unit available to the nodes, called by the coordinator.
+	 */
+	public void publish(RefreshUnit unit);
+
+	/**
+	 * Claims the next available unit, waiting at most the given time for one to be published.
+	 *
+	 * @param timeout the time to wait, in milliseconds
+	 * @return the unit, or null if none was available in time
+	 */
+	public RefreshUnit claim(long timeout) throws InterruptedException;
+
+	/**
+	 * Extends the claim of a unit that is still running.
+	 *
+	 * @return false if the unit is no longer claimed by the caller
+	 */
+	public boolean renew(RefreshUnit unit);
+
+	/**
+	 * Acknowledges a claimed unit, its result is then returned to the coordinator. The result is ignored if the
+	 * unit is no longer claimed by the caller, it was then claimed again by another node.
+	 */
+	public void complete(RefreshUnitResult result);
+
+	/**
+	 * Returns the result of the next acknowledged unit of the given refresh, waiting at most the given time, called
+	 * by the coordinator. The results of the other refreshes are left to them.
+	 *
+	 * @param runId the id of the refresh, see {@link RefreshUnit#getRunId()}
+	 * @param timeout the time to wait, in milliseconds
+	 * @return the result, or null if no unit was acknowledged in time
+	 */
+	public RefreshUnitResult takeResult(String runId, long timeout) throws InterruptedException;
+
+	/**
+	 * Removes what is left of the given refresh, the units not claimed yet and the results not taken, called by
+	 * the coordinator once the refresh ends, whether it succeeded or not.
+	 *
+	 * @param runId the id of the refresh, see {@link RefreshUnit#getRunId()}
+	 */
+	public void clear(String runId);
+
+}
@@ -0,0 +1,55 @@
+package org.chai.kevin.value;
+
+import java.io.Serializable;
+import java.util.Date;
+
+/**
+ * What a node reports back to the coordinator once it ran a {@link RefreshUnit}.
+ */
+public class RefreshUnitResult implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	private final RefreshUnit unit;
+	private final boolean refreshed;
+	private final Date lastValueChanged;
+	private final String failure;
+
+	/**
+	 * @param refreshed whether the data was outdated and its values for the period were refreshed
+	 * @param lastValueChanged the last value changed date of the data after the unit ran
+	 * @param failure the reason the unit failed, or null if it succeeded
+	 */
+	public RefreshUnitResult(RefreshUnit unit, boolean refreshed, Date lastValueChanged, String failure) {
+		this.unit = unit;
+		this.refreshed = refreshed;
+		this.lastValueChanged = lastValueChanged;
+		this.failure = failure;
+	}
+
+	public RefreshUnit getUnit() {
+		return unit;
+	}
+
+	public boolean isRefreshed() {
+		return refreshed;
+	}
+
+	public Date getLastValueChanged() {
+		return lastValueChanged;
+	}
+
+	public String getFailure() {
+		return failure;
+	}
+
+	public boolean isFailed() {
+		return failure != null;
+	}
+
+	@Override
+	public String toString() {
+		return "RefreshUnitResult [unit=" + unit + ", refreshed=" + refreshed + ", failure=" + failure + "]";
+	}
+
+}
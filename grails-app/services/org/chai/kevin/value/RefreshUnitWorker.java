@@ -0,0 +1,153 @@
+package org.chai.kevin.value;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Claims the units of distributed refreshes from a {@link RefreshUnitQueue}, runs them with
+ * {@link RefreshValueService#refreshUnit(RefreshUnit)} and acknowledges them, on a number of
+ * threads, see {@link #setThreads(int)}. Every node taking part in distributed refreshes runs
+ * one, including the one coordinating the refresh.
+ *
+ * The claim of a unit is renewed while it runs, see {@link #setRenewInterval(long)}, so that a
+ * slow unit is not claimed again by another node.
+ */
+public class RefreshUnitWorker {
+
+	private static final Log log = LogFactory.getLog(RefreshUnitWorker.class);
+
+	private RefreshValueService refreshValueService;
+	private RefreshUnitQueue queue;
+
+	// no thread by default, the node then does not run any unit
+	private int threads = 0;
+	// time waited for a unit before checking whether the worker was shut down, in milliseconds
+	private long claimTimeout = 1000;
+	// time between two renewals of the claim of a running unit, in milliseconds, 1 minute by default
+	private long renewInterval = 60000;
+
+	private final List<Thread> workerThreads = new ArrayList<Thread>();
+	private volatile boolean running = false;
+	// renews the claims of the running units
+	private ScheduledExecutorService renewer = null;
+
+	/**
+	 * Starts the threads, does nothing if they are already started.
+	 */
+	public synchronized void start() {
+		if (running) return;
+		running = true;
+		renewer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "refresh-unit-renewer");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		for (int i = 0; i < threads; i++) {
+			Thread thread = new Thread(new Runnable() {
+				public void run() {
+					while (running) {
+						try {
+							runNext(claimTimeout);
+						} catch (InterruptedException e) {
+							break;
+						}
+					}
+				}
+			}, "refresh-unit-worker-"+(i + 1));
+			thread.setDaemon(true);
+			thread.start();
+			workerThreads.add(thread);
+		}
+		if (log.isInfoEnabled()) log.info("started refresh unit worker, threads: "+threads);
+	}
+
+	/**
+	 * Stops the threads, the units they are running are not acknowledged.
+	 */
+	public synchronized void shutdown() {
+		running = false;
+		for (Thread thread : workerThreads) thread.interrupt();
+		workerThreads.clear();
+		if (renewer != null) renewer.shutdownNow();
+		renewer = null;
+	}
+
+	/**
+	 * Claims a unit, runs it and acknowledges it, the unit is acknowledged as failed if it throws an exception.
+	 *
+	 * @param timeout the time to wait for a unit, in milliseconds
+	 * @return false if no unit was available in time
+	 */
+	boolean runNext(long timeout) throws InterruptedException {
+		final RefreshUnit unit = queue.claim(timeout);
+		if (unit == null) return false;
+
+		ScheduledFuture<?> renewal = scheduleRenewal(unit);
+		RefreshUnitResult result;
+		try {
+			result = refreshValueService.refreshUnit(unit);
+		} catch (RuntimeException e) {
+			log.error("refresh unit failed: "+unit, e);
+			result = new RefreshUnitResult(unit, false, null, e.toString());
+		} finally {
+			if (renewal != null) renewal.cancel(false);
+		}
+		queue.complete(result);
+		return true;
+	}
+
+	private synchronized ScheduledFuture<?> scheduleRenewal(final RefreshUnit unit) {
+		if (renewer == null) return null;
+		return renewer.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				try {
+					queue.renew(unit);
+				} catch (RuntimeException e) {
+					log.warn("could not renew the claim of unit: "+unit, e);
+				}
+			}
+		}, renewInterval, renewInterval, TimeUnit.MILLISECONDS);
+	}
+
+	public int getThreads() {
+		return threads;
+	}
+
+	/**
+	 * Sets the number of units run at the same time on this node, 0 by default. Must be set before the worker is started.
+	 */
+	public void setThreads(int threads) {
+		this.threads = Math.max(0, threads);
+	}
+
+	public void setClaimTimeout(long claimTimeout) {
+		this.claimTimeout = claimTimeout;
+	}
+
+	/**
+	 * Sets the time between two renewals of the claim of a running unit, in milliseconds, 1 minute by default.
+	 * It should be shorter than the claim timeout of the queue, see {@link DatabaseRefreshUnitQueue#setClaimTimeout(long)}.
+	 */
+	public void setRenewInterval(long renewInterval) {
+		this.renewInterval = renewInterval;
+	}
+
+	public void setRefreshValueService(RefreshValueService refreshValueService) {
+		this.refreshValueService = refreshValueService;
+	}
+
+	public void setQueue(RefreshUnitQueue queue) {
+		this.queue = queue;
+	}
+
+}
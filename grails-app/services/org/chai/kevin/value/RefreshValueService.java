@@ -2,13 +2,29 @@ package org.chai.kevin.value;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Map.Entry;
 import java.util.Set;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+import grails.util.Metadata;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -20,26 +36,36 @@ import org.chai.kevin.data.DataElement;
 import org.chai.kevin.data.DataService;
 import org.chai.kevin.data.NormalizedDataElement;
 import org.chai.kevin.data.RawDataElement;
+import org.chai.kevin.util.JSONUtils;
 import org.chai.location.CalculationLocation;
 import org.chai.location.DataLocation;
 import org.chai.location.DataLocationType;
+import org.chai.location.Location;
 import org.chai.location.LocationService;
 import org.chai.task.Progress;
 import org.hibernate.Criteria;
-import org.hibernate.Query;
 import org.hibernate.FlushMode;
+import org.hibernate.Session;
 import org.hibernate.SessionFactory;
+import org.hibernate.StatelessSession;
 import org.hibernate.criterion.Projections;
+import org.hibernate.criterion.Restrictions;
 import org.springframework.transaction.PlatformTransactionManager;
 import org.springframework.transaction.TransactionStatus;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionCallback;
 import org.springframework.transaction.support.TransactionCallbackWithoutResult;
 import org.springframework.transaction.support.TransactionTemplate;
 
-public class RefreshValueService {
+public class RefreshValueService implements DataChangeListener.Handler {
 
 	private final static Log log = LogFactory.getLog(RefreshValueService.class);
 	
+	// number of ids in one "in" restriction
+	private final static int MAX_IDS = 1000;
+	// time waited for a unit to be done before checking again, in milliseconds
+	private final static long RESULT_TIMEOUT = 1000;
+	
 	private PeriodService periodService;
 	private LocationService locationService;
 	private DataService dataService;
@@ -48,9 +74,36 @@ public class RefreshValueService {
 	private ExpressionService expressionService;
 	private ValueService valueService;
 	
+	// number of data refreshed at the same time by refreshAll
+	private int parallelism = 1;
+	// number of normalized data element values written at once
+	private int batchSize = 100;
+	// whether values are written through a stateless session
+	private boolean stateless = false;
+	// time a distributed refresh waits for a unit to be done before failing, in milliseconds, 1 hour by default
+	private long unitTimeout = 3600000;
+	
+	private final RefreshMetrics metrics = new RefreshMetrics();
+	private RefreshThrottle throttle = new RefreshThrottle();
+	private RefreshControl control = new RefreshControl();
+	// source maps built by updateSources during the current runs, by data id, cleared when a run ends
+	private final ConcurrentMap<Long, Map<String, Map<String, List<String>>>> sourceMaps = new ConcurrentHashMap<Long, Map<String, Map<String, List<String>>>>();
+	
+	// built on first use and discarded when a data changes, see dataChanged
+	private volatile DependencyGraph dependencyGraph = null;
+	// incremented each time a data changes
+	private final AtomicLong dataGeneration = new AtomicLong();
+	
+	private static class DependencyGraph {
+		final Set<Long> normalizedDataElementIds = new HashSet<Long>();
+		final Map<Long, Set<Long>> dependenciesById = new HashMap<Long, Set<Long>>();
+		final Map<Long, Set<Long>> dependentsById = new HashMap<Long, Set<Long>>();
+	}
+	
 	private TransactionTemplate transactionTemplate;
 	
-	private TransactionTemplate getTransactionTemplate() {
+	// also used by the refreshAll worker threads
+	private synchronized TransactionTemplate getTransactionTemplate() {
 		if (transactionTemplate == null) {
 			transactionTemplate = new TransactionTemplate(transactionManager);
 			transactionTemplate.setPropagationBehavior(TransactionTemplate.PROPAGATION_REQUIRES_NEW);
@@ -58,6 +111,52 @@ public class RefreshValueService {
 		return transactionTemplate;
 	}
 	
+	// the stateless session shares the connection, and so the transaction, of the current session
+	@SuppressWarnings("deprecation")
+	private StatelessSession openStatelessSession() {
+		if (!stateless) return null;
+		return sessionFactory.openStatelessSession(sessionFactory.getCurrentSession().connection());
+	}
+	
+	// the refresh transactions are throttled, the time waited for a connection is recorded as a latency
+	// as it goes up when the connection pool is saturated, see RefreshThrottle
+	private <T> T executeThrottled(final TransactionCallback<T> callback) {
+		try {
+			throttle.acquireConnection();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("refresh interrupted", e);
+		}
+		try {
+			final long start = System.nanoTime();
+			return getTransactionTemplate().execute(new TransactionCallback<T>() {
+				@Override
+				public T doInTransaction(TransactionStatus status) {
+					throttle.recordLatency((System.nanoTime() - start) / 1000000);
+					return callback.doInTransaction(status);
+				}
+			});
+		} finally {
+			throttle.releaseConnection();
+		}
+	}
+	
+	// called once the rows are written, so that the wait delays the next transaction without holding a connection
+	private void throttleRows(long rows) {
+		try {
+			throttle.acquireRows(rows);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("refresh interrupted", e);
+		}
+	}
+	
+	private static long countValues(Map<Long, Set<Long>> valuesByPeriod) {
+		long count = 0;
+		for (Set<Long> values : valuesByPeriod.values()) count += values.size();
+		return count;
+	}
+	
 	private static List<?> NULL_LIST = new ArrayList();
 	
 	static{
@@ -74,6 +173,9 @@ public class RefreshValueService {
 	 * been refreshed. This method will modify the values in the database or create new ones. It will also set the last 
 	 * refreshed flag on all refreshed normalized data elements to the current timestamp.
 	 * 
+	 * The dependencies are scheduled like in {@link #refreshAll(Progress)}, on the part of the dependency graph the
+	 * normalized data element depends on.
+	 * 
 	 * If a progress instance is passed as the progress parameter, that object will be updated with the information about
 	 * the progress of the refresh. Can be null.
 	 * 
@@ -83,66 +185,31 @@ public class RefreshValueService {
 	 */
 	@Transactional(readOnly = true)
 	public List<NormalizedDataElement> refreshNormalizedDataElement(NormalizedDataElement normalizedDataElement, Progress progress) {
-		// set progress maximum - we count the number of NormalizedDataElement dependencies
-		Set<Data> dependencySet = new HashSet<Data>();
-		collectOrderedDependencies(normalizedDataElement, dependencySet, NormalizedDataElement.class);
-		removeNulls(dependencySet);
-		if (progress != null) progress.setMaximum(dependencySet.size() * periodService.listPeriods().size() * countLocations(DataLocation.class));
-		
-		List<NormalizedDataElement> uptodateElements = refreshNormalizedDataElementWithoutSettingProgress(normalizedDataElement, progress);
-		return uptodateElements;
-	}
-
-	private List<NormalizedDataElement> refreshNormalizedDataElementWithoutSettingProgress(NormalizedDataElement normalizedDataElement, Progress progress) {
-		// run the actual expression calculations
-		List<NormalizedDataElement> uptodateElements = new ArrayList<NormalizedDataElement>();
-		refreshDataElement(normalizedDataElement, uptodateElements, progress);
-		return uptodateElements;
+		return refreshNormalizedDataElement(normalizedDataElement, periodService.listPeriods(), progress);
 	}
 	
-	private Date refreshDataElement(DataElement dataElement, List<NormalizedDataElement> uptodateElements, Progress progress) {
-		if (log.isDebugEnabled()) log.debug("refreshDataElement(dataElement="+dataElement+", uptodateElements="+uptodateElements+", progress)");
-		
-		if (dataElement instanceof RawDataElement) return dataElement.getLastValueChanged();
-		else {
-			NormalizedDataElement normalizedDataElement = (NormalizedDataElement)dataElement;
-			Date latestDependency = null;
-			
-			Set<DataElement> dependencies = new HashSet<DataElement>();
-			for (String expression : normalizedDataElement.getExpressions()) {
-				dependencies.addAll(expressionService.getDataInExpression(expression, DataElement.class).values());
-			}
-			removeNulls(dependencies);
-			
-			uptodateElements.add(normalizedDataElement);
-			for (DataElement dependency : dependencies) {
-				if (!uptodateElements.contains(dependency)) {
-					Date dependencyDate = refreshDataElement(dependency, uptodateElements, progress);
-					if (latestDependency == null || (dependencyDate != null && dependencyDate.after(latestDependency))) latestDependency = dependencyDate;
-				}
-			}
-			
-			// we refresh if the data element was changed after the last refresh
-			if (normalizedDataElement.getRefreshed() == null || normalizedDataElement.getTimestamp().after(normalizedDataElement.getRefreshed())) {
-				refreshNormalizedDataElementOnly(normalizedDataElement, progress);
-			}
-			
-			// we refresh if a value was saved after the last refresh
-			else if (normalizedDataElement.getRefreshed() == null || normalizedDataElement.getLastValueChanged().after(normalizedDataElement.getRefreshed())) {
-				refreshNormalizedDataElementOnly(normalizedDataElement, progress);
-			}
-			
-			// we refresh if the last value of the dependency is after the last refreshed date of this element
-			// this means some values of the dependency were changed after us
-			else if (latestDependency != null && latestDependency.after(normalizedDataElement.getRefreshed())) {
-				refreshNormalizedDataElementOnly(normalizedDataElement, progress);
-			}
-			
-			else {
-				if (progress != null) progress.incrementProgress(periodService.listPeriods().size() * countLocations(DataLocation.class));
+	/**
+	 * Same as {@link #refreshNormalizedDataElement(NormalizedDataElement, Progress)}, but only the values of the given
+	 * periods are refreshed. The last refreshed flag is only set if the given periods are all the periods.
+	 * 
+	 * @param normalizedDataElement the normalized data element to refresh
+	 * @param periods the periods to refresh
+	 * @param progress the progress that will be updated or null if not desired
+	 * @return the list of normalized data elements which have been refreshed
+	 */
+	@Transactional(readOnly = true)
+	public List<NormalizedDataElement> refreshNormalizedDataElement(NormalizedDataElement normalizedDataElement, List<Period> periods, Progress progress) {
+		RefreshMetrics.Run run = startRun("refreshNormalizedDataElement: "+normalizedDataElement.getCode(), progress);
+		boolean failed = true;
+		try {
+			List<NormalizedDataElement> refreshedElements = new ArrayList<NormalizedDataElement>();
+			for (Long dataId : refreshGraph(normalizedDataElement.getId(), periods, run)) {
+				refreshedElements.add(dataService.getData(dataId, NormalizedDataElement.class));
 			}
-			
-			return normalizedDataElement.getLastValueChanged();
+			failed = false;
+			return refreshedElements;
+		} finally {
+			finishRun(run, failed);
 		}
 	}
 	
@@ -156,11 +223,11 @@ public class RefreshValueService {
 	 */
 	@Transactional(readOnly = false)
 	public void refreshNormalizedDataElement(NormalizedDataElement dataElement, DataLocation dataLocation, Period period) {
-		refreshDataElement(dataElement, dataLocation, period, new ArrayList<NormalizedDataElement>());
+		refreshDataElement(dataElement, dataLocation, period, new HashSet<Long>());
 		dataService.save(dataElement);
 	}
 	
-	private Date refreshDataElement(DataElement dataElement, DataLocation dataLocation, Period period, List<NormalizedDataElement> uptodateElements) {
+	private Date refreshDataElement(DataElement dataElement, DataLocation dataLocation, Period period, Set<Long> uptodateIds) {
 		DataValue storedValue = valueService.getDataElementValue(dataElement, dataLocation, period);
 		
 		if (dataElement instanceof RawDataElement) {
@@ -177,10 +244,10 @@ public class RefreshValueService {
 			}
 			removeNulls(dependencies);
 			
-			uptodateElements.add(normalizedDataElement);
+			uptodateIds.add(normalizedDataElement.getId());
 			for (DataElement dependency : dependencies) {
-				if (!uptodateElements.contains(dependency)) {
-					Date dependencyDate = refreshDataElement(dependency, dataLocation, period, uptodateElements);
+				if (!uptodateIds.contains(dependency.getId())) {
+					Date dependencyDate = refreshDataElement(dependency, dataLocation, period, uptodateIds);
 					if (latestDependency == null || (dependencyDate != null && dependencyDate.after(latestDependency))) latestDependency = dependencyDate;
 				}
 			}
@@ -206,9 +273,16 @@ public class RefreshValueService {
 	
 	public NormalizedDataElementValue updateNormalizedDataElementValue(NormalizedDataElement normalizedDataElement, DataLocation dataLocation, Period period) {
 		NormalizedDataElementValue newValue = expressionService.calculateValue(normalizedDataElement, dataLocation, period);
+		return saveNormalizedDataElementValue(normalizedDataElement, dataLocation, period, newValue);
+	}
+	
+	private NormalizedDataElementValue saveNormalizedDataElementValue(NormalizedDataElement normalizedDataElement, DataLocation dataLocation, Period period, NormalizedDataElementValue newValue) {
 		NormalizedDataElementValue oldValue = valueService.getDataElementValue(normalizedDataElement, dataLocation, period);
-		
-		if (log.isDebugEnabled()) log.debug("updating NDE for: "+dataLocation+", new value: "+newValue);
+		return saveNormalizedDataElementValue(normalizedDataElement, oldValue, newValue);
+	}
+	
+	private NormalizedDataElementValue saveNormalizedDataElementValue(NormalizedDataElement normalizedDataElement, NormalizedDataElementValue oldValue, NormalizedDataElementValue newValue) {
+		if (log.isDebugEnabled()) log.debug("updating NDE for: "+newValue.getLocation()+", new value: "+newValue);
 		
 		if (oldValue == null) oldValue = newValue;
 		else {
@@ -223,296 +297,1517 @@ public class RefreshValueService {
 		return oldValue;
 	}
 	
-	private void refreshNormalizedDataElementOnly(final NormalizedDataElement normalizedDataElement, final Progress progress) {
-		if (log.isDebugEnabled()) log.debug("refreshNormalizedDataElement(normalizedDataElement="+normalizedDataElement+")");
+	// must be called in a transaction, returns the number of values updated
+	private long updateNormalizedDataElementValues(NormalizedDataElement normalizedDataElement, Period period) {
+		List<DataLocation> dataLocations = listLocations(DataLocation.class);
 		
-		getTransactionTemplate().execute(new TransactionCallbackWithoutResult() {
-			@Override
-			protected void doInTransactionWithoutResult(TransactionStatus arg0) {
-				sessionFactory.getCurrentSession().setFlushMode(FlushMode.COMMIT);
-				
-				NormalizedDataElement newNormalizedDataElement = dataService.getData(normalizedDataElement.getId(), NormalizedDataElement.class);
+		// the data locations are evaluated and written batchSize at a time, so that only the values
+		// of one batch are held in memory whatever the number of data locations
+		long evaluationTime = 0;
+		long databaseTime = 0;
+		StatelessSession statelessSession = openStatelessSession();
+		NormalizedDataElementValueWriter writer = new NormalizedDataElementValueWriter(valueService, sessionFactory, statelessSession, normalizedDataElement, period, batchSize);
+		long errorCount = 0;
+		try {
+			for (int start = 0; start < dataLocations.size(); start += batchSize) {
+				List<DataLocation> batch = dataLocations.subList(start, Math.min(start + batchSize, dataLocations.size()));
+				long evaluationStart = System.nanoTime();
+				List<NormalizedDataElementValue> newValues = expressionService.calculateValues(normalizedDataElement, batch, period);
+				long evaluated = System.nanoTime();
+				evaluationTime += evaluated - evaluationStart;
 				
-				Long count = 0L;
-				for (Iterator<Object[]> iterator = getCombinations(DataLocation.class); iterator.hasNext();) {
-					Object[] row = (Object[]) iterator.next();
-					DataLocation dataLocation = (DataLocation)row[0];
-					Period period = (Period)row[1];
-					
-					// TODO improve performance by getting all values at the same time
-					updateNormalizedDataElementValue(newNormalizedDataElement, dataLocation, period);
-					count++;
+				for (int i = 0; i < batch.size(); i++) {
+					if (newValues.get(i).getStatus() == Status.ERROR) errorCount++;
+					writer.write(batch.get(i), newValues.get(i));
 				}
-				if (progress != null) progress.incrementProgress(count);
-				
-				updateSources(newNormalizedDataElement);
-				newNormalizedDataElement.setRefreshed(new Date());
-				dataService.save(newNormalizedDataElement);
+				writer.flush();
+				databaseTime += System.nanoTime() - evaluated;
 			}
-		});
+		} finally {
+			if (statelessSession != null) statelessSession.close();
+		}
+		if (log.isDebugEnabled()) log.debug("updated NDE values for period: "+period+", changed: "+writer.getChangedCount()+", unchanged: "+writer.getUnchangedCount());
+		metrics.record(normalizedDataElement, dataLocations.size(), writer.getChangedCount(), evaluationTime, databaseTime, errorCount);
 		
-		sessionFactory.getCurrentSession().clear();
+		// the dependents are only outdated if a value changed
+		if (writer.getChangedCount() > 0) normalizedDataElement.setLastValueChanged(new Date());
+		return dataLocations.size();
 	}
 	
+	// the source map of a data is built from the ones of its dependencies, which are refreshed before it, so
+	// the maps built during a run are kept and the stored ones are only read for the dependencies not refreshed
 	private void updateSources(Data<?> data) {
-		Map<String, Map<String, List<String>>> originalSourceMap = new HashMap<String, Map<String, List<String>>>();
+		// the same expression is usually used for many periods and types
+		Map<String, Collection<Data<?>>> dependenciesByExpression = new HashMap<String, Collection<Data<?>>>();
+		
+		Map<String, Map<String, List<String>>> sourceMap = new HashMap<String, Map<String, List<String>>>();
 		for (Period period : periodService.listPeriods()) {
-			if (!originalSourceMap.containsKey(period.getId()+"")) {
-				originalSourceMap.put(period.getId()+"", new HashMap<String, List<String>>());
-			}
-			
-			Map<String, List<String>> jsonMap = new HashMap<String, List<String>>(originalSourceMap.get(period.getId()+""));
+			Map<String, List<String>> jsonMap = new HashMap<String, List<String>>();
 			for (DataLocationType type : locationService.listTypes()) {
-				List<Data<?>> dependencies = new ArrayList<Data<?>>();
+				String expression = null;
 				if (data instanceof NormalizedDataElement) {
 					NormalizedDataElement normalizedDataElement = (NormalizedDataElement)data;
-					Map<String, ? extends Data> dependenciesMap = expressionService.getDataInExpression(normalizedDataElement.getExpression(period, type.getCode()), Data.class);
-					dependencies.addAll((Collection<Data<?>>)dependenciesMap.values());
+					expression = normalizedDataElement.getExpression(period, type.getCode());
 				}
 				else if (data instanceof Calculation) {
 					Calculation calculation = (Calculation)data;
-					Map<String, ? extends Data> dependenciesMap = expressionService.getDataInExpression(calculation.getExpression(), Data.class);
-					dependencies.addAll((Collection<Data<?>>)dependenciesMap.values());
+					expression = calculation.getExpression();
 				}
 				
+				Collection<Data<?>> dependencies = dependenciesByExpression.get(expression);
+				if (dependencies == null) {
+					Map<String, ? extends Data> dependenciesMap = expressionService.getDataInExpression(expression, Data.class);
+					dependencies = new ArrayList<Data<?>>((Collection<Data<?>>)dependenciesMap.values());
+					dependenciesByExpression.put(expression, dependencies);
+				}
+				
+				if (dependencies.isEmpty()) continue;
+				Set<String> sources = new TreeSet<String>();
 				for (Data<?> dependency : dependencies) {
-					if (!jsonMap.containsKey(type.getCode())) {
-						jsonMap.put(type.getCode(), new ArrayList<String>());
-					}
-					jsonMap.get(type.getCode()).addAll(dependency.getSources(period, type));
+					if (dependency != null) sources.addAll(getSources(dependency, period, type));
 				}
+				jsonMap.put(type.getCode(), new ArrayList<String>(sources));
 			}
-			
-			originalSourceMap.put(period.getId()+"", jsonMap);
+			sourceMap.put(period.getId()+"", jsonMap);
 		}
+		sourceMaps.put(data.getId(), sourceMap);
 		
-		
+		// the map is only written again if the sources changed
 		if (data instanceof NormalizedDataElement) {
 			NormalizedDataElement normalizedDataElement = (NormalizedDataElement)data;
-			normalizedDataElement.setSourceMap(originalSourceMap);
+			if (!sourceMap.equals(normalizedDataElement.getSourceMap())) normalizedDataElement.setSourceMap(sourceMap);
 		}
 		else if (data instanceof Calculation) {
 			Calculation calculation = (Calculation)data;
-			calculation.setSourceMap(originalSourceMap);
+			if (!sourceMap.equals(calculation.getSourceMap())) calculation.setSourceMap(sourceMap);
 		}
 	}
 	
-	private void collectOrderedDependencies(Data data, Collection<Data> dependencies, Class<? extends Data> clazz) {
-		if (dependencies.contains(data)) return;
+	private Collection<String> getSources(Data<?> dependency, Period period, DataLocationType type) {
+		Map<String, Map<String, List<String>>> sourceMap = sourceMaps.get(dependency.getId());
+		if (sourceMap == null) return dependency.getSources(period, type);
 		
-		dependencies.add(data);
-		if (data instanceof NormalizedDataElement) {
-			NormalizedDataElement normalizedDataElement = (NormalizedDataElement)data;
-			for (String expression : normalizedDataElement.getExpressions()) {
-				Map<String, ? extends Data> dependenciesMap = expressionService.getDataInExpression(expression, clazz);
-				for (Data dependency : dependenciesMap.values()) {
-					if (dependency != null) collectOrderedDependencies(dependency, dependencies, clazz);
-				}
-			}
-		}
-		if (data instanceof Calculation) {
-			Calculation calculation = (Calculation)data;
-			Map<String, ? extends Data> dependenciesMap = expressionService.getDataInExpression(calculation.getExpression(), clazz);
-			for (Data dependency : dependenciesMap.values()) {
-				if (dependency != null) collectOrderedDependencies(dependency, dependencies, clazz);
-			}
-		}
+		Map<String, List<String>> periodSourceMap = sourceMap.get(period.getId()+"");
+		if (periodSourceMap == null || !periodSourceMap.containsKey(type.getCode())) return Collections.emptyList();
+		return periodSourceMap.get(type.getCode());
 	}
 	
 	/**
-	 * Refreshes all normalized data elements and calculation (in that order). Builds a dependency tree and
-	 * refreshes first the root then the leaves, so at the end all data is guaranteed to be updated based
-	 * on up-to-date values. If a progress object is passed as a param, the progress will be updated.
+	 * Refreshes all normalized data elements and calculations. Builds the dependency graph once and refreshes
+	 * a data as soon as all the data it depends on have been refreshed, so at the end all data is guaranteed
+	 * to be updated based on up-to-date values. Data that do not depend on each other are refreshed concurrently,
+	 * see {@link #setParallelism(int)}, each in its own transaction. If a progress object is passed as a param,
+	 * the progress will be updated.
+	 * 
+	 * The refresh can be paused and cancelled between two data and periods, see {@link RefreshControl}, aborting
+	 * the progress also cancels it. A cancelled refresh throws a {@link RefreshCancelledException} once the data
+	 * being refreshed are done.
 	 * 
 	 * @param progress the progress object to keep track of the progress or null if not desired
 	 */
 	@Transactional(readOnly = true)
-	public void refreshAll(final Progress progress) {
-		if (log.isDebugEnabled()) log.debug("refreshAll(progress)");
-		
-		List<Calculation<?>> calculations = sessionFactory.getCurrentSession().createCriteria(Calculation.class).list();
-		if (log.isDebugEnabled()) log.debug("calculation size: " + calculations.size());
-		
-		List<Data> calculationDependencySet = new ArrayList<Data>();
-		for (Calculation<?> calculation : calculations) {
-			Set<Data> calculationDependencies = new HashSet<Data>();
-			collectOrderedDependencies(calculation, calculationDependencies, NormalizedDataElement.class);
-			calculationDependencySet.addAll(calculationDependencies);
-			calculationDependencySet.remove(calculation);
-		}
-		removeNulls(calculationDependencySet);
-		if (log.isDebugEnabled()) log.debug("dependencies of calculation size: "+calculationDependencySet.size());
-		
-		List<NormalizedDataElement> normalizedDataElements = sessionFactory.getCurrentSession().createCriteria(NormalizedDataElement.class).list();
-		if (log.isDebugEnabled()) log.debug("normalized data element size: " + normalizedDataElements.size());
+	public void refreshAll(Progress progress) {
+		refreshAll(periodService.listPeriods(), progress);
+	}
+	
+	/**
+	 * Same as {@link #refreshAll(Progress)}, but only the values of the given periods are refreshed. The
+	 * last refreshed flag of the data is only set if the given periods are all the periods.
+	 * 
+	 * @param periods the periods to refresh
+	 * @param progress the progress object to keep track of the progress or null if not desired
+	 */
+	@Transactional(readOnly = true)
+	public void refreshAll(List<Period> periods, Progress progress) {
+		if (log.isDebugEnabled()) log.debug("refreshAll(periods="+periods+", progress)");
 		
-		List<Data> dataElementDependencySet = new ArrayList<Data>();
-		for (NormalizedDataElement dataElement : normalizedDataElements) {
-			Set<Data> dataElementDependencies = new HashSet<Data>();
-			collectOrderedDependencies(dataElement, dataElementDependencies, NormalizedDataElement.class);
-			dataElementDependencySet.addAll(dataElementDependencies);
+		RefreshMetrics.Run run = startRun("refreshAll", progress);
+		boolean failed = true;
+		try {
+			refreshGraph(null, periods, run);
+			failed = false;
+		} finally {
+			finishRun(run, failed);
 		}
-		removeNulls(dataElementDependencySet);
-		if (log.isDebugEnabled()) log.debug("dependencies of normalized data elements size: " + dataElementDependencySet.size());
+	}
 	
+	// refreshes the given data and its dependencies, or all the data if null, returns the ids of the data refreshed
+	private Set<Long> refreshGraph(Long rootId, List<Period> periods, Progress progress) {
+		Map<Long, Set<Long>> dependenciesById = new HashMap<Long, Set<Long>>();
+		Map<Long, Set<Long>> dependentsById = new HashMap<Long, Set<Long>>();
+		Map<Long, Date> lastValueChangedById = new HashMap<Long, Date>();
+		Set<Long> calculationIds = loadRefreshGraph(dependenciesById, dependentsById, lastValueChangedById);
+		if (rootId != null) {
+			// only the root and the data it depends on are refreshed
+			List<Long> orderedIds = new ArrayList<Long>();
+			collectDependencies(rootId, dependenciesById, new HashSet<Long>(), orderedIds);
+			Set<Long> scopedIds = new HashSet<Long>(orderedIds);
+			dependenciesById.keySet().retainAll(scopedIds);
+			calculationIds.retainAll(scopedIds);
+		}
+		
+		long dataLocationCount = periods.size() * countLocations(DataLocation.class);
+		long calculationLocationCount = periods.size() * countLocations(CalculationLocation.class);
+		boolean allPeriods = containsAllPeriods(periods);
 		if (progress != null) progress.setMaximum(
-			// all dependencies of NDEs
-			(dataElementDependencySet.size() * periodService.listPeriods().size() * countLocations(DataLocation.class)) +
-			// all dependent NDEs of calculations
-			(calculationDependencySet.size() * periodService.listPeriods().size() * countLocations(DataLocation.class)) +
+			// all normalized data elements
+			((dependenciesById.size() - calculationIds.size()) * dataLocationCount) +
 			// all calculations
-			(periodService.listPeriods().size() * countLocations(CalculationLocation.class)) * calculations.size()
+			(calculationIds.size() * calculationLocationCount)
 		);
 		
-		// refresh normalized data elements
-		while (!normalizedDataElements.isEmpty()) {
-			final NormalizedDataElement normalizedDataElement = normalizedDataElements.get(0);
-			
-			List<NormalizedDataElement> uptodateElements = refreshNormalizedDataElementWithoutSettingProgress(normalizedDataElement, progress);
-			normalizedDataElements.remove(normalizedDataElement);
+		// number of dependencies each data is still waiting for, raw data elements are not waited for
+		Map<Long, Integer> pendingById = new HashMap<Long, Integer>();
+		List<Long> readyIds = new ArrayList<Long>();
+		for (Entry<Long, Set<Long>> entry : dependenciesById.entrySet()) {
+			int pending = countPendingDependencies(entry.getValue(), dependenciesById);
+			if (pending == 0) readyIds.add(entry.getKey());
+			else pendingById.put(entry.getKey(), pending);
 		}
 		
-		// refresh all calculations
-		for (Calculation<?> calculation : calculations) {
-			refreshCalculationWithoutSettingProgress(calculation, progress);
+		ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+		CompletionService<RefreshResult> completionService = new ExecutorCompletionService<RefreshResult>(executor);
+		try {
+			int running = 0;
+			// once cancelled, nothing more is submitted and the data being refreshed are waited for
+			RefreshCancelledException cancelled = null;
+			while (true) {
+				if (cancelled == null && progress != null) {
+					try {
+						checkControl(progress);
+					} catch (RefreshCancelledException e) {
+						cancelled = e;
+					}
+				}
+				if (cancelled != null) {
+					if (running == 0) throw cancelled;
+					readyIds.clear();
+				}
+				
+				for (Long dataId : readyIds) {
+					submitRefresh(completionService, dataId, calculationIds.contains(dataId), periods, allPeriods, getLatestDate(dependenciesById.get(dataId), lastValueChangedById), progress);
+					running++;
+				}
+				readyIds.clear();
+				
+				if (running == 0) {
+					if (pendingById.isEmpty()) return dependenciesById.keySet();
+					
+					// only happens with circular dependencies, those are refreshed in any order
+					Long dataId = pendingById.keySet().iterator().next();
+					log.warn("circular dependency found, refreshing data without waiting for its dependencies: "+dataId);
+					pendingById.remove(dataId);
+					readyIds.add(dataId);
+					continue;
+				}
+				
+				RefreshResult result;
+				try {
+					result = completionService.take().get();
+				} catch (ExecutionException e) {
+					if (!(e.getCause() instanceof RefreshCancelledException)) throw e;
+					cancelled = (RefreshCancelledException) e.getCause();
+					running--;
+					continue;
+				}
+				running--;
+				
+				lastValueChangedById.put(result.dataId, result.lastValueChanged);
+				if (progress != null) progress.incrementProgress(calculationIds.contains(result.dataId) ? calculationLocationCount : dataLocationCount);
+				
+				if (dependentsById.containsKey(result.dataId)) {
+					for (Long dependentId : dependentsById.get(result.dataId)) {
+						Integer pending = pendingById.get(dependentId);
+						if (pending == null) continue;
+						if (pending == 1) {
+							pendingById.remove(dependentId);
+							readyIds.add(dependentId);
+						}
+						else pendingById.put(dependentId, pending - 1);
+					}
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("refresh interrupted", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException) throw (RuntimeException)e.getCause();
+			throw new IllegalStateException("refresh failed", e.getCause());
+		} finally {
+			executor.shutdownNow();
 		}
 	}
 	
 	/**
-	 * Refreshes the specified calculation. If this calculation references a data element, it will
-	 * be refreshed first. The progress will be kept track of using the passed progress param.
-	 *
+	 * Same as {@link #refreshAll(List, Progress)}, but the work is split in units, one for each normalized data element
+	 * or calculation and period, that are published on the given queue and run by the {@link RefreshUnitWorker}s reading
+	 * from it, possibly on other nodes. The values of a period only depend on the values of the same period, so a unit
+	 * is published as soon as the units of the dependencies of its data for the same period are done. Each data is
+	 * marked as refreshed by this method once all its units are done.
+	 * 
+	 * This method returns once all the units are done and fails if one of them failed, the units that were
+	 * published but not claimed yet are then dropped. The results of the units are only read by the refresh that
+	 * published them, so several refreshes can use the same queue. It also fails if no unit is done for longer than
+	 * the unit timeout, see {@link #setUnitTimeout(long)}, typically because no node runs a {@link RefreshUnitWorker}.
+	 * 
+	 * @param periods the periods to refresh
+	 * @param queue the queue the units are published on
 	 * @param progress the progress object to keep track of the progress or null if not desired
 	 */
 	@Transactional(readOnly = true)
-	public void refreshCalculation(Calculation<?> calculation, Progress progress) {
-		// set progress maximum - we count the number of NormalizedDataElement dependencies
-		Set<Data> dependencySet = new HashSet<Data>();
-		collectOrderedDependencies(calculation, dependencySet, NormalizedDataElement.class);
-		dependencySet.remove(calculation);
-		removeNulls(dependencySet);
-		if (progress != null)  {
-			progress.setMaximum(
-				// all dependent NDEs
-				(dependencySet.size() * periodService.listPeriods().size() * countLocations(DataLocation.class)) +
-				// the calculation itself
-				(periodService.listPeriods().size() * countLocations(CalculationLocation.class))
-			);
-		}
+	public void refreshAll(List<Period> periods, RefreshUnitQueue queue, Progress progress) {
+		if (log.isDebugEnabled()) log.debug("refreshAll(periods="+periods+", queue="+queue+", progress)");
 		
-		refreshCalculationWithoutSettingProgress(calculation, progress);
+		RefreshMetrics.Run run = startRun("refreshAll", progress);
+		boolean failed = true;
+		try {
+			refreshAllUnits(periods, queue, run);
+			failed = false;
+		} finally {
+			finishRun(run, failed);
+		}
 	}
 	
-	private void refreshCalculationWithoutSettingProgress(Calculation<?> calculation, Progress progress) {
+	private void refreshAllUnits(List<Period> periods, RefreshUnitQueue queue, Progress progress) {
+		Map<Long, Set<Long>> dependenciesById = new HashMap<Long, Set<Long>>();
+		Map<Long, Set<Long>> dependentsById = new HashMap<Long, Set<Long>>();
+		Map<Long, Date> lastValueChangedById = new HashMap<Long, Date>();
+		Set<Long> calculationIds = loadRefreshGraph(dependenciesById, dependentsById, lastValueChangedById);
+		
+		long dataLocationCount = countLocations(DataLocation.class);
+		long calculationLocationCount = countLocations(CalculationLocation.class);
+		boolean allPeriods = containsAllPeriods(periods);
+		if (progress != null) progress.setMaximum(periods.size() * (
+			// all normalized data elements
+			((dependenciesById.size() - calculationIds.size()) * dataLocationCount) +
+			// all calculations
+			(calculationIds.size() * calculationLocationCount)
+		));
+		
+		if (periods.isEmpty()) return;
 		
-		// refresh the calculation
-		Map<String, DataElement> dependenciesMap = expressionService.getDataInExpression(calculation.getExpression(), DataElement.class);
+		// each unit decides whether its data is outdated using the dates known before anything was refreshed,
+		// as the units of the same data that ran before it change its last value changed date
+		Map<Long, Date> startLastValueChangedById = new HashMap<Long, Date>(lastValueChangedById);
 		
-		Date latestDependency = null;
-		List<NormalizedDataElement> uptodateElements = new ArrayList<NormalizedDataElement>(); 
-		for (DataElement<?> dependency : dependenciesMap.values()) {
-			if (!uptodateElements.contains(dependency)) {
-				Date dependencyDate = refreshDataElement(dependency, uptodateElements, progress);
-				if (latestDependency == null || (dependencyDate != null && dependencyDate.after(latestDependency))) latestDependency = dependencyDate;
+		// for each period, the number of dependencies each data is still waiting for
+		Map<Long, Map<Long, Integer>> pendingByPeriod = new HashMap<Long, Map<Long, Integer>>();
+		// the number of units of each data that are not done yet
+		Map<Long, Integer> remainingById = new HashMap<Long, Integer>();
+		Set<Long> refreshedIds = new HashSet<Long>();
+		Set<String> publishedKeys = new HashSet<String>();
+		// the results of the other refreshes using the same queue are left to them
+		String runId = UUID.randomUUID().toString();
+		
+		try {
+			for (Long dataId : dependenciesById.keySet()) remainingById.put(dataId, periods.size());
+			for (Period period : periods) {
+				Map<Long, Integer> pendingById = new HashMap<Long, Integer>();
+				for (Entry<Long, Set<Long>> entry : dependenciesById.entrySet()) {
+					int pending = countPendingDependencies(entry.getValue(), dependenciesById);
+					if (pending == 0) publishUnit(queue, runId, publishedKeys, entry.getKey(), period.getId(), calculationIds, dependenciesById, startLastValueChangedById, lastValueChangedById);
+					else pendingById.put(entry.getKey(), pending);
+				}
+				pendingByPeriod.put(period.getId(), pendingById);
+			}
+			
+			// once cancelled, nothing more is published and the units already published are waited for
+			RefreshCancelledException cancelled = null;
+			long lastResultTime = System.currentTimeMillis();
+			while (!remainingById.isEmpty()) {
+				if (cancelled == null && progress != null) {
+					try {
+						checkControl(progress);
+					} catch (RefreshCancelledException e) {
+						cancelled = e;
+					}
+				}
+				if (cancelled != null && publishedKeys.isEmpty()) throw cancelled;
+				
+				if (publishedKeys.isEmpty()) {
+					// only happens with circular dependencies, those are refreshed in any order
+					for (Entry<Long, Map<Long, Integer>> entry : pendingByPeriod.entrySet()) {
+						if (entry.getValue().isEmpty()) continue;
+						Long dataId = entry.getValue().keySet().iterator().next();
+						log.warn("circular dependency found, refreshing data without waiting for its dependencies: "+dataId+", period: "+entry.getKey());
+						entry.getValue().remove(dataId);
+						publishUnit(queue, runId, publishedKeys, dataId, entry.getKey(), calculationIds, dependenciesById, startLastValueChangedById, lastValueChangedById);
+						break;
+					}
+					continue;
+				}
+				
+				RefreshUnitResult result = queue.takeResult(runId, RESULT_TIMEOUT);
+				if (result == null) {
+					if (log.isDebugEnabled()) log.debug("waiting for units: "+publishedKeys);
+					// no node runs the units, or they all stopped
+					if (System.currentTimeMillis() - lastResultTime > unitTimeout) {
+						throw new IllegalStateException("no refresh unit done for "+unitTimeout+" ms, check that refresh unit workers are running, waiting for: "+publishedKeys);
+					}
+					continue;
+				}
+				lastResultTime = System.currentTimeMillis();
+				RefreshUnit unit = result.getUnit();
+				if (!publishedKeys.remove(getUnitKey(unit.getDataId(), unit.getPeriodId()))) {
+					log.warn("ignoring result of a unit that was not published by this refresh: "+result);
+					continue;
+				}
+				if (result.isFailed()) throw new IllegalStateException("refresh unit failed: "+unit+", cause: "+result.getFailure());
+				
+				lastValueChangedById.put(unit.getDataId(), result.getLastValueChanged());
+				if (result.isRefreshed()) refreshedIds.add(unit.getDataId());
+				if (progress != null) progress.incrementProgress(unit.isCalculation() ? calculationLocationCount : dataLocationCount);
+				
+				int remaining = remainingById.remove(unit.getDataId()) - 1;
+				if (remaining > 0) remainingById.put(unit.getDataId(), remaining);
+				else if (refreshedIds.contains(unit.getDataId())) completeRefresh(unit.getDataId(), unit.isCalculation(), allPeriods);
+				
+				if (dependentsById.containsKey(unit.getDataId())) {
+					Map<Long, Integer> pendingById = pendingByPeriod.get(unit.getPeriodId());
+					for (Long dependentId : dependentsById.get(unit.getDataId())) {
+						Integer pending = pendingById.get(dependentId);
+						if (pending == null) continue;
+						if (pending == 1) {
+							pendingById.remove(dependentId);
+							if (cancelled == null) publishUnit(queue, runId, publishedKeys, dependentId, unit.getPeriodId(), calculationIds, dependenciesById, startLastValueChangedById, lastValueChangedById);
+						}
+						else pendingById.put(dependentId, pending - 1);
+					}
+				}
 			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("refresh interrupted", e);
+		} finally {
+			// what is left when the refresh fails, its results are not taken by anyone else
+			queue.clear(runId);
 		}
+	}
+	
+	private static void publishUnit(RefreshUnitQueue queue, String runId, Set<String> publishedKeys, Long dataId, Long periodId, Set<Long> calculationIds, 
+			Map<Long, Set<Long>> dependenciesById, Map<Long, Date> startLastValueChangedById, Map<Long, Date> lastValueChangedById) {
+		RefreshUnit unit = new RefreshUnit(runId, dataId, periodId, calculationIds.contains(dataId), startLastValueChangedById.get(dataId), 
+				getLatestDate(dependenciesById.get(dataId), lastValueChangedById));
+		if (log.isDebugEnabled()) log.debug("publishing: "+unit);
+		publishedKeys.add(getUnitKey(dataId, periodId));
+		queue.publish(unit);
+	}
+	
+	private static String getUnitKey(Long dataId, Long periodId) {
+		return dataId+"-"+periodId;
+	}
+	
+	/**
+	 * Runs a unit published by {@link #refreshAll(List, RefreshUnitQueue, Progress)}, usually called by a
+	 * {@link RefreshUnitWorker}. The values of the period are only refreshed if the data is outdated, following
+	 * the same rules as {@link #refreshAll(List, Progress)}, in their own transaction.
+	 * 
+	 * @param unit the unit to run
+	 * @return the result to acknowledge the unit with
+	 */
+	public RefreshUnitResult refreshUnit(final RefreshUnit unit) {
+		if (log.isDebugEnabled()) log.debug("refreshUnit(unit="+unit+")");
 		
-		// we refresh if the data element was changed after the last refresh
-		if (calculation.getRefreshed() == null || calculation.getTimestamp().after(calculation.getRefreshed())) {
-			refreshCalculationOnly(calculation, progress);
-		}
+		Period period = getTransactionTemplate().execute(new TransactionCallback<Period>() {
+			@Override
+			public Period doInTransaction(TransactionStatus arg0) {
+				Date timestamp, refreshed;
+				if (unit.isCalculation()) {
+					Calculation<?> calculation = dataService.getData(unit.getDataId(), Calculation.class);
+					timestamp = calculation.getTimestamp();
+					refreshed = calculation.getRefreshed();
+				}
+				else {
+					NormalizedDataElement normalizedDataElement = dataService.getData(unit.getDataId(), NormalizedDataElement.class);
+					timestamp = normalizedDataElement.getTimestamp();
+					refreshed = normalizedDataElement.getRefreshed();
+				}
+				if (!isOutdated(timestamp, unit.getLastValueChanged(), refreshed, unit.getLatestDependency())) return null;
+				return (Period) sessionFactory.getCurrentSession().get(Period.class, unit.getPeriodId());
+			}
+		});
+		if (period != null) refreshPeriod(unit.getDataId(), unit.isCalculation(), period, unit.getLatestDependency());
+		
+		final boolean refreshed = period != null;
+		Date lastValueChanged = getTransactionTemplate().execute(new TransactionCallback<Date>() {
+			@Override
+			public Date doInTransaction(TransactionStatus arg0) {
+				// the units are not part of a run on this node, their period time is saved here
+				if (refreshed) valueService.saveRefreshPeriodTimes(Collections.singletonMap(unit.getDataId(), metrics.getPeriodTime(unit.getDataId())));
+				return dataService.getData(unit.getDataId(), Data.class).getLastValueChanged();
+			}
+		});
+		return new RefreshUnitResult(unit, refreshed, lastValueChanged, null);
+	}
+	
+	// loads the normalized data elements and calculations with their dependencies, returns the ids of the calculations,
+	// the last value changed dates of the raw data elements are also loaded as they are the roots of the graph
+	private Set<Long> loadRefreshGraph(Map<Long, Set<Long>> dependenciesById, Map<Long, Set<Long>> dependentsById, Map<Long, Date> lastValueChangedById) {
+		Set<Long> calculationIds = new HashSet<Long>();
 		
-		// we refresh if a value was saved after the last refresh
-		else if (calculation.getRefreshed() == null || calculation.getLastValueChanged().after(calculation.getRefreshed())) {
-			refreshCalculationOnly(calculation, progress);
+		List<NormalizedDataElement> normalizedDataElements = sessionFactory.getCurrentSession().createCriteria(NormalizedDataElement.class).list();
+		if (log.isDebugEnabled()) log.debug("normalized data element size: " + normalizedDataElements.size());
+		for (NormalizedDataElement normalizedDataElement : normalizedDataElements) {
+			addDependencies(normalizedDataElement, normalizedDataElement.getExpressions(), dependenciesById, dependentsById);
+			lastValueChangedById.put(normalizedDataElement.getId(), normalizedDataElement.getLastValueChanged());
 		}
 		
-		// we refresh if the last value of the dependency is after the last refreshed date of this element
-		// this means some values of the dependency were changed after us
-		else if (latestDependency != null && latestDependency.after(calculation.getRefreshed())) {
-			refreshCalculationOnly(calculation, progress);
+		List<Calculation<?>> calculations = sessionFactory.getCurrentSession().createCriteria(Calculation.class).list();
+		if (log.isDebugEnabled()) log.debug("calculation size: " + calculations.size());
+		for (Calculation<?> calculation : calculations) {
+			addDependencies(calculation, Collections.singleton(calculation.getExpression()), dependenciesById, dependentsById);
+			calculationIds.add(calculation.getId());
 		}
 		
-		else {
-			if (progress != null) progress.incrementProgress(periodService.listPeriods().size() * countLocations(CalculationLocation.class));
+		List<Object[]> rawDataElements = sessionFactory.getCurrentSession().createCriteria(RawDataElement.class)
+			.setProjection(Projections.projectionList().add(Projections.id()).add(Projections.property("lastValueChanged"))).list();
+		for (Object[] rawDataElement : rawDataElements) {
+			lastValueChangedById.put((Long)rawDataElement[0], (Date)rawDataElement[1]);
 		}
+		return calculationIds;
 	}
 	
-	public void updateCalculationPartialValues(Calculation<?> calculation, CalculationLocation location, Period period) {
-		//valueService.deleteValues(calculation, location, period);
+	// raw data elements are not part of the graph and are not waited for
+	private static int countPendingDependencies(Set<Long> dependencyIds, Map<Long, Set<Long>> dependenciesById) {
+		int pending = 0;
+		for (Long dependencyId : dependencyIds) {
+			if (dependenciesById.containsKey(dependencyId)) pending++;
+		}
+		return pending;
+	}
+	
+	private static class RefreshResult {
+		final Long dataId;
+		final Date lastValueChanged;
 		
-		for (CalculationPartialValue newPartialValue : expressionService.calculatePartialValues(calculation, location, period)) {
-			valueService.save(newPartialValue);
-			// sessionFactory.getCurrentSession().evict(newPartialValue);
+		RefreshResult(Long dataId, Date lastValueChanged) {
+			this.dataId = dataId;
+			this.lastValueChanged = lastValueChanged;
 		}
-		calculation.setLastValueChanged(new Date());
 	}
 	
-	private void refreshCalculationOnly(final Calculation<?> calculation, final Progress progress) {
-		if (log.isDebugEnabled()) log.debug("refreshCalculationOnly(calculation="+calculation+")");
+	private static Date getLatestDate(Set<Long> dataIds, Map<Long, Date> datesById) {
+		Date latestDate = null;
+		for (Long dataId : dataIds) {
+			Date date = datesById.get(dataId);
+			if (latestDate == null || (date != null && date.after(latestDate))) latestDate = date;
+		}
+		return latestDate;
+	}
+	
+	private void submitRefresh(CompletionService<RefreshResult> completionService, final Long dataId, final boolean calculation, 
+			final List<Period> periods, final boolean allPeriods, final Date latestDependency, final Progress run) {
+		completionService.submit(new Callable<RefreshResult>() {
+			@Override
+			public RefreshResult call() {
+				return refreshData(dataId, calculation, periods, allPeriods, latestDependency, run);
+			}
+		});
+	}
+	
+	// runs in a worker thread, each step uses its own transaction and session
+	private RefreshResult refreshData(final Long dataId, final boolean calculation, List<Period> periods, boolean allPeriods, final Date latestDependency, Progress run) {
+		if (log.isDebugEnabled()) log.debug("refreshData(dataId="+dataId+", latestDependency="+latestDependency+")");
 		
-		getTransactionTemplate().execute(new TransactionCallbackWithoutResult() {
+		boolean outdated = getTransactionTemplate().execute(new TransactionCallback<Boolean>() {
 			@Override
-			protected void doInTransactionWithoutResult(TransactionStatus arg0) {
-				sessionFactory.getCurrentSession().setFlushMode(FlushMode.COMMIT);
-				
-				Calculation<?> newCalculation = dataService.getData(calculation.getId(), Calculation.class);
-				valueService.deleteValues(newCalculation, null, null);
-				
-				Long count = 0L;
-				for (Iterator<Object[]> iterator = getCombinations(CalculationLocation.class); iterator.hasNext();) {
-					Object[] row = (Object[]) iterator.next();
-					CalculationLocation location = (CalculationLocation)row[0];
-					Period period = (Period)row[1];
-					
-					// TODO improve performance by getting all values at the same time
-					updateCalculationPartialValues(newCalculation, location, period);
-					count++;
+			public Boolean doInTransaction(TransactionStatus arg0) {
+				if (calculation) {
+					Calculation<?> newCalculation = dataService.getData(dataId, Calculation.class);
+					return isOutdated(newCalculation.getTimestamp(), newCalculation.getLastValueChanged(), newCalculation.getRefreshed(), latestDependency);
+				}
+				else {
+					NormalizedDataElement newNormalizedDataElement = dataService.getData(dataId, NormalizedDataElement.class);
+					return isOutdated(newNormalizedDataElement.getTimestamp(), newNormalizedDataElement.getLastValueChanged(), newNormalizedDataElement.getRefreshed(), latestDependency);
 				}
-				if (progress != null) progress.incrementProgress(count);
-				
-				updateSources(newCalculation);
-				newCalculation.setRefreshed(new Date());
-				dataService.save(newCalculation);
 			}
 		});
 		
-		sessionFactory.getCurrentSession().clear();
+		if (outdated) {
+			refreshPeriods(dataId, calculation, periods, latestDependency, null, run);
+			completeRefresh(dataId, calculation, allPeriods);
+		}
+		
+		Date lastValueChanged = getTransactionTemplate().execute(new TransactionCallback<Date>() {
+			@Override
+			public Date doInTransaction(TransactionStatus arg0) {
+				return dataService.getData(dataId, Data.class).getLastValueChanged();
+			}
+		});
+		return new RefreshResult(dataId, lastValueChanged);
 	}
 	
-	// TODO move to location service ?
-	private <T extends CalculationLocation> Iterator<Object[]> getCombinations(Class<T> clazz) {
-		Query query = sessionFactory.getCurrentSession().createQuery(
-			"select location, period from "+clazz.getSimpleName()+" location, Period period"
-		).setCacheable(true).setReadOnly(true);
-		return query.iterate();
+	// the data is refreshed if it changed, if values were saved or if the values of a dependency changed since the last refresh
+	private static boolean isOutdated(Date timestamp, Date lastValueChanged, Date refreshed, Date latestDependency) {
+		return getOutdatedReason(timestamp, lastValueChanged, refreshed, latestDependency) != null;
 	}
 	
-	// TODO move to location service ?
-	private <T extends CalculationLocation> Long countLocations(Class<T> clazz) {
-		Criteria criteria = sessionFactory.getCurrentSession().createCriteria(clazz);
-		criteria.setCacheable(true).setReadOnly(true);
-		return (Long)criteria.setProjection(Projections.rowCount()).uniqueResult();
+	// returns null if the data is up to date
+	private static String getOutdatedReason(Date timestamp, Date lastValueChanged, Date refreshed, Date latestDependency) {
+		if (refreshed == null) return "never refreshed";
+		if (timestamp.after(refreshed)) return "data changed";
+		if (lastValueChanged != null && lastValueChanged.after(refreshed)) return "values saved";
+		if (latestDependency != null && latestDependency.after(refreshed)) return "dependency values changed";
+		return null;
 	}
 	
-	public void setPeriodService(PeriodService periodService) {
-		this.periodService = periodService;
+	/**
+	 * Returns what {@link #refreshAll(List, Progress)} would refresh if it was called now with the given periods,
+	 * without refreshing anything. See {@link RefreshPlan}.
+	 * 
+	 * @param periods the periods to refresh
+	 * @return the plan
+	 */
+	@Transactional(readOnly = true)
+	public RefreshPlan planRefreshAll(List<Period> periods) {
+		return planRefresh(null, periods);
 	}
 	
-	public void setSessionFactory(SessionFactory sessionFactory) {
-		this.sessionFactory = sessionFactory;
+	/**
+	 * Returns what {@link #refreshCalculation(Calculation, List, Progress)} would refresh if it was called now with
+	 * the given periods, without refreshing anything: the normalized data elements the calculation depends on, then
+	 * the calculation. See {@link RefreshPlan}.
+	 * 
+	 * @param calculation the calculation to refresh
+	 * @param periods the periods to refresh
+	 * @return the plan
+	 */
+	@Transactional(readOnly = true)
+	public RefreshPlan planRefreshCalculation(Calculation<?> calculation, List<Period> periods) {
+		return planRefresh(calculation.getId(), periods);
 	}
 	
-	public void setExpressionService(ExpressionService expressionService) {
-		this.expressionService = expressionService;
+	// plans the refresh of the given data and its dependencies, or of all the data if null, a data is planned if
+	// it is outdated or if one of its dependencies is planned, as refreshing a data sets its last value changed date
+	private RefreshPlan planRefresh(Long rootId, List<Period> periods) {
+		Map<Long, Set<Long>> dependenciesById = new HashMap<Long, Set<Long>>();
+		Map<Long, Set<Long>> dependentsById = new HashMap<Long, Set<Long>>();
+		Map<Long, Date> lastValueChangedById = new HashMap<Long, Date>();
+		Set<Long> calculationIds = loadRefreshGraph(dependenciesById, dependentsById, lastValueChangedById);
+		
+		// dependencies first
+		List<Long> orderedIds = new ArrayList<Long>();
+		Set<Long> visited = new HashSet<Long>();
+		if (rootId != null) collectDependencies(rootId, dependenciesById, visited, orderedIds);
+		else {
+			for (Long dataId : dependenciesById.keySet()) collectDependencies(dataId, dependenciesById, visited, orderedIds);
+		}
+		
+		long dataLocationCount = periods.size() * countLocations(DataLocation.class);
+		long calculationLocationCount = periods.size() * countLocations(CalculationLocation.class);
+		// the period times measured before the application started are read from the database
+		Map<Long, Long> storedPeriodTimes = valueService.getRefreshPeriodTimes();
+		long averagePeriodTime = metrics.getAveragePeriodTime();
+		if (averagePeriodTime < 0 && !storedPeriodTimes.isEmpty()) {
+			long total = 0;
+			for (Long storedPeriodTime : storedPeriodTimes.values()) total += storedPeriodTime;
+			averagePeriodTime = total / storedPeriodTimes.size();
+		}
+		Date now = new Date();
+		
+		RefreshPlan plan = new RefreshPlan();
+		Set<Long> plannedIds = new HashSet<Long>();
+		for (Long dataId : orderedIds) {
+			Date latestDependency = null;
+			for (Long dependencyId : dependenciesById.get(dataId)) {
+				Date date = plannedIds.contains(dependencyId) ? now : lastValueChangedById.get(dependencyId);
+				if (latestDependency == null || (date != null && date.after(latestDependency))) latestDependency = date;
+			}
+			
+			boolean calculation = calculationIds.contains(dataId);
+			Data<?> data = calculation ? dataService.getData(dataId, Calculation.class) : dataService.getData(dataId, NormalizedDataElement.class);
+			Date refreshed = calculation ? ((Calculation<?>) data).getRefreshed() : ((NormalizedDataElement) data).getRefreshed();
+			String reason = getOutdatedReason(data.getTimestamp(), data.getLastValueChanged(), refreshed, latestDependency);
+			
+			if (reason == null) plan.addSkipped();
+			else {
+				plannedIds.add(dataId);
+				long periodTime = metrics.getPeriodTime(dataId);
+				if (periodTime < 0 && storedPeriodTimes.containsKey(dataId)) periodTime = storedPeriodTimes.get(dataId);
+				boolean measured = periodTime >= 0;
+				if (!measured) periodTime = averagePeriodTime;
+				plan.addEntry(new RefreshPlan.Entry(dataId, data.getCode(), calculation, reason, 
+						calculation ? calculationLocationCount : dataLocationCount, periodTime < 0 ? -1 : periodTime * periods.size(), measured));
+			}
+		}
+		if (log.isInfoEnabled()) log.info("refresh plan: "+plan);
+		return plan;
 	}
 	
-	public void setValueService(ValueService valueService) {
-		this.valueService = valueService;
+	private void collectDependencies(Long dataId, Map<Long, Set<Long>> dependenciesById, Set<Long> visited, List<Long> orderedIds) {
+		// raw data elements are not refreshed
+		if (!dependenciesById.containsKey(dataId) || !visited.add(dataId)) return;
+		for (Long dependencyId : dependenciesById.get(dataId)) collectDependencies(dependencyId, dependenciesById, visited, orderedIds);
+		orderedIds.add(dataId);
 	}
 	
-	public void setDataService(DataService dataService) {
-		this.dataService = dataService;
+	/**
+	 * Refreshes the specified calculation. If this calculation references a data element, it will
+	 * be refreshed first. The progress will be kept track of using the passed progress param.
+	 * 
+	 * The dependencies are scheduled like in {@link #refreshAll(Progress)}, on the part of the dependency
+	 * graph the calculation depends on.
+	 *
+	 * @param progress the progress object to keep track of the progress or null if not desired
+	 */
+	@Transactional(readOnly = true)
+	public void refreshCalculation(Calculation<?> calculation, Progress progress) {
+		refreshCalculation(calculation, periodService.listPeriods(), progress);
+	}
+	
+	/**
+	 * Same as {@link #refreshCalculation(Calculation, Progress)}, but only the values of the given periods are
+	 * refreshed. The last refreshed flag is only set if the given periods are all the periods.
+	 *
+	 * @param calculation the calculation to refresh
+	 * @param periods the periods to refresh
+	 * @param progress the progress object to keep track of the progress or null if not desired
+	 */
+	@Transactional(readOnly = true)
+	public void refreshCalculation(Calculation<?> calculation, List<Period> periods, Progress progress) {
+		RefreshMetrics.Run run = startRun("refreshCalculation: "+calculation.getCode(), progress);
+		boolean failed = true;
+		try {
+			refreshGraph(calculation.getId(), periods, run);
+			failed = false;
+		} finally {
+			finishRun(run, failed);
+		}
+	}
+	
+	public void updateCalculationPartialValues(Calculation<?> calculation, CalculationLocation location, Period period) {
+		//valueService.deleteValues(calculation, location, period);
+		
+		for (CalculationPartialValue newPartialValue : expressionService.calculatePartialValues(calculation, location, period)) {
+			valueService.save(newPartialValue);
+			// sessionFactory.getCurrentSession().evict(newPartialValue);
+		}
+		calculation.setLastValueChanged(new Date());
+	}
+	
+	// the data locations are evaluated once, the partial values of the other locations are then
+	// merged from the ones of their children, starting from the root locations
+	private <T extends CalculationPartialValue> long updateCalculationPartialValues(Calculation<T> calculation, List<DataLocation> dataLocations, List<Location> locations, 
+			Period period, CalculationPartialValueWriter<T> writer) {
+		Map<Long, List<CalculationLocation>> childrenByParent = getChildrenByParent(locations, dataLocations);
+		List<Location> roots = new ArrayList<Location>();
+		for (Location location : locations) {
+			if (location.getParent() == null) roots.add(location);
+		}
+		
+		// the data locations are evaluated batchSize at a time, their partial values are kept to be rolled up
+		Map<Long, List<T>> partialValuesByDataLocation = new HashMap<Long, List<T>>();
+		for (int start = 0; start < dataLocations.size(); start += batchSize) {
+			List<DataLocation> batch = dataLocations.subList(start, Math.min(start + batchSize, dataLocations.size()));
+			for (T partialValue : expressionService.calculatePartialValues(calculation, batch, period)) {
+				addToList(partialValuesByDataLocation, partialValue.getLocation().getId(), partialValue);
+				writer.write(partialValue);
+			}
+		}
+		
+		for (Location root : roots) {
+			rollUpCalculationPartialValues(calculation, root, period, childrenByParent, partialValuesByDataLocation, writer);
+		}
+		calculation.setLastValueChanged(new Date());
+		return dataLocations.size() + locations.size();
+	}
+	
+	private <T extends CalculationPartialValue> List<T> rollUpCalculationPartialValues(Calculation<T> calculation, Location location, Period period, 
+			Map<Long, List<CalculationLocation>> childrenByParent, Map<Long, List<T>> partialValuesByDataLocation, CalculationPartialValueWriter<T> writer) {
+		List<T> childrenPartialValues = new ArrayList<T>();
+		if (childrenByParent.containsKey(location.getId())) {
+			for (CalculationLocation child : childrenByParent.get(location.getId())) {
+				if (child instanceof DataLocation) {
+					if (partialValuesByDataLocation.containsKey(child.getId())) childrenPartialValues.addAll(partialValuesByDataLocation.get(child.getId()));
+				}
+				else childrenPartialValues.addAll(rollUpCalculationPartialValues(calculation, (Location) child, period, childrenByParent, partialValuesByDataLocation, writer));
+			}
+		}
+		
+		List<T> partialValues = expressionService.mergePartialValues(calculation, location, period, childrenPartialValues);
+		for (T partialValue : partialValues) {
+			writer.write(partialValue);
+		}
+		return partialValues;
+	}
+	
+	// the children are indexed here to avoid loading the collections of every location
+	private static Map<Long, List<CalculationLocation>> getChildrenByParent(List<Location> locations, List<DataLocation> dataLocations) {
+		Map<Long, List<CalculationLocation>> childrenByParent = new HashMap<Long, List<CalculationLocation>>();
+		for (Location location : locations) {
+			if (location.getParent() != null) addToList(childrenByParent, location.getParent().getId(), location);
+		}
+		for (DataLocation dataLocation : dataLocations) {
+			addToList(childrenByParent, dataLocation.getLocation().getId(), dataLocation);
+		}
+		return childrenByParent;
+	}
+	
+	private static <T> void addToList(Map<Long, List<T>> map, Long key, T value) {
+		if (!map.containsKey(key)) map.put(key, new ArrayList<T>());
+		map.get(key).add(value);
+	}
+	
+	private static <T> void addToSet(Map<Long, Set<T>> map, Long key, T value) {
+		if (!map.containsKey(key)) map.put(key, new HashSet<T>());
+		map.get(key).add(value);
+	}
+	
+	// must be called in a transaction, returns the number of locations updated, the stored partial
+	// values are compared with the new ones so that only the ones that changed are written
+	private <T extends CalculationPartialValue> long updateCalculationValues(Calculation<T> calculation, Period period) {
+		List<DataLocation> dataLocations = listLocations(DataLocation.class);
+		List<Location> locations = listLocations(Location.class);
+		
+		long start = System.nanoTime();
+		StatelessSession statelessSession = openStatelessSession();
+		long count;
+		CalculationPartialValueWriter<T> writer;
+		try {
+			writer = new CalculationPartialValueWriter<T>(valueService, sessionFactory, statelessSession, calculation, period, batchSize);
+			count = updateCalculationPartialValues(calculation, dataLocations, locations, period, writer);
+			writer.close();
+		} finally {
+			if (statelessSession != null) statelessSession.close();
+		}
+		
+		// the values are written as they are evaluated, the time spent writing is measured by the writer
+		long time = System.nanoTime() - start;
+		metrics.record(calculation, writer.getValueCount(), writer.getWrittenCount(), time - writer.getDatabaseTime(), writer.getDatabaseTime(), 0);
+		return count;
+	}
+	
+	// each period is refreshed in its own transaction and recorded in a checkpoint, so that a refresh
+	// that is interrupted does not refresh again the periods it already did when it is run again,
+	// the run is paused or cancelled between the periods
+	private void refreshPeriods(Long dataId, boolean calculation, List<Period> periods, Date latestDependency, Progress progress, Progress run) {
+		for (Period period : periods) {
+			checkControl(run);
+			long count = refreshPeriod(dataId, calculation, period, latestDependency);
+			if (progress != null) progress.incrementProgress(count);
+		}
+	}
+	
+	private long refreshPeriod(final Long dataId, final boolean calculation, final Period period, final Date latestDependency) {
+		long count = executeThrottled(new TransactionCallback<Long>() {
+			@Override
+			public Long doInTransaction(TransactionStatus arg0) {
+				sessionFactory.getCurrentSession().setFlushMode(FlushMode.COMMIT);
+				
+				if (calculation) {
+					Calculation<?> newCalculation = dataService.getData(dataId, Calculation.class);
+					RefreshCheckpoint checkpoint = valueService.getRefreshCheckpoint(newCalculation, period);
+					if (isCheckpointValid(checkpoint, newCalculation.getTimestamp(), newCalculation.getRefreshed(), latestDependency)) {
+						if (log.isDebugEnabled()) log.debug("period already refreshed: "+checkpoint);
+						return countLocations(CalculationLocation.class);
+					}
+					long count = updateCalculationValues(newCalculation, period);
+					valueService.saveRefreshCheckpoint(newCalculation, period);
+					dataService.save(newCalculation);
+					return count;
+				}
+				else {
+					NormalizedDataElement newNormalizedDataElement = dataService.getData(dataId, NormalizedDataElement.class);
+					RefreshCheckpoint checkpoint = valueService.getRefreshCheckpoint(newNormalizedDataElement, period);
+					if (isCheckpointValid(checkpoint, newNormalizedDataElement.getTimestamp(), newNormalizedDataElement.getRefreshed(), latestDependency)) {
+						if (log.isDebugEnabled()) log.debug("period already refreshed: "+checkpoint);
+						return countLocations(DataLocation.class);
+					}
+					long count = updateNormalizedDataElementValues(newNormalizedDataElement, period);
+					valueService.saveRefreshCheckpoint(newNormalizedDataElement, period);
+					dataService.save(newNormalizedDataElement);
+					return count;
+				}
+			}
+		});
+		throttleRows(count);
+		return count;
+	}
+	
+	// a checkpoint is only valid if it was made after the data was last completely refreshed,
+	// and neither the data nor its dependencies changed since
+	private static boolean isCheckpointValid(RefreshCheckpoint checkpoint, Date timestamp, Date refreshed, Date latestDependency) {
+		if (checkpoint == null) return false;
+		if (refreshed != null && !checkpoint.getRefreshed().after(refreshed)) return false;
+		if (timestamp.after(checkpoint.getRefreshed())) return false;
+		return latestDependency == null || !latestDependency.after(checkpoint.getRefreshed());
+	}
+	
+	// the report is saved in its own transaction, failing to save it does not fail the refresh
+	private RefreshMetrics.Run startRun(String name, Progress progress) {
+		RefreshMetrics.Run run = metrics.startRun(name, progress);
+		control.register(run);
+		return run;
+	}
+	
+	// waits while the refreshes are paused, throws a RefreshCancelledException if the run was cancelled
+	private void checkControl(Progress run) {
+		try {
+			control.await(run);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("refresh interrupted", e);
+		}
+	}
+	
+	private void finishRun(final RefreshMetrics.Run run, boolean failed) {
+		control.unregister(run);
+		metrics.finishRun(run, failed);
+		sourceMaps.clear();
+		if (log.isInfoEnabled()) log.info("refresh finished: "+run+", time: "+run.getElapsedTime()+"ms, slowest data: "+run.getSlowestDataMetrics());
+		
+		try {
+			getTransactionTemplate().execute(new TransactionCallbackWithoutResult() {
+				@Override
+				protected void doInTransactionWithoutResult(TransactionStatus arg0) {
+					sessionFactory.getCurrentSession().save(run.createReport(Metadata.getCurrent().getApplicationVersion()));
+					
+					// the period times are kept to estimate the next refresh plans after a restart
+					Map<Long, Long> periodTimes = new HashMap<Long, Long>();
+					for (RefreshMetrics.DataMetrics dataMetrics : run.getDataMetrics()) {
+						long periodTime = metrics.getPeriodTime(dataMetrics.getDataId());
+						if (periodTime >= 0) periodTimes.put(dataMetrics.getDataId(), periodTime);
+					}
+					if (!periodTimes.isEmpty()) valueService.saveRefreshPeriodTimes(periodTimes);
+				}
+			});
+		} catch (RuntimeException e) {
+			log.warn("could not save refresh report: "+run, e);
+		}
+	}
+	
+	// the data is only marked as refreshed once all the periods are, the checkpoints are not needed anymore then
+	private void completeRefresh(final Long dataId, final boolean calculation, final boolean allPeriods) {
+		getTransactionTemplate().execute(new TransactionCallbackWithoutResult() {
+			@Override
+			protected void doInTransactionWithoutResult(TransactionStatus arg0) {
+				sessionFactory.getCurrentSession().setFlushMode(FlushMode.COMMIT);
+				
+				Data<?> data = null;
+				if (calculation) {
+					Calculation<?> newCalculation = dataService.getData(dataId, Calculation.class);
+					if (allPeriods) newCalculation.setRefreshed(new Date());
+					data = newCalculation;
+				}
+				else {
+					NormalizedDataElement newNormalizedDataElement = dataService.getData(dataId, NormalizedDataElement.class);
+					if (allPeriods) newNormalizedDataElement.setRefreshed(new Date());
+					data = newNormalizedDataElement;
+				}
+				updateSources(data);
+				dataService.save(data);
+				if (allPeriods) valueService.deleteRefreshCheckpoints(data);
+			}
+		});
+	}
+	
+	private boolean containsAllPeriods(List<Period> periods) {
+		Set<Long> periodIds = new HashSet<Long>();
+		for (Period period : periods) periodIds.add(period.getId());
+		for (Period period : periodService.listPeriods()) {
+			if (!periodIds.contains(period.getId())) return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * Refreshes only the values that depend on the raw values saved since the last call, as recorded by
+	 * {@link ValueService#save(StoredValue)}. Each dirty data, data location and period is propagated through
+	 * the dependency graph: the values of the dependent normalized data elements are recalculated for that
+	 * data location and period only, in the order they are required, and are propagated further only if they
+	 * changed. The partial values of the dependent calculations are then recalculated for the data location
+	 * and merged again for all its ancestors.
+	 * 
+	 * Changes to the data themselves, like a modified expression, are not tracked and still require a full
+	 * refresh, as do values that are not saved through the value service. The refreshed date of the data is
+	 * left as it is, so that the next full refresh does not skip them.
+	 * 
+	 * @param progress the progress object to keep track of the progress or null if not desired
+	 */
+	@Transactional(readOnly = true)
+	public void refreshDirtyValues(Progress progress) {
+		if (log.isDebugEnabled()) log.debug("refreshDirtyValues(progress)");
+		
+		RefreshMetrics.Run run = startRun("refreshDirtyValues", progress);
+		boolean failed = true;
+		try {
+			refreshDirtyData(run);
+			failed = false;
+		} finally {
+			finishRun(run, failed);
+		}
+	}
+	
+	private void refreshDirtyData(Progress progress) {
+		// values saved while we refresh are left for the next time
+		final Long lastId = valueService.getLastDirtyValueId();
+		if (lastId == null) return;
+		
+		// data id -> period id -> data location ids
+		Map<Long, Map<Long, Set<Long>>> dirtyValues = new HashMap<Long, Map<Long, Set<Long>>>();
+		for (DirtyValue dirtyValue : valueService.listDirtyValues(lastId)) {
+			if (!dirtyValues.containsKey(dirtyValue.getDataId())) dirtyValues.put(dirtyValue.getDataId(), new HashMap<Long, Set<Long>>());
+			addToSet(dirtyValues.get(dirtyValue.getDataId()), dirtyValue.getPeriodId(), dirtyValue.getLocationId());
+		}
+		if (log.isDebugEnabled()) log.debug("dirty data size: "+dirtyValues.size());
+		
+		DependencyGraph graph = getDependencyGraph();
+		Set<Long> normalizedDataElementIds = graph.normalizedDataElementIds;
+		Map<Long, Set<Long>> dependenciesById = graph.dependenciesById;
+		
+		// dependents come after their dependencies in the reverse post-order
+		List<Long> orderedIds = new ArrayList<Long>();
+		Set<Long> visited = new HashSet<Long>();
+		for (Long dataId : dirtyValues.keySet()) {
+			collectDependents(dataId, graph.dependentsById, visited, orderedIds);
+		}
+		Collections.reverse(orderedIds);
+		orderedIds.retainAll(dependenciesById.keySet());
+		
+		if (progress != null) progress.setMaximum((long)orderedIds.size());
+		
+		// the dirty values are only deleted once all the data are refreshed, a cancelled refresh is done again next time
+		for (Long dataId : orderedIds) {
+			if (progress != null) checkControl(progress);
+			Map<Long, Set<Long>> dataDirtyValues = new HashMap<Long, Set<Long>>();
+			for (Long dependencyId : dependenciesById.get(dataId)) {
+				if (dirtyValues.containsKey(dependencyId)) {
+					for (Entry<Long, Set<Long>> entry : dirtyValues.get(dependencyId).entrySet()) {
+						for (Long locationId : entry.getValue()) addToSet(dataDirtyValues, entry.getKey(), locationId);
+					}
+				}
+			}
+			
+			if (!dataDirtyValues.isEmpty()) {
+				if (normalizedDataElementIds.contains(dataId)) {
+					Map<Long, Set<Long>> changedValues = refreshDirtyNormalizedDataElementValues(dataId, dataDirtyValues);
+					if (!changedValues.isEmpty()) dirtyValues.put(dataId, changedValues);
+				}
+				else refreshDirtyCalculationPartialValues(dataId, dataDirtyValues);
+			}
+			if (progress != null) progress.incrementProgress(1L);
+		}
+		
+		getTransactionTemplate().execute(new TransactionCallbackWithoutResult() {
+			@Override
+			protected void doInTransactionWithoutResult(TransactionStatus arg0) {
+				valueService.deleteDirtyValues(lastId);
+			}
+		});
+	}
+	
+	/**
+	 * Refreshes the values depending on the given raw data elements for one data location and period only,
+	 * typically right after a survey for that data location has been submitted.
+	 * 
+	 * The dependent normalized data elements are recalculated for the data location, in dependency order,
+	 * and their own dependents are only refreshed if their value changed. The partial values of the dependent
+	 * calculations are recalculated for the data location, and those of its ancestors are updated by removing
+	 * the old partial value of the data location and adding the new one, without looking at the other data
+	 * locations. If one of those partial values is not stored yet, the ancestors are merged again from their
+	 * children instead.
+	 * 
+	 * Only the dependents of the given raw data elements are looked at, the dependencies between the data are
+	 * kept from one call to the next until a data changes.
+	 * 
+	 * The refreshed date of the data is left as it is, the values of the other data locations might be outdated
+	 * and are refreshed by the next full refresh, which sees the last value changed date moved forward.
+	 * 
+	 * This runs in the current transaction, so that the raw values that were just saved are taken into account.
+	 * 
+	 * @param dataLocation the data location for which to refresh the values
+	 * @param period the period for which to refresh the values
+	 * @param changedElements the raw data elements whose values changed
+	 */
+	@Transactional(readOnly = false)
+	public void refreshForDataLocation(DataLocation dataLocation, Period period, Collection<RawDataElement> changedElements) {
+		if (log.isDebugEnabled()) log.debug("refreshForDataLocation(dataLocation="+dataLocation+", period="+period+", changedElements="+changedElements+")");
+		
+		DependencyGraph graph = getDependencyGraph();
+		
+		Set<Long> changedIds = new HashSet<Long>();
+		List<Long> orderedIds = new ArrayList<Long>();
+		Set<Long> visited = new HashSet<Long>();
+		for (RawDataElement changedElement : changedElements) {
+			changedIds.add(changedElement.getId());
+			collectDependents(changedElement.getId(), graph.dependentsById, visited, orderedIds);
+		}
+		Collections.reverse(orderedIds);
+		orderedIds.retainAll(graph.dependenciesById.keySet());
+		
+		for (Long dataId : orderedIds) {
+			if (Collections.disjoint(graph.dependenciesById.get(dataId), changedIds)) continue;
+			
+			if (graph.normalizedDataElementIds.contains(dataId)) {
+				NormalizedDataElement normalizedDataElement = dataService.getData(dataId, NormalizedDataElement.class);
+				if (normalizedDataElement != null && refreshNormalizedDataElementValue(normalizedDataElement, dataLocation, period)) changedIds.add(dataId);
+			}
+			else {
+				Calculation<?> calculation = dataService.getData(dataId, Calculation.class);
+				if (calculation != null) refreshCalculationPartialValues(calculation, dataLocation, period);
+			}
+		}
+	}
+	
+	/**
+	 * Returns true if saving the given normalized data element would create a circular dependency, that is
+	 * if an expression of the normalized data element references it either directly or through the normalized
+	 * data elements it uses.
+	 * 
+	 * Only the dependencies added to the normalized data element since it was saved are checked, the others
+	 * were checked when they were added. Each of them is looked up once in the dependencies between the data,
+	 * which merge the expressions of all the periods and types. The expressions of each period and type are
+	 * only followed if one of those leads back to the normalized data element.
+	 * 
+	 * @param dataElement the normalized data element for which to check for circular dependency
+	 * @return true if there are circular dependencies in the given normalized data element and false
+	 * if not
+	 */
+	@Transactional(readOnly=true)
+	public boolean hasCircularDependency(NormalizedDataElement dataElement) {
+		// nothing depends on a normalized data element that is not saved yet
+		if (dataElement.getId() == null) return false;
+		
+		// the normalized data element being changed is not flushed by the queries
+		Session session = sessionFactory.getCurrentSession();
+		FlushMode flushMode = session.getFlushMode();
+		session.setFlushMode(FlushMode.MANUAL);
+		try {
+			Set<Long> addedDependencyIds = getNormalizedDataElementIds(dataElement.getExpressions());
+			addedDependencyIds.removeAll(getNormalizedDataElementIds(getStoredExpressions(dataElement.getId())));
+			if (addedDependencyIds.isEmpty()) return false;
+			
+			DependencyGraph graph = getDependencyGraph();
+			boolean reachable = false;
+			for (Long dependencyId : addedDependencyIds) {
+				if (dependencyId.equals(dataElement.getId()) || dependsOn(graph, dependencyId, dataElement.getId())) {
+					reachable = true;
+					break;
+				}
+			}
+			if (!reachable) return false;
+			
+			// each normalized data element is loaded once for all the periods and types
+			Map<Long, NormalizedDataElement> dataElements = new HashMap<Long, NormalizedDataElement>();
+			dataElements.put(dataElement.getId(), dataElement);
+			for (DataLocationType dataLocationType : locationService.listTypes()) {
+				for (Period period : periodService.listPeriods()) {
+					if (hasCircularDependency(dataElement.getId(), period, dataLocationType.getCode(), dataElements, new HashSet<Long>(), new HashSet<Long>())) return true; 
+				}
+			}
+			return false;
+		} finally {
+			session.setFlushMode(flushMode);
+		}
+	}
+	
+	// depth-first search from the data element for one period and type. onPath holds the ids of the elements
+	// being visited, and done the ones already known to be free of cycles, so every element is visited at most once
+	private boolean hasCircularDependency(Long dataElementId, Period period, String typeCode, Map<Long, NormalizedDataElement> dataElements, Set<Long> onPath, Set<Long> done) {
+		NormalizedDataElement dataElement = dataElements.get(dataElementId);
+		if (dataElement == null) {
+			dataElement = dataService.getData(dataElementId, NormalizedDataElement.class);
+			dataElements.put(dataElementId, dataElement);
+		}
+		String expression = dataElement.getExpression(period, typeCode);
+		if (expression == null) return false;
+		
+		onPath.add(dataElementId);
+		for (Long dependencyId : expressionService.getDataIdsInExpression(expression, NormalizedDataElement.class).values()) {
+			if (dependencyId != null && !done.contains(dependencyId)) {
+				if (onPath.contains(dependencyId)) return true;
+				if (hasCircularDependency(dependencyId, period, typeCode, dataElements, onPath, done)) return true;
+			}
+		}
+		onPath.remove(dataElementId);
+		done.add(dataElementId);
+		return false;
+	}
+	
+	private Set<Long> getNormalizedDataElementIds(Collection<String> expressions) {
+		Set<Long> normalizedDataElementIds = new HashSet<Long>();
+		for (String expression : expressions) {
+			for (Long dataId : expressionService.getDataIdsInExpression(expression, NormalizedDataElement.class).values()) {
+				if (dataId != null) normalizedDataElementIds.add(dataId);
+			}
+		}
+		return normalizedDataElementIds;
+	}
+	
+	// the expressions as saved in the database, not as changed in the current session
+	private Collection<String> getStoredExpressions(Long normalizedDataElementId) {
+		String expressionMapString = (String) sessionFactory.getCurrentSession()
+				.createQuery("select element.expressionMapString from NormalizedDataElement element where element.id = :id")
+				.setParameter("id", normalizedDataElementId)
+				.uniqueResult();
+		
+		List<String> expressions = new ArrayList<String>();
+		for (Object groupMap : JSONUtils.getMapFromJSON(expressionMapString).values()) {
+			for (Object expression : ((Map<?, ?>) groupMap).values()) {
+				if (expression != null) expressions.add(expression.toString());
+			}
+		}
+		return expressions;
+	}
+	
+	// breadth-first search from the data, each data is visited at most once
+	private static boolean dependsOn(DependencyGraph graph, Long dataId, Long dependencyId) {
+		Set<Long> visited = new HashSet<Long>();
+		LinkedList<Long> pending = new LinkedList<Long>();
+		pending.add(dataId);
+		while (!pending.isEmpty()) {
+			Set<Long> dependencyIds = graph.dependenciesById.get(pending.removeFirst());
+			if (dependencyIds == null) continue;
+			for (Long id : dependencyIds) {
+				if (id.equals(dependencyId)) return true;
+				if (visited.add(id)) pending.add(id);
+			}
+		}
+		return false;
+	}
+	
+	private DependencyGraph getDependencyGraph() {
+		DependencyGraph graph = dependencyGraph;
+		if (graph == null) {
+			// a graph built while a data is being changed is not kept, it might be outdated, but one built
+			// by the transaction adding a data is, the other transactions skip the data until it is committed.
+			// Neither is one built from data changed in the session but not flushed, the change might be discarded
+			long generation = dataGeneration.get();
+			graph = new DependencyGraph();
+			addDependencies(graph.normalizedDataElementIds, graph.dependenciesById, graph.dependentsById);
+			boolean dirty = sessionFactory.getCurrentSession().isDirty();
+			synchronized (dataGeneration) {
+				if (dataGeneration.get() == generation && !dirty) dependencyGraph = graph;
+			}
+		}
+		return graph;
+	}
+	
+	/**
+	 * Discards the dependencies between the data, called by {@link DataChangeListener} when the given
+	 * data was added, changed or deleted.
+	 * 
+	 * @param dataId the id of the data that changed
+	 */
+	public void dataChanged(Long dataId) {
+		if (log.isDebugEnabled()) log.debug("dataChanged(dataId="+dataId+")");
+		synchronized (dataGeneration) {
+			dataGeneration.incrementAndGet();
+			dependencyGraph = null;
+		}
+	}
+	
+	private void addDependencies(Set<Long> normalizedDataElementIds, Map<Long, Set<Long>> dependenciesById, Map<Long, Set<Long>> dependentsById) {
+		List<NormalizedDataElement> normalizedDataElements = sessionFactory.getCurrentSession().createCriteria(NormalizedDataElement.class).list();
+		for (NormalizedDataElement normalizedDataElement : normalizedDataElements) {
+			normalizedDataElementIds.add(normalizedDataElement.getId());
+			addDependencies(normalizedDataElement, normalizedDataElement.getExpressions(), dependenciesById, dependentsById);
+		}
+		List<Calculation<?>> calculations = sessionFactory.getCurrentSession().createCriteria(Calculation.class).list();
+		for (Calculation<?> calculation : calculations) {
+			addDependencies(calculation, Collections.singleton(calculation.getExpression()), dependenciesById, dependentsById);
+		}
+	}
+	
+	private void addDependencies(Data<?> data, Collection<String> expressions, Map<Long, Set<Long>> dependenciesById, Map<Long, Set<Long>> dependentsById) {
+		Set<Long> dependencies = new HashSet<Long>();
+		for (String expression : expressions) {
+			for (Long dependencyId : expressionService.getDataIdsInExpression(expression, DataElement.class).values()) {
+				if (dependencyId != null) dependencies.add(dependencyId);
+			}
+		}
+		dependenciesById.put(data.getId(), dependencies);
+		for (Long dependencyId : dependencies) addToSet(dependentsById, dependencyId, data.getId());
+	}
+	
+	private void collectDependents(Long dataId, Map<Long, Set<Long>> dependentsById, Set<Long> visited, List<Long> orderedIds) {
+		if (!visited.add(dataId)) return;
+		if (dependentsById.containsKey(dataId)) {
+			for (Long dependentId : dependentsById.get(dataId)) collectDependents(dependentId, dependentsById, visited, orderedIds);
+		}
+		orderedIds.add(dataId);
+	}
+	
+	// returns the values that changed, as period id -> data location ids
+	private Map<Long, Set<Long>> refreshDirtyNormalizedDataElementValues(final Long normalizedDataElementId, final Map<Long, Set<Long>> dirtyValues) {
+		if (log.isDebugEnabled()) log.debug("refreshDirtyNormalizedDataElementValues(normalizedDataElementId="+normalizedDataElementId+")");
+		
+		Map<Long, Set<Long>> changedValues = executeThrottled(new TransactionCallback<Map<Long, Set<Long>>>() {
+			@Override
+			public Map<Long, Set<Long>> doInTransaction(TransactionStatus arg0) {
+				sessionFactory.getCurrentSession().setFlushMode(FlushMode.COMMIT);
+				
+				Map<Long, Set<Long>> result = new HashMap<Long, Set<Long>>();
+				NormalizedDataElement normalizedDataElement = dataService.getData(normalizedDataElementId, NormalizedDataElement.class);
+				if (normalizedDataElement == null) return result;
+				
+				for (Period period : getPeriods(dirtyValues.keySet())) {
+					List<DataLocation> dataLocations = getDataLocations(dirtyValues.get(period.getId()));
+					// the stored values are read batchSize data locations at a time
+					for (int start = 0; start < dataLocations.size(); start += batchSize) {
+						List<DataLocation> batch = dataLocations.subList(start, Math.min(start + batchSize, dataLocations.size()));
+						Map<Long, NormalizedDataElementValue> oldValues = new HashMap<Long, NormalizedDataElementValue>();
+						for (NormalizedDataElementValue oldValue : valueService.listDataElementValues(normalizedDataElement, batch, period)) {
+							oldValues.put(oldValue.getLocation().getId(), oldValue);
+						}
+						
+						List<NormalizedDataElementValue> newValues = expressionService.calculateValues(normalizedDataElement, batch, period);
+						for (int i = 0; i < batch.size(); i++) {
+							NormalizedDataElementValue oldValue = oldValues.get(batch.get(i).getId());
+							NormalizedDataElementValue newValue = newValues.get(i);
+							
+							// unchanged values are not saved, so that their dependents are not refreshed
+							if (oldValue == null || !NormalizedDataElementValueWriter.hasSameValue(oldValue, newValue)) {
+								saveNormalizedDataElementValue(normalizedDataElement, oldValue, newValue);
+								addToSet(result, period.getId(), batch.get(i).getId());
+							}
+						}
+					}
+				}
+				
+				dataService.save(normalizedDataElement);
+				return result;
+			}
+		});
+		
+		throttleRows(countValues(dirtyValues));
+		
+		sessionFactory.getCurrentSession().clear();
+		return changedValues;
+	}
+	
+	private void refreshDirtyCalculationPartialValues(final Long calculationId, final Map<Long, Set<Long>> dirtyValues) {
+		if (log.isDebugEnabled()) log.debug("refreshDirtyCalculationPartialValues(calculationId="+calculationId+")");
+		
+		executeThrottled(new TransactionCallbackWithoutResult() {
+			@Override
+			protected void doInTransactionWithoutResult(TransactionStatus arg0) {
+				sessionFactory.getCurrentSession().setFlushMode(FlushMode.COMMIT);
+				
+				Calculation<?> calculation = dataService.getData(calculationId, Calculation.class);
+				if (calculation == null) return;
+				
+				Map<Long, List<CalculationLocation>> childrenByParent = getChildrenByParent(listLocations(Location.class), listLocations(DataLocation.class));
+				for (Period period : getPeriods(dirtyValues.keySet())) {
+					updateCalculationPartialValues(calculation, getDataLocations(dirtyValues.get(period.getId())), childrenByParent, period);
+				}
+				
+				dataService.save(calculation);
+			}
+		});
+		throttleRows(countValues(dirtyValues));
+		
+		sessionFactory.getCurrentSession().clear();
+	}
+	
+	// the given data locations are evaluated again, then their ancestors are merged from their children, 
+	// deepest first, using the stored partial values of the children that did not change, the partial values
+	// are compared with the stored ones of those locations and only the changed ones are written
+	private <T extends CalculationPartialValue> void updateCalculationPartialValues(Calculation<T> calculation, List<DataLocation> dataLocations, 
+			Map<Long, List<CalculationLocation>> childrenByParent, Period period) {
+		final Map<Long, Integer> depths = new HashMap<Long, Integer>();
+		List<Location> ancestors = new ArrayList<Location>();
+		for (DataLocation dataLocation : dataLocations) {
+			for (Location ancestor = dataLocation.getLocation(); ancestor != null && !depths.containsKey(ancestor.getId()); ancestor = ancestor.getParent()) {
+				int depth = 0;
+				for (Location parent = ancestor.getParent(); parent != null; parent = parent.getParent()) depth++;
+				depths.put(ancestor.getId(), depth);
+				ancestors.add(ancestor);
+			}
+		}
+		Collections.sort(ancestors, new Comparator<Location>() {
+			@Override
+			public int compare(Location location1, Location location2) {
+				return depths.get(location2.getId()).compareTo(depths.get(location1.getId()));
+			}
+		});
+		
+		List<CalculationLocation> locations = new ArrayList<CalculationLocation>(dataLocations);
+		locations.addAll(ancestors);
+		CalculationPartialValueWriter<T> writer = new CalculationPartialValueWriter<T>(valueService, sessionFactory, calculation, period, locations, batchSize);
+		
+		Map<Long, List<T>> partialValuesByLocation = new HashMap<Long, List<T>>();
+		for (DataLocation dataLocation : dataLocations) {
+			partialValuesByLocation.put(dataLocation.getId(), new ArrayList<T>());
+		}
+		for (int start = 0; start < dataLocations.size(); start += batchSize) {
+			List<DataLocation> batch = dataLocations.subList(start, Math.min(start + batchSize, dataLocations.size()));
+			for (T partialValue : expressionService.calculatePartialValues(calculation, batch, period)) {
+				addToList(partialValuesByLocation, partialValue.getLocation().getId(), partialValue);
+				writer.write(partialValue);
+			}
+		}
+		
+		for (Location ancestor : ancestors) {
+			List<T> childrenPartialValues = new ArrayList<T>();
+			if (childrenByParent.containsKey(ancestor.getId())) {
+				for (CalculationLocation child : childrenByParent.get(ancestor.getId())) {
+					if (partialValuesByLocation.containsKey(child.getId())) childrenPartialValues.addAll(partialValuesByLocation.get(child.getId()));
+					else childrenPartialValues.addAll(valueService.getPartialValues(calculation, child, period));
+				}
+			}
+			
+			List<T> partialValues = expressionService.mergePartialValues(calculation, ancestor, period, childrenPartialValues);
+			for (T partialValue : partialValues) {
+				writer.write(partialValue);
+			}
+			partialValuesByLocation.put(ancestor.getId(), partialValues);
+		}
+		writer.close();
+		
+		if (writer.getWrittenCount() > 0) calculation.setLastValueChanged(new Date());
+	}
+	
+	// returns true if the value changed
+	private boolean refreshNormalizedDataElementValue(NormalizedDataElement normalizedDataElement, DataLocation dataLocation, Period period) {
+		NormalizedDataElementValue oldValue = valueService.getDataElementValue(normalizedDataElement, dataLocation, period);
+		NormalizedDataElementValue newValue = expressionService.calculateValue(normalizedDataElement, dataLocation, period);
+		if (oldValue != null && NormalizedDataElementValueWriter.hasSameValue(oldValue, newValue)) return false;
+		
+		saveNormalizedDataElementValue(normalizedDataElement, oldValue, newValue);
+		dataService.save(normalizedDataElement);
+		return true;
+	}
+	
+	// the partial values of the ancestors are updated with the difference between the old and new partial
+	// values of the data location, all the partial values involved must exist for that
+	private <T extends CalculationPartialValue> void refreshCalculationPartialValues(Calculation<T> calculation, DataLocation dataLocation, Period period) {
+		List<T> newPartialValues = expressionService.calculatePartialValues(calculation, Collections.singletonList(dataLocation), period);
+		Map<String, T> oldPartialValues = getPartialValuesByKey(valueService.getPartialValues(calculation, dataLocation, period));
+		List<Map<String, T>> ancestorsPartialValues = new ArrayList<Map<String, T>>();
+		for (Location ancestor = dataLocation.getLocation(); ancestor != null; ancestor = ancestor.getParent()) {
+			ancestorsPartialValues.add(getPartialValuesByKey(valueService.getPartialValues(calculation, ancestor, period)));
+		}
+		
+		boolean complete = oldPartialValues.size() == newPartialValues.size();
+		for (T newPartialValue : newPartialValues) {
+			String key = CalculationPartialValueWriter.getLocationKey(newPartialValue);
+			if (!oldPartialValues.containsKey(key)) complete = false;
+			for (Map<String, T> ancestorPartialValues : ancestorsPartialValues) {
+				if (!ancestorPartialValues.containsKey(key)) complete = false;
+			}
+		}
+		
+		if (!complete) {
+			Map<Long, List<CalculationLocation>> childrenByParent = getChildrenByParent(listLocations(Location.class), listLocations(DataLocation.class));
+			updateCalculationPartialValues(calculation, Collections.singletonList(dataLocation), childrenByParent, period);
+		}
+		else {
+			boolean changed = false;
+			for (T newPartialValue : newPartialValues) {
+				String key = CalculationPartialValueWriter.getLocationKey(newPartialValue);
+				T oldPartialValue = oldPartialValues.get(key);
+				for (Map<String, T> ancestorPartialValues : ancestorsPartialValues) {
+					T ancestorPartialValue = ancestorPartialValues.get(key);
+					T updatedPartialValue = calculation.updateCalculationPartialValue(ancestorPartialValue, oldPartialValue, newPartialValue);
+					if (CalculationPartialValueWriter.update(ancestorPartialValue, updatedPartialValue)) valueService.save(ancestorPartialValue);
+				}
+				// the old partial value is only updated once the ancestors are
+				if (CalculationPartialValueWriter.update(oldPartialValue, newPartialValue)) {
+					valueService.save(oldPartialValue);
+					changed = true;
+				}
+			}
+			if (!changed) return;
+			calculation.setLastValueChanged(new Date());
+		}
+		
+		dataService.save(calculation);
+	}
+	
+	private static <T extends CalculationPartialValue> Map<String, T> getPartialValuesByKey(List<T> partialValues) {
+		Map<String, T> result = new HashMap<String, T>();
+		for (T partialValue : partialValues) result.put(CalculationPartialValueWriter.getLocationKey(partialValue), partialValue);
+		return result;
+	}
+	
+	private List<Period> getPeriods(Set<Long> periodIds) {
+		List<Period> periods = new ArrayList<Period>();
+		for (Period period : periodService.listPeriods()) {
+			if (periodIds.contains(period.getId())) periods.add(period);
+		}
+		return periods;
+	}
+	
+	// only the given data locations are loaded, MAX_IDS at a time
+	private List<DataLocation> getDataLocations(Set<Long> dataLocationIds) {
+		List<Long> ids = new ArrayList<Long>(dataLocationIds);
+		List<DataLocation> dataLocations = new ArrayList<DataLocation>();
+		for (int i = 0; i < ids.size(); i += MAX_IDS) {
+			Criteria criteria = sessionFactory.getCurrentSession().createCriteria(DataLocation.class);
+			criteria.add(Restrictions.in("id", ids.subList(i, Math.min(i + MAX_IDS, ids.size())))).setReadOnly(true);
+			dataLocations.addAll(criteria.list());
+		}
+		return dataLocations;
+	}
+	
+	// the locations are loaded read-only, the session then keeps no snapshot of them and does not
+	// check them for changes every time it is flushed, which the value writers do every batch
+	// TODO move to location service ?
+	private <T extends CalculationLocation> List<T> listLocations(Class<T> clazz) {
+		Criteria criteria = sessionFactory.getCurrentSession().createCriteria(clazz);
+		criteria.setCacheable(true).setReadOnly(true);
+		return criteria.list();
+	}
+	
+	// TODO move to location service ?
+	private <T extends CalculationLocation> Long countLocations(Class<T> clazz) {
+		Criteria criteria = sessionFactory.getCurrentSession().createCriteria(clazz);
+		criteria.setCacheable(true).setReadOnly(true);
+		return (Long)criteria.setProjection(Projections.rowCount()).uniqueResult();
+	}
+	
+	/**
+	 * Returns the metrics of the last refresh run, also exposed over JMX.
+	 */
+	public RefreshMetrics getMetrics() {
+		return metrics;
+	}
+	
+	public RefreshControl getControl() {
+		return control;
+	}
+	
+	/**
+	 * Sets the control the refreshes can be paused and cancelled with, by default one only used by this service.
+	 */
+	public void setControl(RefreshControl control) {
+		this.control = control;
+	}
+	
+	public RefreshThrottle getThrottle() {
+		return throttle;
+	}
+	
+	/**
+	 * Sets the throttle applied to the refresh transactions, by default one without any limit.
+	 */
+	public void setThrottle(RefreshThrottle throttle) {
+		this.throttle = throttle;
+	}
+	
+	public void setPeriodService(PeriodService periodService) {
+		this.periodService = periodService;
+	}
+	
+	public void setSessionFactory(SessionFactory sessionFactory) {
+		this.sessionFactory = sessionFactory;
+	}
+	
+	public void setExpressionService(ExpressionService expressionService) {
+		this.expressionService = expressionService;
+	}
+	
+	public void setDataChangeListener(DataChangeListener dataChangeListener) {
+		dataChangeListener.addHandler(this);
+	}
+	
+	public void setValueService(ValueService valueService) {
+		this.valueService = valueService;
+	}
+	
+	public void setDataService(DataService dataService) {
+		this.dataService = dataService;
 	}
 	
 	public void setLocationService(LocationService locationService) {
@@ -523,4 +1818,54 @@ public class RefreshValueService {
 		this.transactionManager = transactionManager;
 	}
 	
+	public int getBatchSize() {
+		return batchSize;
+	}
+	
+	/**
+	 * Sets the number of normalized data element values read and written at once when refreshing
+	 * a normalized data element. Defaults to 100.
+	 */
+	public void setBatchSize(int batchSize) {
+		this.batchSize = Math.max(1, batchSize);
+	}
+	
+	public boolean isStateless() {
+		return stateless;
+	}
+	
+	/**
+	 * Sets whether the values are read and written through a Hibernate stateless session when
+	 * refreshing, instead of the current session. Refreshed values are then never kept in memory
+	 * once written, whatever the size of the refresh, but they are written one statement at a
+	 * time instead of in JDBC batches. Defaults to false.
+	 */
+	public void setStateless(boolean stateless) {
+		this.stateless = stateless;
+	}
+	
+	public long getUnitTimeout() {
+		return unitTimeout;
+	}
+	
+	/**
+	 * Sets the time {@link #refreshAll(List, RefreshUnitQueue, Progress)} waits for a unit to be done before failing,
+	 * in milliseconds, it should be longer than the time needed to refresh one data for one period. Defaults to 1 hour.
+	 */
+	public void setUnitTimeout(long unitTimeout) {
+		this.unitTimeout = unitTimeout;
+	}
+	
+	public int getParallelism() {
+		return parallelism;
+	}
+	
+	/**
+	 * Sets the number of data refreshed at the same time by {@link #refreshAll(Progress)}, each of them
+	 * uses its own database connection. Defaults to 1.
+	 */
+	public void setParallelism(int parallelism) {
+		this.parallelism = Math.max(1, parallelism);
+	}
+	
 }
@@ -28,7 +28,9 @@ package org.chai.kevin.value;
  * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
  */
 
+import java.util.Collection;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -49,6 +51,7 @@ import org.hibernate.Criteria;
 import org.hibernate.Query;
 import org.hibernate.FlushMode;
 import org.hibernate.SessionFactory;
+import org.hibernate.StatelessSession;
 import org.hibernate.criterion.Conjunction;
 import org.hibernate.criterion.Disjunction;
 import org.hibernate.criterion.MatchMode;
@@ -67,9 +70,12 @@ public class ValueService {
 	private static final Log log = LogFactory.getLog(ValueService.class);
 	
 	private SessionFactory sessionFactory;
+	private RefreshThrottle refreshThrottle;
 	
 	/**
-	 * Saves the given value and sets the timestamp to the current time. This method will flush the session
+	 * Saves the given value and sets the timestamp to the current time. This method will flush the session.
+	 * Saving a raw data element value also records its data, location and period as dirty, see
+	 * {@link RefreshValueService#refreshDirtyValues(org.chai.task.Progress)}.
 	 *
 	 * @param value the value to save
 	 * @return the saved value
@@ -80,10 +86,135 @@ public class ValueService {
 		
 		value.setTimestamp(new Date());
 		sessionFactory.getCurrentSession().saveOrUpdate(value);
+		if (value instanceof RawDataElementValue) {
+			RawDataElementValue rawDataElementValue = (RawDataElementValue)value;
+			sessionFactory.getCurrentSession().save(new DirtyValue(
+				rawDataElementValue.getData().getId(), rawDataElementValue.getLocation().getId(), rawDataElementValue.getPeriod().getId()
+			));
+		}
 		
 		return value;
 	}
 	
+	/**
+	 * Returns the dirty values recorded up to and including the given id, in the order they were recorded.
+	 *
+	 * @param lastId the id of the last dirty value to return
+	 * @return the dirty values
+	 */
+	@SuppressWarnings("unchecked")
+	@Transactional(readOnly=true)
+	public List<DirtyValue> listDirtyValues(Long lastId) {
+		return (List<DirtyValue>)sessionFactory.getCurrentSession().createCriteria(DirtyValue.class)
+		.add(Restrictions.le("id", lastId))
+		.addOrder(Order.asc("id")).list();
+	}
+	
+	/**
+	 * Returns the id of the last recorded dirty value, or null if there is none.
+	 */
+	@Transactional(readOnly=true)
+	public Long getLastDirtyValueId() {
+		return (Long)sessionFactory.getCurrentSession().createCriteria(DirtyValue.class)
+		.setProjection(Projections.max("id")).uniqueResult();
+	}
+	
+	/**
+	 * Deletes the dirty values recorded up to and including the given id.
+	 *
+	 * @param lastId the id of the last dirty value to delete
+	 */
+	@Transactional(readOnly=false)
+	public void deleteDirtyValues(Long lastId) {
+		sessionFactory.getCurrentSession()
+		.createQuery("delete from DirtyValue where id <= :lastId")
+		.setParameter("lastId", lastId).executeUpdate();
+	}
+	
+	/**
+	 * Returns the refresh checkpoint of the given data and period, or null if there is none.
+	 *
+	 * @param data the normalized data element or calculation
+	 * @param period the period
+	 * @return the checkpoint
+	 */
+	@Transactional(readOnly=true)
+	public RefreshCheckpoint getRefreshCheckpoint(Data<?> data, Period period) {
+		return (RefreshCheckpoint)sessionFactory.getCurrentSession().createCriteria(RefreshCheckpoint.class)
+		.add(Restrictions.eq("dataId", data.getId()))
+		.add(Restrictions.eq("periodId", period.getId())).uniqueResult();
+	}
+	
+	/**
+	 * Records that the given data has been refreshed for the given period, at the current time.
+	 *
+	 * @param data the normalized data element or calculation
+	 * @param period the period
+	 * @return the saved checkpoint
+	 */
+	@Transactional(readOnly=false)
+	public RefreshCheckpoint saveRefreshCheckpoint(Data<?> data, Period period) {
+		RefreshCheckpoint checkpoint = getRefreshCheckpoint(data, period);
+		if (checkpoint == null) checkpoint = new RefreshCheckpoint(data.getId(), period.getId());
+		checkpoint.setRefreshed(new Date());
+		sessionFactory.getCurrentSession().saveOrUpdate(checkpoint);
+		return checkpoint;
+	}
+	
+	/**
+	 * Deletes all the refresh checkpoints of the given data.
+	 *
+	 * @param data the normalized data element or calculation
+	 */
+	@Transactional(readOnly=false)
+	public void deleteRefreshCheckpoints(Data<?> data) {
+		sessionFactory.getCurrentSession()
+		.createQuery("delete from RefreshCheckpoint where dataId = :dataId")
+		.setParameter("dataId", data.getId()).executeUpdate();
+	}
+	
+	/**
+	 * Returns the times the last refresh of one period of each data took, as saved by
+	 * {@link #saveRefreshPeriodTimes(Map)}, by data id.
+	 *
+	 * @return the times, in milliseconds
+	 */
+	@SuppressWarnings("unchecked")
+	@Transactional(readOnly=true)
+	public Map<Long, Long> getRefreshPeriodTimes() {
+		Map<Long, Long> result = new HashMap<Long, Long>();
+		for (RefreshPeriodTime periodTime : (List<RefreshPeriodTime>)sessionFactory.getCurrentSession().createCriteria(RefreshPeriodTime.class).list()) {
+			result.put(periodTime.getDataId(), periodTime.getPeriodTime());
+		}
+		return result;
+	}
+	
+	/**
+	 * Saves the times the last refresh of one period of the given data took, replacing the ones saved before.
+	 *
+	 * @param periodTimes the times, in milliseconds, by data id
+	 */
+	@SuppressWarnings("unchecked")
+	@Transactional(readOnly=false)
+	public void saveRefreshPeriodTimes(Map<Long, Long> periodTimes) {
+		Criteria criteria = sessionFactory.getCurrentSession().createCriteria(RefreshPeriodTime.class);
+		// the stored times are read at once, unless there is only one to save
+		if (periodTimes.size() == 1) criteria.add(Restrictions.in("dataId", periodTimes.keySet()));
+		Map<Long, RefreshPeriodTime> storedPeriodTimes = new HashMap<Long, RefreshPeriodTime>();
+		for (RefreshPeriodTime periodTime : (List<RefreshPeriodTime>)criteria.list()) {
+			storedPeriodTimes.put(periodTime.getDataId(), periodTime);
+		}
+		
+		Date now = new Date();
+		for (Map.Entry<Long, Long> entry : periodTimes.entrySet()) {
+			RefreshPeriodTime periodTime = storedPeriodTimes.get(entry.getKey());
+			if (periodTime == null) periodTime = new RefreshPeriodTime(entry.getKey());
+			periodTime.setPeriodTime(entry.getValue());
+			periodTime.setRecorded(now);
+			sessionFactory.getCurrentSession().saveOrUpdate(periodTime);
+		}
+	}
+	
 	/**
 	 * Retrieves the value corresponding to the given data, data location and period.
 	 *
@@ -101,6 +232,68 @@ public class ValueService {
 		return result;
 	}
 	
+	/**
+	 * Same as {@link #getDataElementValue(DataElement, DataLocation, Period)}, the data is given by its id
+	 * and the class of its values so that it does not need to be loaded.
+	 */
+	@SuppressWarnings("unchecked")
+	@Transactional(readOnly=true)
+	public <T extends DataValue> T getDataElementValue(Long dataId, Class<T> valueClass, DataLocation dataLocation, Period period) {
+		if (log.isDebugEnabled()) log.debug("getDataElementValue(dataId="+dataId+", period="+period+", dataLocation="+dataLocation+")");
+		Criteria criteria = getCriteria(dataId, valueClass, dataLocation, period);
+		T result = (T)criteria.uniqueResult();
+		if (log.isDebugEnabled()) log.debug("getDataElementValue(...)="+result);
+		return result;
+	}
+	
+	/**
+	 * Retrieves the values of the given data and period for all the given data locations, with one query.
+	 * Data locations without a stored value are not represented in the result.
+	 *
+	 * @param data the data
+	 * @param dataLocations the data locations, must not be empty
+	 * @param period the period
+	 * @return the stored values, in no particular order
+	 */
+	@SuppressWarnings("unchecked")
+	@Transactional(readOnly=true)
+	public <T extends DataValue> List<T> listDataElementValues(DataElement<T> data, Collection<DataLocation> dataLocations, Period period) {
+		if (log.isDebugEnabled()) log.debug("listDataElementValues(data="+data+", period="+period+", dataLocations="+dataLocations.size()+")");
+		return (List<T>)sessionFactory.getCurrentSession().createCriteria(data.getValueClass())
+		.add(Restrictions.eq("data", data))
+		.add(Restrictions.eq("period", period))
+		.add(Restrictions.in("location", dataLocations)).list();
+	}
+	
+	/**
+	 * Same as {@link #listDataElementValues(DataElement, Collection, Period)}, but the values are read
+	 * with the given stateless session, they are not kept in the current session.
+	 */
+	@SuppressWarnings("unchecked")
+	public <T extends DataValue> List<T> listDataElementValues(StatelessSession statelessSession, DataElement<T> data, Collection<DataLocation> dataLocations, Period period) {
+		if (log.isDebugEnabled()) log.debug("listDataElementValues(statelessSession, data="+data+", period="+period+", dataLocations="+dataLocations.size()+")");
+		return (List<T>)statelessSession.createCriteria(data.getValueClass())
+		.add(Restrictions.eq("data", data))
+		.add(Restrictions.eq("period", period))
+		.add(Restrictions.in("location", dataLocations)).list();
+	}
+	
+	/**
+	 * Sets the timestamp of the values with the given ids, with one statement. The values are not
+	 * otherwise modified.
+	 *
+	 * @param valueClass the class of the values
+	 * @param ids the ids of the values to update, must not be empty
+	 * @param timestamp the timestamp to set
+	 */
+	@Transactional(readOnly=false)
+	public void updateTimestamps(Class<? extends StoredValue> valueClass, List<Long> ids, Date timestamp) {
+		sessionFactory.getCurrentSession()
+		.createQuery("update "+valueClass.getName()+" set timestamp = :timestamp where id in (:ids)")
+		.setParameter("timestamp", timestamp)
+		.setParameterList("ids", ids).executeUpdate();
+	}
+	
 	/**
 	 * Searches for data values belonging to a data location whose name or code matches the
 	 * given search term.
@@ -169,6 +362,35 @@ public class ValueService {
 		return result;
 	}
 	
+	/**
+	 * Lists the values of the given data and period for all the data locations, the data is given by its id
+	 * and the class of its values so that it does not need to be loaded.
+	 */
+	@SuppressWarnings("unchecked")
+	@Transactional(readOnly=true)
+	public <T extends DataValue> List<T> listDataValues(Long dataId, Class<T> valueClass, Period period) {
+		if (log.isDebugEnabled()) log.debug("listDataValues(dataId="+dataId+", period="+period+")");
+		Criteria criteria = getCriteria(dataId, valueClass, null, period);
+		criteria.setFlushMode(FlushMode.COMMIT);
+		return criteria.list();
+	}
+	
+	/**
+	 * Same as {@link #listDataValues(Long, Class, Period)}, but only the values of the given data locations are listed,
+	 * with one query.
+	 * 
+	 * @param dataLocations the data locations, must not be empty
+	 */
+	@SuppressWarnings("unchecked")
+	@Transactional(readOnly=true)
+	public <T extends DataValue> List<T> listDataValues(Long dataId, Class<T> valueClass, Period period, Collection<DataLocation> dataLocations) {
+		if (log.isDebugEnabled()) log.debug("listDataValues(dataId="+dataId+", period="+period+", dataLocations="+dataLocations.size()+")");
+		Criteria criteria = getCriteria(dataId, valueClass, null, period);
+		criteria.add(Restrictions.in("location", dataLocations));
+		criteria.setFlushMode(FlushMode.COMMIT);
+		return criteria.list();
+	}
+	
 	/**
 	 * Counts all the data values corresponding to the given data, data location and period. Data location
 	 * and period can be null, in which case it counts all the values for all data locations or periods.
@@ -193,8 +415,12 @@ public class ValueService {
 	}
 	
 	private <T extends DataValue> Criteria getCriteria(Data<T> data, DataLocation dataLocation, Period period) {
-		Criteria criteria = sessionFactory.getCurrentSession().createCriteria(data.getValueClass());
-		criteria.add(Restrictions.eq("data", data));
+		return getCriteria(data.getId(), data.getValueClass(), dataLocation, period);
+	}
+	
+	private Criteria getCriteria(Long dataId, Class<? extends DataValue> valueClass, DataLocation dataLocation, Period period) {
+		Criteria criteria = sessionFactory.getCurrentSession().createCriteria(valueClass);
+		criteria.add(Restrictions.eq("data.id", dataId));
 		if (period != null) criteria.add(Restrictions.eq("period", period));
 		if (dataLocation != null) {
 			criteria.createAlias("location", "location");
@@ -217,21 +443,69 @@ public class ValueService {
 	@Transactional(readOnly=true)
 	public <T extends CalculationPartialValue> CalculationValue<T> getCalculationValue(Calculation<T> calculation, CalculationLocation location, Period period, Set<DataLocationType> types) {
 		if (log.isDebugEnabled()) log.debug("getCalculationValue(calculation="+calculation+", period="+period+", location="+location+", types="+types+")");
+		long start = System.currentTimeMillis();
 		List<T> partialValues = getPartialValues(calculation, location, period, types);
+		// the dashboards read the values through here, refreshes back off when it gets slow
+		if (refreshThrottle != null) refreshThrottle.recordLatency(System.currentTimeMillis() - start);
 		CalculationValue<T> result = calculation.getCalculationValue(partialValues, period, location);
 		if (log.isDebugEnabled()) log.debug("getCalculationValue(...)="+result);
 		return result;
 	}
 	
+	/**
+	 * Returns the partial values of the given calculation, location and period, for all the data location types.
+	 */
 	@SuppressWarnings("unchecked")
 	@Transactional(readOnly=true)
-	private <T extends CalculationPartialValue> List<T> getPartialValues(Calculation<T> calculation, CalculationLocation location, Period period) {
+	public <T extends CalculationPartialValue> List<T> getPartialValues(Calculation<T> calculation, CalculationLocation location, Period period) {
 		return (List<T>)sessionFactory.getCurrentSession().createCriteria(calculation.getValueClass())
 		.add(Restrictions.eq("period", period))
 		.add(Restrictions.eq("location", location))
 		.add(Restrictions.eq("data", calculation)).list();
 	}
 	
+	/**
+	 * Returns all the partial values of the given calculation and period, for all locations and data location types.
+	 */
+	@SuppressWarnings("unchecked")
+	@Transactional(readOnly=true)
+	public <T extends CalculationPartialValue> List<T> listPartialValues(Calculation<T> calculation, Period period) {
+		if (log.isDebugEnabled()) log.debug("listPartialValues(calculation="+calculation+", period="+period+")");
+		return (List<T>)sessionFactory.getCurrentSession().createCriteria(calculation.getValueClass())
+		.add(Restrictions.eq("period", period))
+		.add(Restrictions.eq("data", calculation)).list();
+	}
+	
+	/**
+	 * Same as {@link #listPartialValues(Calculation, Period)}, but the partial values are read with
+	 * the given stateless session, they are not kept in the current session.
+	 */
+	@SuppressWarnings("unchecked")
+	public <T extends CalculationPartialValue> List<T> listPartialValues(StatelessSession statelessSession, Calculation<T> calculation, Period period) {
+		if (log.isDebugEnabled()) log.debug("listPartialValues(statelessSession, calculation="+calculation+", period="+period+")");
+		return (List<T>)statelessSession.createCriteria(calculation.getValueClass())
+		.add(Restrictions.eq("period", period))
+		.add(Restrictions.eq("data", calculation)).list();
+	}
+
+	/**
+	 * Returns the partial values of the given calculation and period for all the given locations, with one query.
+	 *
+	 * @param calculation the calculation
+	 * @param locations the locations, must not be empty
+	 * @param period the period
+	 * @return the stored partial values, in no particular order
+	 */
+	@SuppressWarnings("unchecked")
+	@Transactional(readOnly=true)
+	public <T extends CalculationPartialValue> List<T> listPartialValues(Calculation<T> calculation, Collection<? extends CalculationLocation> locations, Period period) {
+		if (log.isDebugEnabled()) log.debug("listPartialValues(calculation="+calculation+", period="+period+", locations="+locations.size()+")");
+		return (List<T>)sessionFactory.getCurrentSession().createCriteria(calculation.getValueClass())
+		.add(Restrictions.eq("period", period))
+		.add(Restrictions.eq("data", calculation))
+		.add(Restrictions.in("location", locations)).list();
+	}
+
 	@SuppressWarnings("unchecked")
 	public <T extends CalculationPartialValue> List<T> getPartialValues(Calculation<T> calculation, CalculationLocation location, Period period, Set<DataLocationType> types) {
 		return (List<T>)sessionFactory.getCurrentSession().createCriteria(calculation.getValueClass())
@@ -349,8 +623,29 @@ public class ValueService {
 		query.executeUpdate();
 	}
 	
+	/**
+	 * Deletes the values with the given ids, with one statement.
+	 *
+	 * @param valueClass the class of the values
+	 * @param ids the ids of the values to delete, must not be empty
+	 */
+	@Transactional(readOnly=false)
+	public void deleteValues(Class<? extends StoredValue> valueClass, List<Long> ids) {
+		if (log.isDebugEnabled()) log.debug("deleteValues(valueClass="+valueClass+", ids="+ids.size()+")");
+		sessionFactory.getCurrentSession()
+		.createQuery("delete from "+valueClass.getName()+" where id in (:ids)")
+		.setParameterList("ids", ids).executeUpdate();
+	}
+	
 	public void setSessionFactory(SessionFactory sessionFactory) {
 		this.sessionFactory = sessionFactory;
 	}
 	
+	/**
+	 * Sets the throttle the time taken to read calculation values is reported to, optional.
+	 */
+	public void setRefreshThrottle(RefreshThrottle refreshThrottle) {
+		this.refreshThrottle = refreshThrottle;
+	}
+	
 }
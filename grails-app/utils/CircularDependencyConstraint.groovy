@@ -4,13 +4,13 @@ import org.hibernate.FlushMode;
 
 class CircularDependencyConstraint {
 
-	def expressionService
+	def refreshValueService
 	
 	def validate = { val, obj ->
 		DataElement.withSession { session ->
 			def flushMode = session.getFlushMode()
 			session.setFlushMode(FlushMode.MANUAL);
-			def result = !expressionService.hasCircularDependency(obj)
+			def result = !refreshValueService.hasCircularDependency(obj)
 			session.setFlushMode(flushMode);
 			return result
 		}
@@ -0,0 +1,333 @@
+package org.chai.kevin.util;
+
+import java.lang.reflect.Array;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A bounded LRU cache split into independently locked segments, so that concurrent
+ * lookups of different keys do not contend on a single lock.
+ *
+ * The cache is bounded by a maximum number of entries and optionally by a maximum
+ * total weight, as computed by a {@link Weigher}. Entries can expire a given time
+ * after they were written. Both bounds are divided evenly between the segments,
+ * eviction is LRU within a segment. Null values are supported.
+ *
+ * Hit, miss and eviction counters are kept and exposed through {@link BoundedCacheMBean}.
+ */
+public class BoundedCache<K, V> implements BoundedCacheMBean {
+
+	public static interface Weigher<K, V> {
+		public int weigh(K key, V value);
+	}
+
+	public static interface Loader<K, V> {
+		public V load(K key);
+	}
+
+	public static interface EvictionListener<K, V> {
+		public void evicted(K key, V value);
+	}
+
+	private static class Entry<V> {
+		final V value;
+		final int weight;
+		final long created;
+
+		Entry(V value, int weight, long created) {
+			this.value = value;
+			this.weight = weight;
+			this.created = created;
+		}
+	}
+
+	private class Segment extends ReentrantLock {
+		private static final long serialVersionUID = 5126817203536432155L;
+
+		final LinkedHashMap<K, Entry<V>> map = new LinkedHashMap<K, Entry<V>>(16, 0.75f, true);
+		long weight = 0;
+
+		Entry<V> get(K key, long now) {
+			lock();
+			try {
+				Entry<V> entry = map.get(key);
+				if (entry != null && isExpired(entry, now)) {
+					remove(key, entry);
+					evictions.incrementAndGet();
+					return null;
+				}
+				return entry;
+			} finally {
+				unlock();
+			}
+		}
+
+		void put(K key, Entry<V> entry) {
+			lock();
+			try {
+				Entry<V> previous = map.put(key, entry);
+				if (previous != null) {
+					weight -= previous.weight;
+					// the replaced value is not reachable from the cache anymore
+					if (evictionListener != null && previous.value != entry.value) evictionListener.evicted(key, previous.value);
+				}
+				weight += entry.weight;
+				evict();
+			} finally {
+				unlock();
+			}
+		}
+
+		// returns the value already in the cache if there is one, otherwise puts the given entry and returns its value
+		V putIfAbsent(K key, Entry<V> entry, long now) {
+			lock();
+			try {
+				Entry<V> current = map.get(key);
+				if (current != null && !isExpired(current, now)) {
+					if (evictionListener != null && current.value != entry.value) evictionListener.evicted(key, entry.value);
+					return current.value;
+				}
+				put(key, entry);
+				return entry.value;
+			} finally {
+				unlock();
+			}
+		}
+
+		void remove(K key) {
+			lock();
+			try {
+				Entry<V> entry = map.get(key);
+				if (entry != null) remove(key, entry);
+			} finally {
+				unlock();
+			}
+		}
+
+		// returns the entries that were removed
+		Map<K, Entry<V>> clear() {
+			lock();
+			try {
+				Map<K, Entry<V>> entries = new LinkedHashMap<K, Entry<V>>(map);
+				map.clear();
+				weight = 0;
+				return entries;
+			} finally {
+				unlock();
+			}
+		}
+
+		int size() {
+			lock();
+			try {
+				return map.size();
+			} finally {
+				unlock();
+			}
+		}
+
+		// must be called while holding the lock
+		private void evict() {
+			int maxEntries = (maxSize + segments.length - 1) / segments.length;
+			long maxSegmentWeight = maxWeight <= 0 ? Long.MAX_VALUE : (maxWeight + segments.length - 1) / segments.length;
+
+			Iterator<Map.Entry<K, Entry<V>>> iterator = map.entrySet().iterator();
+			while ((map.size() > maxEntries || weight > maxSegmentWeight) && iterator.hasNext()) {
+				Map.Entry<K, Entry<V>> eldest = iterator.next();
+				iterator.remove();
+				weight -= eldest.getValue().weight;
+				evictions.incrementAndGet();
+				if (evictionListener != null) evictionListener.evicted(eldest.getKey(), eldest.getValue().value);
+			}
+		}
+
+		private void remove(K key, Entry<V> entry) {
+			map.remove(key);
+			weight -= entry.weight;
+			if (evictionListener != null) evictionListener.evicted(key, entry.value);
+		}
+	}
+
+	private final Segment[] segments;
+	private volatile int maxSize;
+	private volatile long maxWeight = 0;
+	private volatile long timeToLive = 0;
+	private Weigher<K, V> weigher = null;
+	private EvictionListener<K, V> evictionListener = null;
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+
+	public BoundedCache(int maxSize) {
+		this(maxSize, 16);
+	}
+
+	@SuppressWarnings("unchecked")
+	public BoundedCache(int maxSize, int concurrencyLevel) {
+		int numberOfSegments = 1;
+		while (numberOfSegments < concurrencyLevel) numberOfSegments <<= 1;
+
+		this.maxSize = maxSize;
+		this.segments = (Segment[]) Array.newInstance(Segment.class, numberOfSegments);
+		for (int i = 0; i < segments.length; i++) segments[i] = new Segment();
+	}
+
+	/**
+	 * Returns the value for the given key, or null if it is not in the cache. Use
+	 * {@link #get(Object, Loader)} when null is a valid cached value.
+	 */
+	public V get(K key) {
+		return get(key, null);
+	}
+
+	/**
+	 * Returns the value for the given key. If it is not in the cache, the value is loaded
+	 * using the loader and put in the cache. The loader is called outside of any lock, so
+	 * two threads missing the same key at the same time might both load it, the value cached
+	 * first is then returned to both and the other one is passed to the eviction listener.
+	 *
+	 * @param key the key
+	 * @param loader the loader, or null to only look into the cache
+	 */
+	public V get(K key, Loader<K, V> loader) {
+		long now = System.currentTimeMillis();
+		Entry<V> entry = segmentFor(key).get(key, now);
+		if (entry != null) {
+			hits.incrementAndGet();
+			return entry.value;
+		}
+		misses.incrementAndGet();
+		if (loader == null) return null;
+
+		V value = loader.load(key);
+		return segmentFor(key).putIfAbsent(key, newEntry(key, value), System.currentTimeMillis());
+	}
+
+	/**
+	 * Puts the given value in the cache, a different value already cached for the key is passed
+	 * to the eviction listener.
+	 */
+	public void put(K key, V value) {
+		segmentFor(key).put(key, newEntry(key, value));
+	}
+
+	private Entry<V> newEntry(K key, V value) {
+		int weight = weigher == null ? 1 : weigher.weigh(key, value);
+		return new Entry<V>(value, weight, System.currentTimeMillis());
+	}
+
+	public void remove(K key) {
+		segmentFor(key).remove(key);
+	}
+
+	/**
+	 * Removes all the entries, each of them is passed to the eviction listener once its segment is cleared,
+	 * outside of the segment lock.
+	 */
+	public void clear() {
+		for (Segment segment : segments) {
+			Map<K, Entry<V>> entries = segment.clear();
+			if (evictionListener != null) {
+				for (Map.Entry<K, Entry<V>> entry : entries.entrySet()) evictionListener.evicted(entry.getKey(), entry.getValue().value);
+			}
+		}
+	}
+
+	public int getSize() {
+		int size = 0;
+		for (Segment segment : segments) size += segment.size();
+		return size;
+	}
+
+	public long getWeight() {
+		long weight = 0;
+		for (Segment segment : segments) {
+			segment.lock();
+			try {
+				weight += segment.weight;
+			} finally {
+				segment.unlock();
+			}
+		}
+		return weight;
+	}
+
+	public long getHitCount() {
+		return hits.get();
+	}
+
+	public long getMissCount() {
+		return misses.get();
+	}
+
+	public long getEvictionCount() {
+		return evictions.get();
+	}
+
+	public double getHitRatio() {
+		long hitCount = hits.get();
+		long requests = hitCount + misses.get();
+		return requests == 0 ? 0d : (double) hitCount / requests;
+	}
+
+	public void resetStatistics() {
+		hits.set(0);
+		misses.set(0);
+		evictions.set(0);
+	}
+
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	public void setMaxSize(int maxSize) {
+		this.maxSize = maxSize;
+	}
+
+	public long getMaxWeight() {
+		return maxWeight;
+	}
+
+	/**
+	 * Sets the maximum total weight of the entries, 0 or less means no limit.
+	 */
+	public void setMaxWeight(long maxWeight) {
+		this.maxWeight = maxWeight;
+	}
+
+	public long getTimeToLive() {
+		return timeToLive;
+	}
+
+	/**
+	 * Sets the time in milliseconds after which an entry expires, 0 or less means never.
+	 */
+	public void setTimeToLive(long timeToLive) {
+		this.timeToLive = timeToLive;
+	}
+
+	public void setWeigher(Weigher<K, V> weigher) {
+		this.weigher = weigher;
+	}
+
+	public void setEvictionListener(EvictionListener<K, V> evictionListener) {
+		this.evictionListener = evictionListener;
+	}
+
+	private boolean isExpired(Entry<V> entry, long now) {
+		return timeToLive > 0 && now - entry.created > timeToLive;
+	}
+
+	private Segment segmentFor(K key) {
+		int hash = key == null ? 0 : key.hashCode();
+		// spread the bits so that close hash codes end up in different segments
+		hash ^= (hash >>> 20) ^ (hash >>> 12);
+		hash ^= (hash >>> 7) ^ (hash >>> 4);
+		return segments[hash & (segments.length - 1)];
+	}
+
+}
@@ -0,0 +1,36 @@
+package org.chai.kevin.util;
+
+/**
+ * Management interface of {@link BoundedCache}.
+ */
+public interface BoundedCacheMBean {
+
+	public int getSize();
+
+	public long getWeight();
+
+	public long getHitCount();
+
+	public long getMissCount();
+
+	public long getEvictionCount();
+
+	public double getHitRatio();
+
+	public int getMaxSize();
+
+	public void setMaxSize(int maxSize);
+
+	public long getMaxWeight();
+
+	public void setMaxWeight(long maxWeight);
+
+	public long getTimeToLive();
+
+	public void setTimeToLive(long timeToLive);
+
+	public void clear();
+
+	public void resetStatistics();
+
+}
@@ -42,6 +42,7 @@ import org.chai.location.DataLocation
 import org.chai.location.DataLocationType
 import org.chai.location.Location
 import org.chai.location.LocationLevel;
+import org.chai.kevin.value.DirtyValue;
 import org.chai.kevin.value.RawDataElementValue;
 import org.chai.kevin.value.Value;
 import org.chai.kevin.value.ValueService;
@@ -77,6 +78,7 @@ class DataImporterSpec extends IntegrationTests {
 
 	def cleanup() {
 		RawDataElementValue.executeUpdate("delete RawDataElementValue")
+		DirtyValue.executeUpdate("delete DirtyValue")
 		RawDataElement.executeUpdate("delete RawDataElement")
 		EnumOption.executeUpdate("delete EnumOption")
 		Enum.executeUpdate("delete Enum")
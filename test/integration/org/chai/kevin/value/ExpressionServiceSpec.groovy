@@ -4,6 +4,7 @@ import org.chai.kevin.IntegrationTests;
 import org.chai.kevin.Period;
 import org.chai.kevin.data.Data;
 import org.chai.kevin.data.DataElement;
+import org.chai.kevin.data.DataService;
 import org.chai.kevin.data.NormalizedDataElement;
 import org.chai.kevin.data.Summ;
 import org.chai.kevin.data.RawDataElement;
@@ -50,7 +51,9 @@ import org.chai.kevin.value.Value;
 public class ExpressionServiceSpec extends IntegrationTests {
 
 	def expressionService;
+	def refreshValueService;
 	def valueService;
+	def dataService;
 	
 	def "test normalized data elements at data location level"() {
 		setup:
@@ -102,6 +105,64 @@ public class ExpressionServiceSpec extends IntegrationTests {
 		result.status == Status.VALID
 	}
 	
+	def "test normalized data element values for all data locations"() {
+		setup:
+		setupLocationTree()
+		def period = newPeriod()
+		def dataElement = newRawDataElement(CODE(10), Type.TYPE_NUMBER())
+		def dataLocations = [DataLocation.findByCode(KIVUYE), DataLocation.findByCode(BUTARO)]
+		newRawDataElementValue(dataElement, period, DataLocation.findByCode(BUTARO), v("40"))
+		newRawDataElementValue(dataElement, period, DataLocation.findByCode(KIVUYE), v("10"))
+		def normalizedDataElement = null
+		def result = null
+		
+		when:
+		normalizedDataElement = newNormalizedDataElement(CODE(1), Type.TYPE_NUMBER(), [(period.id+''):[(DISTRICT_HOSPITAL_GROUP):"\$"+dataElement.id+" * 2", (HEALTH_CENTER_GROUP):"\$"+dataElement.id+" + 1"]])
+		result = expressionService.calculateValues(normalizedDataElement, dataLocations, period)
+		
+		then:
+		result.size() == 2
+		result[0].location.equals(DataLocation.findByCode(KIVUYE))
+		result[0].value.numberValue == 11d
+		result[0].status == Status.VALID
+		result[1].location.equals(DataLocation.findByCode(BUTARO))
+		result[1].value.numberValue == 80d
+		result[1].status == Status.VALID
+		
+		when: "expression is missing for data location type"
+		normalizedDataElement = newNormalizedDataElement(CODE(2), Type.TYPE_NUMBER(), [(period.id+''):[(DISTRICT_HOSPITAL_GROUP):"\$"+dataElement.id]])
+		result = expressionService.calculateValues(normalizedDataElement, dataLocations, period)
+		
+		then:
+		result[0].value == Value.NULL_INSTANCE()
+		result[0].status == Status.MISSING_EXPRESSION
+		result[1].value.numberValue == 40d
+		result[1].status == Status.VALID
+		
+		when: "typing error"
+		normalizedDataElement = newNormalizedDataElement(CODE(3), Type.TYPE_BOOL(), [(period.id+''):[(DISTRICT_HOSPITAL_GROUP):"\$"+dataElement.id, (HEALTH_CENTER_GROUP):"\$"+dataElement.id+" > 5"]])
+		result = expressionService.calculateValues(normalizedDataElement, dataLocations, period)
+		
+		then:
+		result[0].value == Value.VALUE_BOOL(true)
+		result[0].status == Status.VALID
+		result[1].value == Value.NULL_INSTANCE()
+		result[1].status == Status.ERROR
+		
+		when: "dependency has no value for one of the data locations"
+		def otherDataElement = newRawDataElement(CODE(11), Type.TYPE_NUMBER())
+		newRawDataElementValue(otherDataElement, period, DataLocation.findByCode(BUTARO), v("5"))
+		def expression = "if (\$"+otherDataElement.id+" == \"null\") \$"+dataElement.id+" else \$"+otherDataElement.id+" + \$"+dataElement.id
+		normalizedDataElement = newNormalizedDataElement(CODE(4), Type.TYPE_NUMBER(), [(period.id+''):[(DISTRICT_HOSPITAL_GROUP):expression, (HEALTH_CENTER_GROUP):expression]])
+		result = expressionService.calculateValues(normalizedDataElement, dataLocations, period)
+		
+		then:
+		result[0].value.numberValue == 10d
+		result[0].status == Status.VALID
+		result[1].value.numberValue == 45d
+		result[1].status == Status.VALID
+	}
+	
 	def "test check for null in formulas"() {
 		setup:
 		setupLocationTree()
@@ -229,6 +290,34 @@ public class ExpressionServiceSpec extends IntegrationTests {
 		s(result*.value).equals(s([v("2"), v("1")]))
 	}
 
+	def "test parallel evaluation gives the same result"() {
+		setup:
+		setupLocationTree()
+		def period = newPeriod()
+		def dataElement = newRawDataElement(CODE(10), Type.TYPE_NUMBER())
+		newRawDataElementValue(dataElement, period, DataLocation.findByCode(BUTARO), v("40"))
+		newRawDataElementValue(dataElement, period, DataLocation.findByCode(KIVUYE), v("10"))
+		def normalizedDataElement = newNormalizedDataElement(CODE(1), Type.TYPE_NUMBER(), [(period.id+''):[(DISTRICT_HOSPITAL_GROUP):"\$"+dataElement.id+" * 2",(HEALTH_CENTER_GROUP):"sum([\$"+dataElement.id+", 1])"]])
+		def sum = newSum("\$"+normalizedDataElement.id, CODE(2))
+		def dataLocations = DataLocation.list()
+		refreshNormalizedDataElement()
+		def sequentialValues = expressionService.calculateValues(normalizedDataElement, dataLocations, period)
+		def sequentialPartialValues = expressionService.calculatePartialValues(sum, Location.findByCode(RWANDA), period)
+		
+		when:
+		expressionService.parallelism = 4
+		def parallelValues = expressionService.calculateValues(normalizedDataElement, dataLocations, period)
+		def parallelPartialValues = expressionService.calculatePartialValues(sum, Location.findByCode(RWANDA), period)
+		
+		then:
+		parallelValues*.value == sequentialValues*.value
+		parallelValues*.status == sequentialValues*.status
+		s(parallelPartialValues*.value).equals(s(sequentialPartialValues*.value))
+		
+		cleanup:
+		expressionService.parallelism = 1
+	}
+	
 	def "test mode calculation"() {
 		setup:
 		setupLocationTree()
@@ -498,6 +587,99 @@ public class ExpressionServiceSpec extends IntegrationTests {
 		dataElements.size() == 0
 	}
 	
+	def "expression metadata is kept until data changes"() {
+		setup:
+		def rawDataElement = newRawDataElement(CODE(1), Type.TYPE_NUMBER())
+		def expression = "\$"+rawDataElement.id+" + \$"+rawDataElement.id
+		def metadata = null
+		
+		when:
+		metadata = expressionService.getExpressionMetadata(expression)
+		
+		then:
+		metadata.resolved
+		metadata.variables == s(["\$"+rawDataElement.id])
+		metadata.getDataId("\$"+rawDataElement.id) == rawDataElement.id
+		metadata.getDataClass("\$"+rawDataElement.id) == RawDataElement.class
+		metadata.types[rawDataElement.id+""].equals(Type.TYPE_NUMBER())
+		expressionService.getExpressionMetadata(expression).is(metadata)
+		
+		when:
+		rawDataElement.type = Type.TYPE_BOOL()
+		rawDataElement.timestamp = new Date(rawDataElement.timestamp.time + 1000)
+		rawDataElement.save(failOnError: true, flush: true)
+		def newMetadata = expressionService.getExpressionMetadata(expression)
+		
+		then:
+		!newMetadata.is(metadata)
+		newMetadata.types[rawDataElement.id+""].equals(Type.TYPE_BOOL())
+	}
+	
+	def "expression metadata is served from the cache without loading the data"() {
+		setup:
+		def rawDataElement = newRawDataElement(CODE(1), Type.TYPE_NUMBER())
+		def expression = "\$"+rawDataElement.id+" + 1"
+		def loaded = []
+		expressionService.dataService = [getData: {id, clazz -> loaded << id; return dataService.getData(id, clazz)}] as DataService
+		
+		when:
+		def metadata = expressionService.getExpressionMetadata(expression)
+		
+		then:
+		loaded == [rawDataElement.id]
+		
+		when:
+		loaded.clear()
+		def dataIds = expressionService.getDataIdsInExpression(expression, RawDataElement.class)
+		
+		then:
+		expressionService.getExpressionMetadata(expression).is(metadata)
+		dataIds == ["\$"+rawDataElement.id: rawDataElement.id]
+		loaded.isEmpty()
+		
+		when:
+		rawDataElement.lastValueChanged = new Date()
+		rawDataElement.save(failOnError: true, flush: true)
+		
+		then:
+		expressionService.getExpressionMetadata(expression).is(metadata)
+		loaded.isEmpty()
+		
+		cleanup:
+		expressionService.dataService = dataService
+	}
+	
+	def "only the expression metadata referring to a changed data is discarded"() {
+		setup:
+		def rawDataElement1 = newRawDataElement(CODE(1), Type.TYPE_NUMBER())
+		def rawDataElement2 = newRawDataElement(CODE(2), Type.TYPE_NUMBER())
+		def expression1 = "\$"+rawDataElement1.id+" + 1"
+		def expression2 = "\$"+rawDataElement2.id+" + 1"
+		def expression12 = "\$"+rawDataElement1.id+" + \$"+rawDataElement2.id
+		def metadata1 = expressionService.getExpressionMetadata(expression1)
+		def metadata2 = expressionService.getExpressionMetadata(expression2)
+		def metadata12 = expressionService.getExpressionMetadata(expression12)
+		
+		when:
+		rawDataElement1.code = CODE(3)
+		rawDataElement1.save(failOnError: true, flush: true)
+		
+		then:
+		!expressionService.getExpressionMetadata(expression1).is(metadata1)
+		expressionService.getExpressionMetadata(expression2).is(metadata2)
+		!expressionService.getExpressionMetadata(expression12).is(metadata12)
+	}
+	
+	def "expression metadata is not kept for missing data"() {
+		when:
+		def metadata = expressionService.getExpressionMetadata("\$0")
+		
+		then:
+		!metadata.resolved
+		metadata.getDataId("\$0") == null
+		!expressionService.getExpressionMetadata("\$0").is(metadata)
+	}
+	
 	def "expressions with end-of-line are valid"() {
 		when:
 		def formula = "1\n+1"
@@ -580,45 +762,69 @@ public class ExpressionServiceSpec extends IntegrationTests {
 		def normalizedDataElement1 = newNormalizedDataElement(CODE(1), Type.TYPE_NUMBER(), [(period.id+''):[(DISTRICT_HOSPITAL_GROUP):"1",(HEALTH_CENTER_GROUP):"1"]])
 		
 		then:
-		expressionService.hasCircularDependency(normalizedDataElement1) == false
+		refreshValueService.hasCircularDependency(normalizedDataElement1) == false
 		
 		when:
 		def normalizedDataElement2 = newNormalizedDataElement(CODE(2), Type.TYPE_NUMBER(), [(period.id+''):[(DISTRICT_HOSPITAL_GROUP):"\$"+normalizedDataElement1.id,(HEALTH_CENTER_GROUP):"1"]])
 		
 		then:
-		expressionService.hasCircularDependency(normalizedDataElement2) == false
+		refreshValueService.hasCircularDependency(normalizedDataElement2) == false
 		
 		when:
 		def normalizedDataElement3 = newNormalizedDataElement(CODE(3), Type.TYPE_NUMBER(), [(period.id+''):[(DISTRICT_HOSPITAL_GROUP):"\$"+normalizedDataElement2.id,(HEALTH_CENTER_GROUP):"1"]])
 		
 		then:
-		expressionService.hasCircularDependency(normalizedDataElement3) == false
+		refreshValueService.hasCircularDependency(normalizedDataElement3) == false
 		
 		when:
 		normalizedDataElement2.expressionMap = [(period.id+''):[(DISTRICT_HOSPITAL_GROUP):"\$"+normalizedDataElement3.id,(HEALTH_CENTER_GROUP):"1"]]
 		
 		then:
-		expressionService.hasCircularDependency(normalizedDataElement3) == true
+		refreshValueService.hasCircularDependency(normalizedDataElement2) == true
 		
 		when:
 		normalizedDataElement2.expressionMap = [(period.id+''):[(DISTRICT_HOSPITAL_GROUP):"\$"+normalizedDataElement1.id,(HEALTH_CENTER_GROUP):"\$"+normalizedDataElement3.id]]
 		
 		then:
-		expressionService.hasCircularDependency(normalizedDataElement3) == false
+		refreshValueService.hasCircularDependency(normalizedDataElement2) == false
 		
 		when:
 		def normalizedDataElement4 = newNormalizedDataElement(CODE(4), Type.TYPE_NUMBER(), [:])
 		
 		then:
-		expressionService.hasCircularDependency(normalizedDataElement4) == false
+		refreshValueService.hasCircularDependency(normalizedDataElement4) == false
 		
 		when:
 		def dataElement = newRawDataElement(CODE(5), Type.TYPE_NUMBER())
 		def normalizedDataElement5 = newNormalizedDataElement(CODE(6), Type.TYPE_NUMBER(), [(period.id+''):[(DISTRICT_HOSPITAL_GROUP):"\$"+dataElement.id,(HEALTH_CENTER_GROUP):"1"]])
 		
 		then:
-		expressionService.hasCircularDependency(normalizedDataElement5) == false
+		refreshValueService.hasCircularDependency(normalizedDataElement5) == false
+		
+	}
+	
+	def "test circular dependency with shared dependencies"() {
+		setup:
+		setupLocationTree()
+		def period = newPeriod()
+		def normalizedDataElement1 = newNormalizedDataElement(CODE(1), Type.TYPE_NUMBER(), [(period.id+''):[(DISTRICT_HOSPITAL_GROUP):"1",(HEALTH_CENTER_GROUP):"1"]])
+		def normalizedDataElement2 = newNormalizedDataElement(CODE(2), Type.TYPE_NUMBER(), [(period.id+''):[(DISTRICT_HOSPITAL_GROUP):"\$"+normalizedDataElement1.id,(HEALTH_CENTER_GROUP):"1"]])
+		def normalizedDataElement3 = newNormalizedDataElement(CODE(3), Type.TYPE_NUMBER(), [(period.id+''):[(DISTRICT_HOSPITAL_GROUP):"\$"+normalizedDataElement1.id,(HEALTH_CENTER_GROUP):"1"]])
+		
+		when: "two dependencies share a dependency"
+		def normalizedDataElement4 = newNormalizedDataElement(CODE(4), Type.TYPE_NUMBER(), [(period.id+''):[(DISTRICT_HOSPITAL_GROUP):"\$"+normalizedDataElement2.id+" + \$"+normalizedDataElement3.id,(HEALTH_CENTER_GROUP):"1"]])
+		
+		then:
+		refreshValueService.hasCircularDependency(normalizedDataElement4) == false
+		
+		when: "the element closes a cycle through both dependencies"
+		normalizedDataElement1.expressionMap = [(period.id+''):[(DISTRICT_HOSPITAL_GROUP):"\$"+normalizedDataElement4.id,(HEALTH_CENTER_GROUP):"1"]]
+		
+		then:
+		refreshValueService.hasCircularDependency(normalizedDataElement1) == true
 		
+		then: "only the dependencies added to the element are checked"
+		refreshValueService.hasCircularDependency(normalizedDataElement4) == false
 	}
 	
 }
@@ -28,6 +28,10 @@ package org.chai.kevin.value
 * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
 */
 
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
 import org.chai.kevin.IntegrationTests;
 import org.chai.kevin.Period;
 import org.chai.kevin.TestProgress;
@@ -57,7 +61,11 @@ class RefreshValueServiceSpec extends IntegrationTests {
 	static transactional = false
 	
 	def refreshValueService;
+	def refreshScheduler;
+	def expressionService;
+	def valueService;
 	def sessionFactory
+	def transactionManager
 	
 	def cleanup() {
 		RawDataElementValue.executeUpdate("delete RawDataElementValue")
@@ -76,6 +84,11 @@ class RefreshValueServiceSpec extends IntegrationTests {
 		DataLocationType.executeUpdate("delete DataLocationType")
 		Period.executeUpdate("delete Period")
 		Source.executeUpdate("delete Source")
+		DirtyValue.executeUpdate("delete DirtyValue")
+		RefreshCheckpoint.executeUpdate("delete RefreshCheckpoint")
+		RefreshReport.executeUpdate("delete RefreshReport")
+		RefreshPeriodTime.executeUpdate("delete RefreshPeriodTime")
+		RefreshUnitTask.executeUpdate("delete RefreshUnitTask")
 		sessionFactory.currentSession.flush()
 	} 
 	
@@ -171,6 +184,27 @@ class RefreshValueServiceSpec extends IntegrationTests {
 		NormalizedDataElement.list()[0].refreshed.after(date)
 	}
 	
+	def "test refresh normalized elements does not change the last value changed date when no value changed"() {
+		setup:
+		setupLocationTree()
+		def period = newPeriod()
+		def normalizedDataElement = newNormalizedDataElement(CODE(1), Type.TYPE_NUMBER(), [(period.id+''):[(DISTRICT_HOSPITAL_GROUP):"1", (HEALTH_CENTER_GROUP):"1"]])
+		refreshValueService.refreshNormalizedDataElement(normalizedDataElement, new TestProgress())
+		def date = NormalizedDataElement.get(normalizedDataElement.id).lastValueChanged
+		def refreshed = NormalizedDataElement.get(normalizedDataElement.id).refreshed
+		
+		when:
+		Thread.sleep(1100)
+		normalizedDataElement = NormalizedDataElement.get(normalizedDataElement.id)
+		normalizedDataElement.timestamp = new Date()
+		normalizedDataElement.save(failOnError: true, flush: true)
+		refreshValueService.refreshNormalizedDataElement(normalizedDataElement, new TestProgress())
+		
+		then:
+		NormalizedDataElement.get(normalizedDataElement.id).refreshed.after(refreshed)
+		NormalizedDataElement.get(normalizedDataElement.id).lastValueChanged.equals(date)
+	}
+	
 	def "test refresh normalized elements updates when data element is updated - with period and location"() {
 		setup:
 		setupLocationTree()
@@ -369,6 +403,102 @@ class RefreshValueServiceSpec extends IntegrationTests {
 		NormalizedDataElementValue.list()[0].timestamp.seconds != timestamp.seconds	
 	}
 	
+	def "test refresh normalized elements writes values in batches"() {
+		setup:
+		setupLocationTree()
+		def period = newPeriod()
+		def normalizedDataElement = newNormalizedDataElement(CODE(1), Type.TYPE_NUMBER(), [(period.id+''):[(DISTRICT_HOSPITAL_GROUP):"1", (HEALTH_CENTER_GROUP):"2"]])
+		def butaroValue = newNormalizedDataElementValue(normalizedDataElement, DataLocation.findByCode(BUTARO), period, Status.VALID, v("1"))
+		def timestamp = butaroValue.timestamp
+		refreshValueService.batchSize = 1
+		
+		when:
+		Thread.sleep(1100)
+		refreshValueService.refreshNormalizedDataElement(normalizedDataElement, new TestProgress())
+		
+		then:
+		NormalizedDataElementValue.count() == 2
+		NormalizedDataElementValue.get(butaroValue.id).value == v("1")
+		NormalizedDataElementValue.get(butaroValue.id).timestamp.seconds != timestamp.seconds
+		NormalizedDataElementValue.findByLocation(DataLocation.findByCode(KIVUYE)).value == v("2")
+		
+		cleanup:
+		refreshValueService.batchSize = 100
+	}
+	
+	def "test refresh normalized elements evaluates batchSize data locations at a time"() {
+		setup:
+		setupLocationTree()
+		def period = newPeriod()
+		def normalizedDataElement = newNormalizedDataElement(CODE(1), Type.TYPE_NUMBER(), [(period.id+''):[(DISTRICT_HOSPITAL_GROUP):"1", (HEALTH_CENTER_GROUP):"2"]])
+		def sum = newSum("\$"+normalizedDataElement.id, CODE(2))
+		def evaluated = Collections.synchronizedList([])
+		refreshValueService.expressionService = ProxyGenerator.INSTANCE.instantiateDelegateWithBaseClass([
+			calculateValues: { data, dataLocations, p -> 
+				evaluated << dataLocations.size()
+				expressionService.calculateValues(data, dataLocations, p) 
+			}
+		], [], expressionService, ExpressionService)
+		refreshValueService.batchSize = 1
+		
+		when:
+		refreshValueService.refreshCalculation(sum, new TestProgress())
+		
+		then:
+		// only the values of one data location are evaluated and written at a time
+		evaluated == [1, 1]
+		NormalizedDataElementValue.count() == 2
+		NormalizedDataElementValue.findByLocation(DataLocation.findByCode(KIVUYE)).value == v("2")
+		SumPartialValue.count() == 8
+		
+		cleanup:
+		refreshValueService.expressionService = expressionService
+		refreshValueService.batchSize = 100
+	}
+	
+	def "test refresh normalized elements for some periods only"() {
+		setup:
+		setupLocationTree()
+		def period1 = newPeriod()
+		def period2 = newPeriod(2006)
+		def normalizedDataElement = newNormalizedDataElement(CODE(1), Type.TYPE_NUMBER(), [
+			(period1.id+''):[(DISTRICT_HOSPITAL_GROUP):"1", (HEALTH_CENTER_GROUP):"1"],
+			(period2.id+''):[(DISTRICT_HOSPITAL_GROUP):"2", (HEALTH_CENTER_GROUP):"2"]
+		])
+		
+		when:
+		refreshValueService.refreshNormalizedDataElement(normalizedDataElement, [period1], new TestProgress())
+		
+		then:
+		NormalizedDataElementValue.findAllByPeriod(period1).size() == 2
+		NormalizedDataElementValue.findAllByPeriod(period2).size() == 0
+		NormalizedDataElement.list()[0].refreshed == null
+		RefreshCheckpoint.count() == 1
+	}
+	
+	def "test refresh normalized elements resumes from the periods already refreshed"() {
+		setup:
+		setupLocationTree()
+		def period1 = newPeriod()
+		def period2 = newPeriod(2006)
+		def normalizedDataElement = newNormalizedDataElement(CODE(1), Type.TYPE_NUMBER(), [
+			(period1.id+''):[(DISTRICT_HOSPITAL_GROUP):"1", (HEALTH_CENTER_GROUP):"1"],
+			(period2.id+''):[(DISTRICT_HOSPITAL_GROUP):"2", (HEALTH_CENTER_GROUP):"2"]
+		])
+		refreshValueService.refreshNormalizedDataElement(normalizedDataElement, [period1], new TestProgress())
+		def timestamp = NormalizedDataElementValue.findAllByPeriod(period1)[0].timestamp
+		
+		when:
+		Thread.sleep(1100)
+		refreshValueService.refreshNormalizedDataElement(normalizedDataElement, new TestProgress())
+		
+		then:
+		NormalizedDataElementValue.findAllByPeriod(period1)[0].timestamp.seconds == timestamp.seconds
+		NormalizedDataElementValue.findAllByPeriod(period2).collect {it.value.numberValue} == [2, 2]
+		NormalizedDataElement.list()[0].refreshed != null
+		RefreshCheckpoint.count() == 0
+	}
+	
 	def "test normalized data elements not calculated at non-data-location level"() {
 		when:
 		setupLocationTree()
@@ -468,6 +598,195 @@ class RefreshValueServiceSpec extends IntegrationTests {
 		AggregationPartialValue.count() == 16
 	}
 	
+	def "test refresh calculations rolls up partial values from the children"() {
+		setup:
+		setupLocationTree()
+		def period = newPeriod()
+		def dataElement = newRawDataElement(CODE(1), Type.TYPE_NUMBER())
+		newRawDataElementValue(dataElement, period, DataLocation.findByCode(BUTARO), v("40"))
+		newRawDataElementValue(dataElement, period, DataLocation.findByCode(KIVUYE), v("10"))
+		def sum = newSum("\$"+dataElement.id, CODE(2))
+		def mode = newMode("\$"+dataElement.id, CODE(3), Type.TYPE_NUMBER())
+		def aggregation = newAggregation("\$"+dataElement.id+" + \$"+dataElement.id, CODE(4))
+		
+		when:
+		refreshValueService.refreshCalculation(sum, new TestProgress())
+		refreshValueService.refreshCalculation(mode, new TestProgress())
+		refreshValueService.refreshCalculation(aggregation, new TestProgress())
+		
+		then:
+		(Location.list() + DataLocation.list()).each { location ->
+			def expectedSums = expressionService.calculatePartialValues(sum, location, period)
+			def actualSums = SumPartialValue.findAllByDataAndLocationAndPeriod(sum, location, period)
+			assert s(actualSums.collect {[it.type.code, it.value, it.numberOfDataLocations]}) == s(expectedSums.collect {[it.type.code, it.value, it.numberOfDataLocations]})
+			
+			def expectedAggregations = expressionService.calculatePartialValues(aggregation, location, period)
+			def actualAggregations = AggregationPartialValue.findAllByDataAndLocationAndPeriod(aggregation, location, period)
+			assert s(actualAggregations.collect {[it.type.code, it.expressionData, it.value]}) == s(expectedAggregations.collect {[it.type.code, it.expressionData, it.value]})
+			
+			// counts are compared as numbers, the order of the map entries does not matter
+			def modeCounts = { value -> value.mapValue.collectEntries {key, count -> [(key): count.numberValue.doubleValue()]} }
+			def expectedModes = expressionService.calculatePartialValues(mode, location, period)
+			def actualModes = ModePartialValue.findAllByDataAndLocationAndPeriod(mode, location, period)
+			assert s(actualModes.collect {[it.type.code, modeCounts(it.value)]}) == s(expectedModes.collect {[it.type.code, modeCounts(it.value)]})
+		}
+	}
+	
+	def "test refresh dirty values only refreshes the saved data locations"() {
+		setup:
+		setupLocationTree()
+		def period = newPeriod()
+		def rawDataElement = newRawDataElement(CODE(1), Type.TYPE_NUMBER())
+		def butaroValue = newRawDataElementValue(rawDataElement, period, DataLocation.findByCode(BUTARO), v("1"))
+		newRawDataElementValue(rawDataElement, period, DataLocation.findByCode(KIVUYE), v("2"))
+		def normalizedDataElement = newNormalizedDataElement(CODE(2), Type.TYPE_NUMBER(), [(period.id+''):[(DISTRICT_HOSPITAL_GROUP):"\$"+rawDataElement.id, (HEALTH_CENTER_GROUP):"\$"+rawDataElement.id]])
+		def sum = newSum("\$"+normalizedDataElement.id, CODE(3))
+		refreshValueService.refreshCalculation(sum, new TestProgress())
+		def kivuyeDate = NormalizedDataElementValue.findByLocation(DataLocation.findByCode(KIVUYE)).timestamp
+		def refreshed = NormalizedDataElement.get(normalizedDataElement.id).refreshed
+		def sumRefreshed = Summ.get(sum.id).refreshed
+		def sumIds = s(SumPartialValue.findAllByData(sum)*.id)
+		
+		when:
+		Thread.sleep(1100)
+		butaroValue = RawDataElementValue.get(butaroValue.id)
+		butaroValue.value = v("10")
+		valueService.save(butaroValue)
+		
+		then:
+		DirtyValue.count() == 1
+		
+		when:
+		refreshValueService.refreshDirtyValues(new TestProgress())
+		
+		then:
+		DirtyValue.count() == 0
+		NormalizedDataElementValue.findByLocation(DataLocation.findByCode(BUTARO)).value == v("10")
+		NormalizedDataElementValue.findByLocation(DataLocation.findByCode(KIVUYE)).timestamp.seconds == kivuyeDate.seconds
+		// values saved without going through the value service are left to the next full refresh
+		NormalizedDataElement.get(normalizedDataElement.id).refreshed == refreshed
+		Summ.get(sum.id).refreshed == sumRefreshed
+		// the partial values are updated in place instead of being deleted and inserted again
+		s(SumPartialValue.findAllByData(sum)*.id) == sumIds
+		(Location.list() + DataLocation.list()).each { location ->
+			def expectedSums = expressionService.calculatePartialValues(sum, location, period)
+			def actualSums = SumPartialValue.findAllByDataAndLocationAndPeriod(sum, location, period)
+			assert s(actualSums.collect {[it.type.code, it.value, it.numberOfDataLocations]}) == s(expectedSums.collect {[it.type.code, it.value, it.numberOfDataLocations]})
+		}
+	}
+	
+	def "test refresh for data location updates the ancestors of the data location"() {
+		setup:
+		setupLocationTree()
+		def period = newPeriod()
+		def rawDataElement = newRawDataElement(CODE(1), Type.TYPE_NUMBER())
+		def butaroValue = newRawDataElementValue(rawDataElement, period, DataLocation.findByCode(BUTARO), v("1"))
+		newRawDataElementValue(rawDataElement, period, DataLocation.findByCode(KIVUYE), v("2"))
+		def normalizedDataElement = newNormalizedDataElement(CODE(2), Type.TYPE_NUMBER(), [(period.id+''):[(DISTRICT_HOSPITAL_GROUP):"\$"+rawDataElement.id, (HEALTH_CENTER_GROUP):"\$"+rawDataElement.id]])
+		def sum = newSum("\$"+normalizedDataElement.id, CODE(3))
+		def mode = newMode("\$"+normalizedDataElement.id, CODE(4), Type.TYPE_NUMBER())
+		refreshValueService.refreshCalculation(sum, new TestProgress())
+		refreshValueService.refreshCalculation(mode, new TestProgress())
+		def kivuyeDate = NormalizedDataElementValue.findByLocation(DataLocation.findByCode(KIVUYE)).timestamp
+		
+		when:
+		Thread.sleep(1100)
+		butaroValue = RawDataElementValue.get(butaroValue.id)
+		butaroValue.value = v("10")
+		valueService.save(butaroValue)
+		refreshValueService.refreshForDataLocation(DataLocation.findByCode(BUTARO), period, [rawDataElement])
+		
+		then:
+		NormalizedDataElementValue.findByLocation(DataLocation.findByCode(BUTARO)).value == v("10")
+		NormalizedDataElementValue.findByLocation(DataLocation.findByCode(KIVUYE)).timestamp.seconds == kivuyeDate.seconds
+		(Location.list() + DataLocation.list()).each { location ->
+			def expectedSums = expressionService.calculatePartialValues(sum, location, period)
+			def actualSums = SumPartialValue.findAllByDataAndLocationAndPeriod(sum, location, period)
+			assert s(actualSums.collect {[it.type.code, it.value, it.numberOfDataLocations]}) == s(expectedSums.collect {[it.type.code, it.value, it.numberOfDataLocations]})
+			
+			def modeCounts = { value -> value.mapValue.collectEntries {key, count -> [(key): count.numberValue.doubleValue()]} }
+			def expectedModes = expressionService.calculatePartialValues(mode, location, period)
+			def actualModes = ModePartialValue.findAllByDataAndLocationAndPeriod(mode, location, period)
+			assert s(actualModes.collect {[it.type.code, modeCounts(it.value)]}) == s(expectedModes.collect {[it.type.code, modeCounts(it.value)]})
+		}
+	}
+	
+	def "test refresh for data location takes into account the data added since the last refresh"() {
+		setup:
+		setupLocationTree()
+		def period = newPeriod()
+		def rawDataElement = newRawDataElement(CODE(1), Type.TYPE_NUMBER())
+		def butaroValue = newRawDataElementValue(rawDataElement, period, DataLocation.findByCode(BUTARO), v("1"))
+		newNormalizedDataElement(CODE(2), Type.TYPE_NUMBER(), [(period.id+''):[(DISTRICT_HOSPITAL_GROUP):"\$"+rawDataElement.id]])
+		refreshValueService.refreshForDataLocation(DataLocation.findByCode(BUTARO), period, [rawDataElement])
+		
+		when:
+		def normalizedDataElement = newNormalizedDataElement(CODE(3), Type.TYPE_NUMBER(), [(period.id+''):[(DISTRICT_HOSPITAL_GROUP):"\$"+rawDataElement.id+" * 2"]])
+		butaroValue = RawDataElementValue.get(butaroValue.id)
+		butaroValue.value = v("10")
+		valueService.save(butaroValue)
+		refreshValueService.refreshForDataLocation(DataLocation.findByCode(BUTARO), period, [rawDataElement])
+		
+		then:
+		NormalizedDataElementValue.findByDataAndLocation(normalizedDataElement, DataLocation.findByCode(BUTARO)).value == v("20")
+	}
+	
+	def "test refresh for data location leaves the other data locations to the next full refresh"() {
+		setup:
+		setupLocationTree()
+		def period = newPeriod()
+		def rawDataElement = newRawDataElement(CODE(1), Type.TYPE_NUMBER())
+		def butaroValue = newRawDataElementValue(rawDataElement, period, DataLocation.findByCode(BUTARO), v("1"))
+		def kivuyeValue = newRawDataElementValue(rawDataElement, period, DataLocation.findByCode(KIVUYE), v("2"))
+		def normalizedDataElement = newNormalizedDataElement(CODE(2), Type.TYPE_NUMBER(), [(period.id+''):[(DISTRICT_HOSPITAL_GROUP):"\$"+rawDataElement.id, (HEALTH_CENTER_GROUP):"\$"+rawDataElement.id]])
+		refreshValueService.refreshNormalizedDataElement(normalizedDataElement, new TestProgress())
+		def refreshed = NormalizedDataElement.get(normalizedDataElement.id).refreshed
+		
+		when:
+		Thread.sleep(1100)
+		kivuyeValue = RawDataElementValue.get(kivuyeValue.id)
+		kivuyeValue.value = v("20")
+		kivuyeValue.save(failOnError: true, flush: true)
+		butaroValue = RawDataElementValue.get(butaroValue.id)
+		butaroValue.value = v("10")
+		valueService.save(butaroValue)
+		refreshValueService.refreshForDataLocation(DataLocation.findByCode(BUTARO), period, [rawDataElement])
+		
+		then:
+		NormalizedDataElement.get(normalizedDataElement.id).refreshed == refreshed
+		NormalizedDataElementValue.findByDataAndLocation(normalizedDataElement, DataLocation.findByCode(BUTARO)).value == v("10")
+		
+		when:
+		refreshValueService.refreshAll([period], new TestProgress())
+		
+		then:
+		NormalizedDataElementValue.findByDataAndLocation(normalizedDataElement, DataLocation.findByCode(KIVUYE)).value == v("20")
+	}
+	
+	def "test refresh calculations only refreshes the data the calculation depends on"() {
+		setup:
+		setupLocationTree()
+		def period = newPeriod()
+		def normalizedDataElement1 = newNormalizedDataElement(CODE(1), Type.TYPE_NUMBER(), [(period.id+''):[(DISTRICT_HOSPITAL_GROUP):"1", (HEALTH_CENTER_GROUP):"1"]])
+		def normalizedDataElement2 = newNormalizedDataElement(CODE(2), Type.TYPE_NUMBER(), [(period.id+''):[(DISTRICT_HOSPITAL_GROUP):"\$"+normalizedDataElement1.id, (HEALTH_CENTER_GROUP):"\$"+normalizedDataElement1.id]])
+		def normalizedDataElement3 = newNormalizedDataElement(CODE(3), Type.TYPE_NUMBER(), [(period.id+''):[(DISTRICT_HOSPITAL_GROUP):"\$"+normalizedDataElement1.id, (HEALTH_CENTER_GROUP):"\$"+normalizedDataElement1.id]])
+		def sum = newSum("\$"+normalizedDataElement2.id, CODE(4))
+		def otherSum = newSum("\$"+normalizedDataElement1.id, CODE(5))
+		def progress = new TestProgress()
+		
+		when:
+		refreshValueService.refreshCalculation(sum, progress)
+		
+		then:
+		NormalizedDataElementValue.countByData(normalizedDataElement1) == 2
+		NormalizedDataElementValue.countByData(normalizedDataElement2) == 2
+		NormalizedDataElementValue.countByData(normalizedDataElement3) == 0
+		SumPartialValue.countByData(sum) == 8
+		SumPartialValue.countByData(otherSum) == 0
+		NormalizedDataElement.get(normalizedDataElement3.id).refreshed == null
+		progress.max == progress.progress
+	}
+	
 	def "test refresh calculations refreshes dependencies first - with data element"() {
 		when:
 		setupLocationTree()
@@ -571,6 +890,185 @@ class RefreshValueServiceSpec extends IntegrationTests {
 		!Summ.list()[0].refreshed.equals(refreshed)
 	}
 	
+	def "test refresh calculations only updates changed partial values and deletes the others"() {
+		when:
+		setupLocationTree()
+		def period = newPeriod()
+		def ratio = newSum("1", CODE(2))
+		def partialValue = newSumPartialValue(ratio, period, Location.findByCode(BURERA), DataLocationType.findByCode(DISTRICT_HOSPITAL_GROUP), 1, v("5"))
+		def duplicate = newSumPartialValue(ratio, period, Location.findByCode(BURERA), DataLocationType.findByCode(DISTRICT_HOSPITAL_GROUP), 1, v("5"))
+		
+		then:
+		SumPartialValue.count() == 2
+		
+		when:
+		refreshValueService.refreshCalculation(ratio, new TestProgress());
+
+		then:
+		SumPartialValue.count() == 8
+		SumPartialValue.get(partialValue.id).value == v("1")
+		SumPartialValue.get(duplicate.id) == null
+		
+		when:
+		def ids = s(SumPartialValue.list()*.id)
+		ratio = Summ.findByCode(CODE(2))
+		ratio.refreshed = null
+		ratio.save(failOnError: true, flush: true)
+		refreshValueService.refreshCalculation(ratio, new TestProgress());
+		
+		then:
+		s(SumPartialValue.list()*.id) == ids
+	}
+	
+	def "test refresh with a stateless session updates the stored values"() {
+		setup:
+		setupLocationTree()
+		def period = newPeriod()
+		def rawDataElement = newRawDataElement(CODE(1), Type.TYPE_NUMBER())
+		def normalizedDataElement = newNormalizedDataElement(CODE(2), Type.TYPE_NUMBER(), [(period.id+''):[(DISTRICT_HOSPITAL_GROUP):"\$"+rawDataElement.id, (HEALTH_CENTER_GROUP):"\$"+rawDataElement.id]])
+		def sum = newSum("\$"+normalizedDataElement.id, CODE(3))
+		def rawDataElementValue = newRawDataElementValue(rawDataElement, period, DataLocation.findByCode(BUTARO), v("1"))
+		newRawDataElementValue(rawDataElement, period, DataLocation.findByCode(KIVUYE), v("2"))
+		refreshValueService.stateless = true
+		
+		when:
+		refreshValueService.refreshAll(new TestProgress())
+		def valueIds = s(NormalizedDataElementValue.list()*.id)
+		def partialValueIds = s(SumPartialValue.list()*.id)
+		
+		then:
+		NormalizedDataElementValue.findByLocation(DataLocation.findByCode(BUTARO)).value == v("1")
+		SumPartialValue.count() == 8
+		s(SumPartialValue.findAllByLocation(Location.findByCode(RWANDA)).collect {it.value.numberValue}) == s([1, 2])
+		
+		when:
+		Thread.sleep(1100)
+		rawDataElementValue = RawDataElementValue.get(rawDataElementValue.id)
+		rawDataElementValue.value = v("5")
+		rawDataElementValue.save(failOnError: true)
+		rawDataElement = RawDataElement.get(rawDataElement.id)
+		rawDataElement.lastValueChanged = new Date()
+		rawDataElement.save(failOnError: true, flush: true)
+		refreshValueService.refreshAll(new TestProgress())
+		
+		then:
+		s(NormalizedDataElementValue.list()*.id) == valueIds
+		NormalizedDataElementValue.findByLocation(DataLocation.findByCode(BUTARO)).value == v("5")
+		s(SumPartialValue.list()*.id) == partialValueIds
+		s(SumPartialValue.findAllByLocation(Location.findByCode(RWANDA)).collect {it.value.numberValue}) == s([5, 2])
+		
+		cleanup:
+		refreshValueService.stateless = false
+	}
+	
+	def "test refresh with a throttle backs off after a slow request"() {
+		setup:
+		setupLocationTree()
+		def period = newPeriod()
+		def rawDataElement = newRawDataElement(CODE(1), Type.TYPE_NUMBER())
+		def normalizedDataElement = newNormalizedDataElement(CODE(2), Type.TYPE_NUMBER(), [(period.id+''):[(DISTRICT_HOSPITAL_GROUP):"\$"+rawDataElement.id, (HEALTH_CENTER_GROUP):"\$"+rawDataElement.id]])
+		def sum = newSum("\$"+normalizedDataElement.id, CODE(3))
+		newRawDataElementValue(rawDataElement, period, DataLocation.findByCode(BUTARO), v("1"))
+		newRawDataElementValue(rawDataElement, period, DataLocation.findByCode(KIVUYE), v("2"))
+		def defaultThrottle = refreshValueService.throttle
+		def throttle = new RefreshThrottle()
+		throttle.maxConnections = 1
+		throttle.latencyThreshold = 100
+		throttle.backoffPause = 10
+		refreshValueService.throttle = throttle
+		
+		when:
+		throttle.recordLatency(50)
+		
+		then:
+		throttle.backoffLevel == 0
+		
+		when:
+		throttle.recordLatency(200)
+		refreshValueService.refreshAll(new TestProgress())
+		
+		then:
+		throttle.backoffLevel == 1
+		throttle.throttledTime >= 10
+		throttle.connectionsInUse == 0
+		NormalizedDataElementValue.findByLocation(DataLocation.findByCode(BUTARO)).value == v("1")
+		s(SumPartialValue.findAllByLocation(Location.findByCode(RWANDA)).collect {it.value.numberValue}) == s([1, 2])
+		
+		cleanup:
+		refreshValueService.throttle = defaultThrottle
+	}
+	
+	def "test cancelled refresh stops between data and is resumed by the next refresh"() {
+		setup:
+		setupLocationTree()
+		def period = newPeriod()
+		def normalizedDataElement1 = newNormalizedDataElement(CODE(1), Type.TYPE_NUMBER(), [(period.id+''):[(DISTRICT_HOSPITAL_GROUP):"1", (HEALTH_CENTER_GROUP):"1"]])
+		def normalizedDataElement2 = newNormalizedDataElement(CODE(2), Type.TYPE_NUMBER(), [(period.id+''):[(DISTRICT_HOSPITAL_GROUP):"\$"+normalizedDataElement1.id, (HEALTH_CENTER_GROUP):"\$"+normalizedDataElement1.id]])
+		// cancels as soon as the first data is refreshed
+		def progress = new TestProgress() {
+			void incrementProgress(Long increment) {
+				super.incrementProgress(increment)
+				abort()
+			}
+		}
+		
+		when:
+		refreshValueService.refreshAll(progress)
+		
+		then:
+		thrown RefreshCancelledException
+		refreshValueService.control.runningCount == 0
+		
+		when:
+		sessionFactory.currentSession.clear()
+		
+		then:
+		NormalizedDataElement.findByCode(CODE(1)).refreshed != null
+		NormalizedDataElement.findByCode(CODE(2)).refreshed == null
+		NormalizedDataElementValue.findAllByData(NormalizedDataElement.findByCode(CODE(1))).size() == 2
+		NormalizedDataElementValue.findAllByData(NormalizedDataElement.findByCode(CODE(2))).size() == 0
+		
+		when:
+		refreshValueService.refreshAll(new TestProgress())
+		sessionFactory.currentSession.clear()
+		
+		then:
+		NormalizedDataElement.findByCode(CODE(2)).refreshed != null
+		NormalizedDataElementValue.findAllByData(NormalizedDataElement.findByCode(CODE(2))).collect {it.value.numberValue} == [1, 1]
+	}
+	
+	def "test paused refresh waits until resumed"() {
+		setup:
+		setupLocationTree()
+		def period = newPeriod()
+		def normalizedDataElement = newNormalizedDataElement(CODE(1), Type.TYPE_NUMBER(), [(period.id+''):[(DISTRICT_HOSPITAL_GROUP):"1", (HEALTH_CENTER_GROUP):"1"]])
+		def control = refreshValueService.control
+		control.pause()
+		
+		when:
+		def thread = Thread.start {
+			refreshValueService.refreshAll(new TestProgress())
+		}
+		Thread.sleep(500)
+		
+		then:
+		control.paused
+		control.runningCount == 1
+		NormalizedDataElementValue.count() == 0
+		
+		when:
+		control.resume()
+		thread.join(10000)
+		
+		then:
+		!thread.alive
+		control.runningCount == 0
+		NormalizedDataElementValue.count() == 2
+		
+		cleanup:
+		control.resume()
+	}
+	
 	def "test refresh normalized data elements refreshes dependencies first"() {
 		setup:
 		setupLocationTree()
@@ -679,7 +1177,7 @@ class RefreshValueServiceSpec extends IntegrationTests {
 		NormalizedDataElementValue.list()[3].value.numberValue == 1
 		
 		progress.max == progress.progress
-		progress.max == 6
+		progress.max == 4
 	}
 	
 	def "test refresh all calculations progress"() {
@@ -695,7 +1193,391 @@ class RefreshValueServiceSpec extends IntegrationTests {
 		
 		then:
 		progress.max == progress.progress
-		progress.max == 9
+		progress.max == 7
+	}
+	
+	def "test refresh all records metrics and saves a report"() {
+		setup:
+		setupLocationTree()
+		def period = newPeriod()
+		def normalizedDataElement1 = newNormalizedDataElement(CODE(1), Type.TYPE_NUMBER(), [(period.id+''):[(DISTRICT_HOSPITAL_GROUP):"1", (HEALTH_CENTER_GROUP):"1"]])
+		def sum = newSum("\$"+normalizedDataElement1.id, CODE(2))
+		def reportCount = RefreshReport.count()
+		
+		when:
+		def progress = new TestProgress()
+		refreshValueService.refreshAll(progress);
+		def metrics = refreshValueService.metrics
+		
+		then:
+		!metrics.running
+		metrics.runName == "refreshAll"
+		metrics.completedUnits == 7
+		metrics.totalUnits == 7
+		metrics.estimatedTimeRemaining == 0
+		// 2 normalized data element values and 8 partial values
+		metrics.rowsEvaluated == 10
+		metrics.errorCount == 0
+		metrics.lastRun.dataMetrics.size() == 2
+		
+		RefreshReport.count() == reportCount + 1
+		def report = RefreshReport.list(sort: "id", order: "desc")[0]
+		report.name == "refreshAll"
+		!report.failed
+		report.dataCount == 2
+		report.rowsEvaluated == 10
+		report.rowsWritten == 10
+		report.slowestData.contains(CODE(1))
+	}
+	
+	def "test refresh all in parallel respects dependencies"() {
+		setup:
+		setupLocationTree()
+		def period = newPeriod()
+		def normalizedDataElement1 = newNormalizedDataElement(CODE(1), Type.TYPE_NUMBER(), [(period.id+''):[(DISTRICT_HOSPITAL_GROUP):"1", (HEALTH_CENTER_GROUP):"1"]])
+		def normalizedDataElement2 = newNormalizedDataElement(CODE(2), Type.TYPE_NUMBER(), [(period.id+''):[(DISTRICT_HOSPITAL_GROUP):"\$"+normalizedDataElement1.id+" + 1", (HEALTH_CENTER_GROUP):"\$"+normalizedDataElement1.id+" + 1"]])
+		def normalizedDataElement3 = newNormalizedDataElement(CODE(3), Type.TYPE_NUMBER(), [(period.id+''):[(DISTRICT_HOSPITAL_GROUP):"2", (HEALTH_CENTER_GROUP):"2"]])
+		def sum = newSum("\$"+normalizedDataElement2.id+" + \$"+normalizedDataElement3.id, CODE(4))
+		refreshValueService.parallelism = 4
+		
+		when:
+		def progress = new TestProgress()
+		refreshValueService.refreshAll(progress)
+		
+		then:
+		NormalizedDataElementValue.findAllByData(normalizedDataElement2).collect {it.value.numberValue} == [2, 2]
+		SumPartialValue.findAllByDataAndLocation(sum, Location.findByCode(RWANDA)).collect {it.value.numberValue} == [4, 4]
+		progress.max == progress.progress
+		progress.max == 11
+		
+		cleanup:
+		refreshValueService.parallelism = 1
+	}
+	
+	def "test scheduled refreshes are run"() {
+		setup:
+		setupLocationTree()
+		def period = newPeriod()
+		def normalizedDataElement = newNormalizedDataElement(CODE(1), Type.TYPE_NUMBER(), [(period.id+''):[(DISTRICT_HOSPITAL_GROUP):"1", (HEALTH_CENTER_GROUP):"1"]])
+		def sum = newSum("\$"+normalizedDataElement.id, CODE(2))
+		
+		when:
+		def future1 = refreshScheduler.scheduleRefresh(sum, [period], RefreshScheduler.Priority.NIGHTLY)
+		def future2 = refreshScheduler.scheduleRefresh(sum, null, RefreshScheduler.Priority.INTERACTIVE)
+		future1.get()
+		future2.get()
+		
+		then:
+		future1.done
+		future2.done
+		refreshScheduler.pendingCount == 0
+		NormalizedDataElementValue.count() == 2
+		SumPartialValue.count() == 8
+		
+		when:
+		refreshScheduler.scheduleRefresh(DataLocation.findByCode(BUTARO), null, RefreshScheduler.Priority.INTERACTIVE)
+		
+		then:
+		thrown IllegalArgumentException
+	}
+	
+	def "test scheduled refreshes of everything do not take over more urgent refreshes"() {
+		setup:
+		setupLocationTree()
+		def period = newPeriod()
+		def normalizedDataElement = newNormalizedDataElement(CODE(1), Type.TYPE_NUMBER(), [(period.id+''):[(DISTRICT_HOSPITAL_GROUP):"1", (HEALTH_CENTER_GROUP):"1"]])
+		def calls = Collections.synchronizedList([])
+		def started = new CountDownLatch(1)
+		def release = new CountDownLatch(1)
+		def realRefreshValueService = refreshScheduler.refreshValueService
+		refreshScheduler.refreshValueService = stubRefreshValueService(calls, started, release)
+		
+		when:
+		def futures = [refreshScheduler.scheduleRefreshDirtyValues(RefreshScheduler.Priority.NIGHTLY)]
+		started.await(10, TimeUnit.SECONDS)
+		futures << refreshScheduler.scheduleRefreshAll([period], RefreshScheduler.Priority.NIGHTLY)
+		futures << refreshScheduler.scheduleRefresh(normalizedDataElement, [period], RefreshScheduler.Priority.IMPORT)
+		futures << refreshScheduler.scheduleRefreshForDataLocation(DataLocation.findByCode(BUTARO), period, [], RefreshScheduler.Priority.INTERACTIVE)
+		def pendingCount = refreshScheduler.pendingCount
+		release.countDown()
+		futures.each { it.get(10, TimeUnit.SECONDS) }
+		
+		then:
+		pendingCount == 3
+		calls == [['dirty'], ['dataLocation', DataLocation.findByCode(BUTARO).id, period.id], ['data', normalizedDataElement.id, s([period.id])], ['all', s([period.id])]]
+		
+		cleanup:
+		refreshScheduler.refreshValueService = realRefreshValueService
+	}
+	
+	def "test scheduled refreshes waiting for the worker are merged"() {
+		setup:
+		setupLocationTree()
+		def period1 = newPeriod()
+		def period2 = newPeriod()
+		def normalizedDataElement = newNormalizedDataElement(CODE(1), Type.TYPE_NUMBER(), [(period1.id+''):[(DISTRICT_HOSPITAL_GROUP):"1", (HEALTH_CENTER_GROUP):"1"]])
+		def calls = Collections.synchronizedList([])
+		def started = new CountDownLatch(1)
+		def release = new CountDownLatch(1)
+		def realRefreshValueService = refreshScheduler.refreshValueService
+		refreshScheduler.refreshValueService = stubRefreshValueService(calls, started, release)
+		
+		when:
+		def futures = [refreshScheduler.scheduleRefreshDirtyValues(RefreshScheduler.Priority.NIGHTLY)]
+		started.await(10, TimeUnit.SECONDS)
+		futures << refreshScheduler.scheduleRefresh(normalizedDataElement, [period1], RefreshScheduler.Priority.NIGHTLY)
+		futures << refreshScheduler.scheduleRefresh(normalizedDataElement, [period2], RefreshScheduler.Priority.NIGHTLY)
+		futures << refreshScheduler.scheduleRefresh(normalizedDataElement, [period1], RefreshScheduler.Priority.IMPORT)
+		futures << refreshScheduler.scheduleRefreshDirtyValues(RefreshScheduler.Priority.NIGHTLY)
+		futures << refreshScheduler.scheduleRefreshDirtyValues(RefreshScheduler.Priority.INTERACTIVE)
+		def pendingCount = refreshScheduler.pendingCount
+		release.countDown()
+		futures.each { it.get(10, TimeUnit.SECONDS) }
+		
+		then:
+		// the running refresh is not merged, the waiting ones are, and run by their highest priority
+		pendingCount == 2
+		calls == [['dirty'], ['dirty'], ['data', normalizedDataElement.id, s([period1.id, period2.id])]]
+		refreshScheduler.pendingCount == 0
+		
+		cleanup:
+		refreshScheduler.refreshValueService = realRefreshValueService
+	}
+	
+	def "test scheduled refreshes failing with an error complete their futures"() {
+		setup:
+		def realRefreshValueService = refreshScheduler.refreshValueService
+		refreshScheduler.refreshValueService = [refreshDirtyValues: { progress -> throw new AssertionError("refresh failed") }] as RefreshValueService
+		
+		when:
+		refreshScheduler.scheduleRefreshDirtyValues(RefreshScheduler.Priority.NIGHTLY).get(10, TimeUnit.SECONDS)
+		
+		then:
+		def e = thrown(ExecutionException)
+		e.cause instanceof AssertionError
+		
+		cleanup:
+		refreshScheduler.refreshValueService = realRefreshValueService
+	}
+	
+	// records the refreshes run by the scheduler instead of running them, the first one waits until released
+	def stubRefreshValueService(def calls, def started, def release) {
+		def record = { call ->
+			calls << call
+			if (calls.size() == 1) {
+				started.countDown()
+				release.await(10, TimeUnit.SECONDS)
+			}
+		}
+		return [
+			refreshAll: { periods, progress -> record(['all', s(periods*.id)]) },
+			refreshNormalizedDataElement: { normalizedDataElement, periods, progress -> record(['data', normalizedDataElement.id, s(periods*.id)]) },
+			refreshCalculation: { calculation, periods, progress -> record(['data', calculation.id, s(periods*.id)]) },
+			refreshForDataLocation: { dataLocation, period, rawDataElements -> record(['dataLocation', dataLocation.id, period.id]) },
+			refreshDirtyValues: { progress -> record(['dirty']) }
+		] as RefreshValueService
+	}
+	
+	def "test refresh all with units respects dependencies"() {
+		setup:
+		setupLocationTree()
+		def period1 = newPeriod()
+		def period2 = newPeriod()
+		def normalizedDataElement1 = newNormalizedDataElement(CODE(1), Type.TYPE_NUMBER(), [(period1.id+''):[(DISTRICT_HOSPITAL_GROUP):"1", (HEALTH_CENTER_GROUP):"1"], (period2.id+''):[(DISTRICT_HOSPITAL_GROUP):"2", (HEALTH_CENTER_GROUP):"2"]])
+		def normalizedDataElement2 = newNormalizedDataElement(CODE(2), Type.TYPE_NUMBER(), [(period1.id+''):[(DISTRICT_HOSPITAL_GROUP):"\$"+normalizedDataElement1.id+" + 1", (HEALTH_CENTER_GROUP):"\$"+normalizedDataElement1.id+" + 1"], (period2.id+''):[(DISTRICT_HOSPITAL_GROUP):"\$"+normalizedDataElement1.id+" + 1", (HEALTH_CENTER_GROUP):"\$"+normalizedDataElement1.id+" + 1"]])
+		def sum = newSum("\$"+normalizedDataElement2.id, CODE(3))
+		def queue = new LocalRefreshUnitQueue()
+		def worker = new RefreshUnitWorker(refreshValueService: refreshValueService, queue: queue, threads: 2, claimTimeout: 100)
+		worker.start()
+		
+		when:
+		def progress = new TestProgress()
+		refreshValueService.refreshAll([period1, period2], queue, progress)
+		
+		then:
+		NormalizedDataElementValue.findAllByDataAndPeriod(normalizedDataElement2, period1).collect {it.value.numberValue} == [2, 2]
+		NormalizedDataElementValue.findAllByDataAndPeriod(normalizedDataElement2, period2).collect {it.value.numberValue} == [3, 3]
+		SumPartialValue.findAllByDataAndLocationAndPeriod(sum, Location.findByCode(RWANDA), period2).collect {it.value.numberValue} == [3, 3]
+		NormalizedDataElement.get(normalizedDataElement2.id).refreshed != null
+		Summ.get(sum.id).refreshed != null
+		RefreshCheckpoint.count() == 0
+		progress.max == progress.progress
+		progress.max == 18
+		
+		cleanup:
+		worker.shutdown()
+	}
+	
+	def "test refresh units in the database are claimed once"() {
+		setup:
+		def queue = new DatabaseRefreshUnitQueue(sessionFactory: sessionFactory, transactionManager: transactionManager, pollInterval: 10)
+		def unit = new RefreshUnit("run", 1L, 2L, true, null, new Date())
+		
+		when:
+		queue.publish(unit)
+		def claimed = queue.claim(100)
+		
+		then:
+		claimed.taskId == unit.taskId
+		claimed.dataId == 1
+		claimed.periodId == 2
+		claimed.calculation
+		claimed.runId == "run"
+		queue.claim(10) == null
+		queue.takeResult("run", 10) == null
+		
+		when:
+		queue.complete(new RefreshUnitResult(claimed, true, new Date(), null))
+		def result = queue.takeResult("run", 100)
+		
+		then:
+		result.unit.dataId == 1
+		result.refreshed
+		!result.failed
+		RefreshUnitTask.count() == 0
+	}
+	
+	def "test refresh units in the database can only be acknowledged by their last claim"() {
+		setup:
+		def queue = new DatabaseRefreshUnitQueue(sessionFactory: sessionFactory, transactionManager: transactionManager, pollInterval: 10, claimTimeout: 200)
+		queue.publish(new RefreshUnit("run", 1L, 2L, true, null, new Date()))
+		
+		when:
+		def firstClaim = queue.claim(100)
+		Thread.sleep(100)
+		
+		then:
+		queue.renew(firstClaim)
+		queue.claim(10) == null
+		
+		when:
+		Thread.sleep(300)
+		def secondClaim = queue.claim(100)
+		queue.complete(new RefreshUnitResult(firstClaim, true, new Date(), null))
+		
+		then:
+		secondClaim.taskId == firstClaim.taskId
+		secondClaim.claimant != firstClaim.claimant
+		!queue.renew(firstClaim)
+		queue.takeResult("run", 10) == null
+		
+		when:
+		queue.complete(new RefreshUnitResult(secondClaim, true, new Date(), null))
+		
+		then:
+		queue.takeResult("run", 100).unit.dataId == 1
+	}
+	
+	def "test refresh all with units fails when no unit is done in time"() {
+		setup:
+		setupLocationTree()
+		def period = newPeriod()
+		newNormalizedDataElement(CODE(1), Type.TYPE_NUMBER(), [(period.id+''):[(DISTRICT_HOSPITAL_GROUP):"1", (HEALTH_CENTER_GROUP):"1"]])
+		def queue = new LocalRefreshUnitQueue()
+		def unitTimeout = refreshValueService.unitTimeout
+		refreshValueService.unitTimeout = 100
+		
+		when:
+		refreshValueService.refreshAll([period], queue, new TestProgress())
+		
+		then:
+		thrown IllegalStateException
+		queue.claim(10) == null
+		
+		cleanup:
+		refreshValueService.unitTimeout = unitTimeout
+	}
+	
+	def "test refresh units in the database only return their results to their refresh"() {
+		setup:
+		def queue = new DatabaseRefreshUnitQueue(sessionFactory: sessionFactory, transactionManager: transactionManager, pollInterval: 10)
+		queue.publish(new RefreshUnit("run1", 1L, 2L, true, null, new Date()))
+		queue.publish(new RefreshUnit("run2", 3L, 2L, true, null, new Date()))
+		queue.publish(new RefreshUnit("run2", 4L, 2L, true, null, new Date()))
+		
+		when:
+		queue.complete(new RefreshUnitResult(queue.claim(100), true, new Date(), null))
+		
+		then:
+		queue.takeResult("run2", 10) == null
+		queue.takeResult("run1", 100).unit.dataId == 1
+		
+		when:
+		queue.complete(new RefreshUnitResult(queue.claim(100), true, new Date(), null))
+		queue.clear("run2")
+		
+		then:
+		queue.takeResult("run2", 10) == null
+		queue.claim(10) == null
+		RefreshUnitTask.count() == 0
+	}
+	
+	def "test refresh plan lists outdated data without refreshing them"() {
+		setup:
+		setupLocationTree()
+		def period = newPeriod()
+		def rawDataElement = newRawDataElement(CODE(1), Type.TYPE_NUMBER())
+		def normalizedDataElement = newNormalizedDataElement(CODE(2), Type.TYPE_NUMBER(), [(period.id+''):[(DISTRICT_HOSPITAL_GROUP):"\$"+rawDataElement.id, (HEALTH_CENTER_GROUP):"\$"+rawDataElement.id]])
+		def sum = newSum("\$"+normalizedDataElement.id, CODE(3))
+		
+		when:
+		def plan = refreshValueService.planRefreshAll([period])
+		
+		then:
+		plan.entries*.code == [CODE(2), CODE(3)]
+		plan.entries*.reason == ["never refreshed", "never refreshed"]
+		plan.unitCount == 7
+		plan.skippedCount == 0
+		NormalizedDataElementValue.count() == 0
+		NormalizedDataElement.get(normalizedDataElement.id).refreshed == null
+		
+		when:
+		refreshValueService.refreshAll([period], new TestProgress())
+		plan = refreshValueService.planRefreshCalculation(sum, [period])
+		
+		then:
+		plan.empty
+		plan.skippedCount == 2
+		plan.estimatedTime == 0
+		
+		when:
+		Thread.sleep(1100)
+		rawDataElement = RawDataElement.get(rawDataElement.id)
+		rawDataElement.lastValueChanged = new Date()
+		rawDataElement.save(failOnError: true, flush: true)
+		plan = refreshValueService.planRefreshCalculation(sum, [period])
+		
+		then:
+		plan.entries*.code == [CODE(2), CODE(3)]
+		plan.entries*.reason == ["dependency values changed", "dependency values changed"]
+		plan.entries.every {it.measured && it.estimatedTime >= 0}
+		plan.report.contains(CODE(3))
+	}
+	
+	def "test refresh plan uses the period times saved by earlier refreshes"() {
+		setup:
+		setupLocationTree()
+		def period = newPeriod()
+		def normalizedDataElement = newNormalizedDataElement(CODE(1), Type.TYPE_NUMBER(), [(period.id+''):[(DISTRICT_HOSPITAL_GROUP):"1", (HEALTH_CENTER_GROUP):"1"]])
+		def sum = newSum("\$"+normalizedDataElement.id, CODE(2))
+		
+		when:
+		refreshValueService.refreshAll([period], new TestProgress())
+		
+		then:
+		RefreshPeriodTime.findByDataId(normalizedDataElement.id).periodTime >= 0
+		RefreshPeriodTime.findByDataId(sum.id).periodTime >= 0
+		
+		when:
+		// a data that was only measured before the application started
+		def otherSum = newSum("\$"+normalizedDataElement.id, CODE(3))
+		new RefreshPeriodTime(dataId: otherSum.id, periodTime: 1234, recorded: new Date()).save(failOnError: true, flush: true)
+		def plan = refreshValueService.planRefreshCalculation(otherSum, [period])
+		
+		then:
+		plan.entries*.code == [CODE(3)]
+		plan.entries[0].measured
+		plan.entries[0].estimatedTime == 1234
 	}
 	
 	def "test refresh normalized data elements with circular dependency still works"() {
@@ -767,4 +1649,34 @@ class RefreshValueServiceSpec extends IntegrationTests {
 		s(Summ.list()[0].getSources(period, DataLocationType.findByCode(DISTRICT_HOSPITAL_GROUP))) == s([source.code])
 		s(Summ.list()[0].getSources(period, DataLocationType.findByCode(HEALTH_CENTER_GROUP))) == s([source.code])
 	}
+	
+	def "test refresh all sets sources through the dependencies and only rewrites changed ones"() {
+		setup:
+		setupLocationTree()
+		def period = newPeriod()
+		def source1 = newSource("source1");
+		def source2 = newSource("source2");
+		def rawDataElement1 = newRawDataElement(CODE(1), Type.TYPE_NUMBER(), source1);
+		def rawDataElement2 = newRawDataElement(CODE(2), Type.TYPE_NUMBER(), source2);
+		def normalizedDataElement1 = newNormalizedDataElement(CODE(3), Type.TYPE_NUMBER(), [(period.id+''):[(DISTRICT_HOSPITAL_GROUP):"\$"+rawDataElement1.id+" + \$"+rawDataElement2.id, (HEALTH_CENTER_GROUP):"\$"+rawDataElement1.id]])
+		def normalizedDataElement2 = newNormalizedDataElement(CODE(4), Type.TYPE_NUMBER(), [(period.id+''):[(DISTRICT_HOSPITAL_GROUP):"\$"+normalizedDataElement1.id, (HEALTH_CENTER_GROUP):"\$"+normalizedDataElement1.id]])
+		def sum = newSum("\$"+normalizedDataElement2.id, CODE(5))
+		
+		when:
+		refreshValueService.refreshAll(new TestProgress())
+		def sourceMapString = NormalizedDataElement.get(normalizedDataElement2.id).sourceMapString
+		
+		then:
+		s(Summ.list()[0].getSources(period, DataLocationType.findByCode(DISTRICT_HOSPITAL_GROUP))) == s([source1.code, source2.code])
+		s(Summ.list()[0].getSources(period, DataLocationType.findByCode(HEALTH_CENTER_GROUP))) == s([source1.code])
+		
+		when:
+		normalizedDataElement2 = NormalizedDataElement.get(normalizedDataElement2.id)
+		normalizedDataElement2.refreshed = null
+		normalizedDataElement2.save(failOnError: true, flush: true)
+		refreshValueService.refreshAll(new TestProgress())
+		
+		then:
+		NormalizedDataElement.get(normalizedDataElement2.id).sourceMapString == sourceMapString
+	}
 }
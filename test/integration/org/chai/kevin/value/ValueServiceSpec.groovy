@@ -537,6 +537,28 @@ class ValueServiceSpec extends IntegrationTests {
 		RawDataElement.list()[0].lastValueChanged.equals(date)
 	}
 	
+	def "save raw data element value records dirty value"() {
+		setup:
+		setupLocationTree()
+		def period = newPeriod()
+		def rawDataElement = newRawDataElement(CODE(1), Type.TYPE_NUMBER())
+		
+		when:
+		def rawDataElementValue = newRawDataElementValue(rawDataElement, period, DataLocation.findByCode(BUTARO), v("40"))
+		valueService.save(rawDataElementValue);
+		def lastId = valueService.getLastDirtyValueId()
+		
+		then:
+		valueService.listDirtyValues(lastId).collect {[it.dataId, it.locationId, it.periodId]} == [[rawDataElement.id, DataLocation.findByCode(BUTARO).id, period.id]]
+		
+		when:
+		valueService.deleteDirtyValues(lastId)
+		
+		then:
+		DirtyValue.count() == 0
+		valueService.getLastDirtyValueId() == null
+	}
+	
 	def "test delete calculation values"() {
 		setup:
 		setupLocationTree()
@@ -0,0 +1,137 @@
+package org.chai.kevin;
+
+import grails.plugin.spock.UnitSpec
+
+import org.chai.kevin.data.Type;
+import org.chai.kevin.value.Value;
+
+public class ArithmeticExpressionUnitSpec extends UnitSpec {
+
+	def "test compile supported expressions"() {
+		expect:
+		ArithmeticExpression.compile("\$1") != null
+		ArithmeticExpression.compile("1") != null
+		ArithmeticExpression.compile("\$1 + \$2 * 2") != null
+		ArithmeticExpression.compile("if (\$1 == \"null\") 0 else \$1") != null
+		ArithmeticExpression.compile("if(\$1<=0)1 else if (\$1>=10) 2 else 3") != null
+		ArithmeticExpression.compile("roundup(\$1 / 3)") != null
+		ArithmeticExpression.compile("not \$1 or (\$2 and true)") != null
+		ArithmeticExpression.compile("\$1 +\n\$2") != null
+	}
+
+	def "test compile unsupported expressions"() {
+		expect:
+		ArithmeticExpression.compile("\$1.x") == null
+		ArithmeticExpression.compile("\$1[0]") == null
+		ArithmeticExpression.compile("count(\$1)") == null
+		ArithmeticExpression.compile("\$1 -> filter \$ == 1") == null
+		ArithmeticExpression.compile("a = \$1; a") == null
+		ArithmeticExpression.compile("\$1 == 1 == 2") == null
+		ArithmeticExpression.compile("1e5") == null
+		ArithmeticExpression.compile("1.5m") == null
+		ArithmeticExpression.compile("\"a\\\"b\"") == null
+		ArithmeticExpression.compile("1 +") == null
+		ArithmeticExpression.compile("") == null
+	}
+
+	def "test variables"() {
+		expect:
+		ArithmeticExpression.compile("\$1 + \$23 * \$1").getVariables() == new LinkedHashSet(["1", "23"])
+		ArithmeticExpression.compile("1").getVariables().isEmpty()
+	}
+
+	def "test arithmetic follows jaql number types"() {
+		expect:
+		ArithmeticExpression.compile(expression).evaluate(["1": 5d, "2": 2d]) == result
+
+		where:
+		expression		| result
+		"1 / 2"			| 0l
+		"1.0 / 2"		| 0.5d
+		"\$1 / 2"		| 2.5d
+		"\$1 + 2"		| 7d
+		"3 - -2"		| 5l
+		"-\$1"			| -5d
+		"(1 + 2) * 3"	| 9l
+		"roundup(\$1 / 3)"	| 2d
+		"roundup(4)"	| 4d
+	}
+
+	def "test null handling"() {
+		expect:
+		ArithmeticExpression.compile(expression).evaluate(["1": "null", "2": 2d]) == result
+
+		where:
+		expression								| result
+		"\$1 == \"null\""						| true
+		"if (\$1 == \"null\") 0 else \$1"		| 0l
+		"\$2 == \"null\""						| null
+		"if (\$2 == \"null\") 0 else \$2"		| 2d
+		"null + 1"								| null
+		"null > 1"								| null
+		"if (null) 1 else 2"					| 2l
+		"if (false) 1"							| null
+	}
+
+	def "test boolean operators"() {
+		expect:
+		ArithmeticExpression.compile(expression).evaluate(["1": true, "2": false]) == result
+
+		where:
+		expression			| result
+		"\$1 and \$2"		| false
+		"\$1 or \$2"		| true
+		"not \$2"			| true
+		"null and \$1"		| null
+		"null and \$2"		| false
+		"null or \$1"		| true
+		"null or \$2"		| null
+		"not null"			| null
+	}
+
+	def "test unsupported evaluation"() {
+		when:
+		ArithmeticExpression.compile(expression).evaluate(["1": 5d, "2": true, "3": "null"])
+
+		then:
+		thrown ArithmeticExpression.UnsupportedException
+
+		where:
+		expression << ["1 / 0", "\$1 + \$2", "\$3 + \"a\"", "\$1 and \$2", "if (\$1) 1 else 2", "\$4", "roundup(null)"]
+	}
+
+	def "test evaluate values"() {
+		setup:
+		def number = Type.TYPE_NUMBER()
+		def bool = Type.TYPE_BOOL()
+		def expression = null
+
+		when:
+		expression = ArithmeticExpression.compile("\$1 * 2")
+
+		then:
+		expression.evaluate(number, ["1": v("2")], ["1": number]) == v("4")
+		expression.evaluate(number, ["1": Value.NULL_INSTANCE()], ["1": number]) == null
+		expression.evaluate(number, ["1": Value.VALUE_STRING("a")], ["1": Type.TYPE_STRING()]) == null
+
+		when:
+		expression = ArithmeticExpression.compile("if (\$1 == \"null\") 0 else \$1")
+
+		then:
+		expression.evaluate(number, ["1": Value.NULL_INSTANCE()], ["1": number]) == v("0")
+		expression.evaluate(number, ["1": v("3")], ["1": number]) == v("3")
+
+		when:
+		expression = ArithmeticExpression.compile("\$1 > 2")
+
+		then:
+		expression.evaluate(bool, ["1": v("3")], ["1": number]) == Value.VALUE_BOOL(true)
+		expression.evaluate(bool, ["1": Value.NULL_INSTANCE()], ["1": number]).isNull()
+		expression.evaluate(number, ["1": v("3")], ["1": number]) == null
+	}
+
+	def v(def value) {
+		return Value.VALUE_NUMBER(Double.parseDouble(value))
+	}
+
+}
@@ -0,0 +1,189 @@
+package org.chai.kevin;
+
+import grails.plugin.spock.UnitSpec
+
+import org.chai.kevin.util.BoundedCache;
+
+public class BoundedCacheUnitSpec extends UnitSpec {
+
+	def "test get and put"() {
+		setup:
+		def cache = new BoundedCache(10)
+		
+		when:
+		cache.put("a", 1)
+		
+		then:
+		cache.get("a") == 1
+		cache.get("b") == null
+		cache.hitCount == 1
+		cache.missCount == 1
+		cache.size == 1
+	}
+	
+	def "test null values are cached"() {
+		setup:
+		def cache = new BoundedCache(10)
+		def loads = 0
+		def loader = {key -> loads++; return null} as BoundedCache.Loader
+		
+		when:
+		cache.get("a", loader)
+		cache.get("a", loader)
+		
+		then:
+		loads == 1
+		cache.hitCount == 1
+		cache.missCount == 1
+	}
+	
+	def "test size is bounded"() {
+		setup:
+		def cache = new BoundedCache(4, 1)
+		
+		when:
+		(1..10).each { cache.put(it, it) }
+		
+		then:
+		cache.size == 4
+		cache.evictionCount == 6
+		cache.get(10) == 10
+		cache.get(1) == null
+	}
+	
+	def "test least recently used entry is evicted"() {
+		setup:
+		def cache = new BoundedCache(2, 1)
+		
+		when:
+		cache.put(1, 1)
+		cache.put(2, 2)
+		cache.get(1)
+		cache.put(3, 3)
+		
+		then:
+		cache.get(1) == 1
+		cache.get(2) == null
+		cache.get(3) == 3
+	}
+	
+	def "test weight is bounded"() {
+		setup:
+		def cache = new BoundedCache(100, 1)
+		cache.maxWeight = 10
+		cache.weigher = {key, value -> value.length()} as BoundedCache.Weigher
+		
+		when:
+		cache.put(1, "12345")
+		cache.put(2, "12345")
+		
+		then:
+		cache.size == 2
+		cache.weight == 10
+		
+		when:
+		cache.put(3, "123")
+		
+		then:
+		cache.size == 2
+		cache.weight == 8
+		cache.get(1) == null
+	}
+	
+	def "test entries expire"() {
+		setup:
+		def cache = new BoundedCache(10)
+		cache.timeToLive = 50
+		
+		when:
+		cache.put("a", 1)
+		
+		then:
+		cache.get("a") == 1
+		
+		when:
+		Thread.sleep(100)
+		
+		then:
+		cache.get("a") == null
+		cache.size == 0
+		cache.evictionCount == 1
+	}
+	
+	def "test eviction listener"() {
+		setup:
+		def cache = new BoundedCache(1, 1)
+		def evicted = []
+		cache.evictionListener = {key, value -> evicted << key} as BoundedCache.EvictionListener
+		
+		when:
+		cache.put(1, 1)
+		cache.put(2, 2)
+		
+		then:
+		evicted == [1]
+	}
+	
+	def "test eviction listener is called for replaced values"() {
+		setup:
+		def cache = new BoundedCache(10, 1)
+		def evicted = []
+		cache.evictionListener = {key, value -> evicted << value} as BoundedCache.EvictionListener
+		def value = "value"
+		
+		when:
+		cache.put(1, value)
+		cache.put(1, value)
+		
+		then:
+		evicted == []
+		
+		when:
+		cache.put(1, "other")
+		
+		then:
+		evicted == [value]
+		cache.get(1) == "other"
+		cache.size == 1
+	}
+	
+	def "test cleared values are passed to the eviction listener outside of the lock"() {
+		setup:
+		def cache = new BoundedCache(10, 1)
+		def evicted = []
+		def locked = []
+		cache.evictionListener = {key, value -> 
+			evicted << value
+			locked << cache.@segments[0].heldByCurrentThread
+		} as BoundedCache.EvictionListener
+		
+		when:
+		cache.put(1, "value1")
+		cache.put(2, "value2")
+		cache.clear()
+		
+		then:
+		evicted == ["value1", "value2"]
+		locked == [false, false]
+		cache.size == 0
+		cache.weight == 0
+	}
+	
+	def "test value loaded concurrently is passed to the eviction listener"() {
+		setup:
+		def cache = new BoundedCache(10, 1)
+		def evicted = []
+		cache.evictionListener = {key, value -> evicted << value} as BoundedCache.EvictionListener
+		// another thread caches a value while this one is loading
+		def loader = {key -> cache.put(key, "cached"); return "loaded"} as BoundedCache.Loader
+		
+		when:
+		def value = cache.get(1, loader)
+		
+		then:
+		value == "cached"
+		cache.get(1) == "cached"
+		evicted == ["loaded"]
+	}
+	
+}
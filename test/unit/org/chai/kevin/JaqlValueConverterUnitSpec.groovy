@@ -0,0 +1,78 @@
+package org.chai.kevin;
+
+import grails.plugin.spock.UnitSpec
+
+import org.chai.kevin.data.Type;
+import org.chai.kevin.value.Value;
+
+import com.ibm.jaql.json.type.BufferedJsonArray;
+import com.ibm.jaql.json.type.BufferedJsonRecord;
+import com.ibm.jaql.json.type.JsonBool;
+import com.ibm.jaql.json.type.JsonDouble;
+import com.ibm.jaql.json.type.JsonLong;
+import com.ibm.jaql.json.type.JsonString;
+
+public class JaqlValueConverterUnitSpec extends UnitSpec {
+
+	def "test value to jaql"() {
+		expect:
+		JaqlValueConverter.getJsonValue(Type.TYPE_NUMBER(), Value.VALUE_NUMBER(10)) == new JsonDouble(10)
+		JaqlValueConverter.getJsonValue(Type.TYPE_BOOL(), Value.VALUE_BOOL(true)) == JsonBool.make(true)
+		JaqlValueConverter.getJsonValue(Type.TYPE_STRING(), Value.VALUE_STRING("a")) == new JsonString("a")
+		JaqlValueConverter.getJsonValue(Type.TYPE_DATE(), new Value("{\"value\": \"10-02-2009\"}")) == new JsonString("10-02-2009")
+		JaqlValueConverter.getJsonValue(Type.TYPE_NUMBER(), Value.NULL_INSTANCE()) == null
+	}
+	
+	def "test list and map value to jaql"() {
+		setup:
+		def array = new BufferedJsonArray()
+		array.add(new JsonDouble(10))
+		array.add(null)
+		def record = new BufferedJsonRecord()
+		record.add(new JsonString("key"), new JsonString("value"))
+		
+		expect:
+		JaqlValueConverter.getJsonValue(Type.TYPE_LIST(Type.TYPE_NUMBER()), new Value("{\"value\": [{\"value\":10}, {\"value\":null}]}")) == array
+		JaqlValueConverter.getJsonValue(Type.TYPE_MAP(["key": Type.TYPE_STRING()]), Value.VALUE_MAP(["key": Value.VALUE_STRING("value"), "non_existant": Value.VALUE_STRING("value")])) == record
+	}
+	
+	def "test jaql to value"() {
+		expect:
+		JaqlValueConverter.getValue(Type.TYPE_NUMBER(), new JsonDouble(10)) == Value.VALUE_NUMBER(10d)
+		JaqlValueConverter.getValue(Type.TYPE_NUMBER(), new JsonLong(10)) == Value.VALUE_NUMBER(10d)
+		JaqlValueConverter.getValue(Type.TYPE_BOOL(), JsonBool.make(false)) == Value.VALUE_BOOL(false)
+		JaqlValueConverter.getValue(Type.TYPE_STRING(), new JsonString("a")) == Value.VALUE_STRING("a")
+		JaqlValueConverter.getValue(Type.TYPE_STRING(), new JsonLong(10)) == Value.VALUE_STRING("10")
+		JaqlValueConverter.getValue(Type.TYPE_NUMBER(), null).isNull()
+		JaqlValueConverter.getValue(Type.TYPE_NUMBER(), new JsonString("null")).isNull()
+	}
+	
+	def "test jaql list and map to value"() {
+		setup:
+		def array = new BufferedJsonArray()
+		array.add(new JsonDouble(10))
+		array.add(null)
+		def record = new BufferedJsonRecord()
+		record.add(new JsonString("key"), new JsonString("value"))
+		
+		expect:
+		JaqlValueConverter.getValue(Type.TYPE_LIST(Type.TYPE_NUMBER()), array) == Value.VALUE_LIST([Value.VALUE_NUMBER(10d), Value.NULL_INSTANCE()])
+		JaqlValueConverter.getValue(Type.TYPE_MAP(["key": Type.TYPE_STRING()]), record) == Value.VALUE_MAP(["key": Value.VALUE_STRING("value")])
+	}
+	
+	def "test jaql to value with wrong type"() {
+		when:
+		JaqlValueConverter.getValue(type, jsonValue)
+		
+		then:
+		thrown IllegalArgumentException
+		
+		where:
+		type									| jsonValue
+		Type.TYPE_NUMBER()						| new JsonString("a")
+		Type.TYPE_BOOL()						| new JsonDouble(1)
+		Type.TYPE_LIST(Type.TYPE_NUMBER())		| new JsonDouble(1)
+		Type.TYPE_MAP(["key": Type.TYPE_STRING()])	| new BufferedJsonRecord()
+	}
+	
+}